@@ -0,0 +1,146 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.numenta.nupic.Parameters;
+import org.numenta.nupic.Parameters.KEY;
+import org.numenta.nupic.algorithms.Anomaly;
+import org.numenta.nupic.algorithms.SpatialPooler;
+import org.numenta.nupic.algorithms.TemporalMemory;
+import org.numenta.nupic.network.Inference;
+import org.numenta.nupic.network.Network;
+import org.numenta.nupic.network.sensor.ObservableSensor;
+import org.numenta.nupic.network.sensor.Publisher;
+import org.numenta.nupic.network.sensor.Sensor;
+import org.numenta.nupic.network.sensor.SensorParams;
+import org.numenta.nupic.network.sensor.SensorParams.Keys;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rx.Subscriber;
+
+/**
+ * Compares inferences of a network given typed inputs, as HTM does, with ones given through an ObservableSensor
+ * of formatted strings, which HTM used before.
+ * Either takes a core per inference, as the caller of the sensor waits for its layer thread,
+ * so the throughput is of a core.
+ *
+ * Both learn the same inputs from a new network, so an inference gets slower as the network grows.
+ * Either allocates about a mega byte per inference in the network, so see the gc profiler for how much the inputs add.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HTMInputBenchmark {
+
+	private HTMComputePool pool;
+	private HTM typed;
+
+	private Network network;
+	private Publisher publisher;
+	private DateFormat format;
+	private final BlockingQueue<Inference> inferences = new ArrayBlockingQueue<Inference>(1);
+
+	private long time = System.currentTimeMillis();
+	private long count = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		this.pool = new HTMComputePool(1, HTMComputePool.DEFAULT_QUEUE_SIZE);
+		HTMAnomalyDetector detector = new HTMAnomalyDetector(null, HTMAnomalyDetector.DEFAULT_HISTORY_SIZE,
+				new HTMModelManager(Files.createTempDirectory("htm-benchmark").toFile(), Long.MAX_VALUE), this.pool);
+		InetAddress address = InetAddress.getByAddress("htm-benchmark", new byte[]{10, 0, 9, 1});
+		this.typed = detector.create(HostRegistry.getDefault().register(address), address);
+
+		this.publisher = Publisher.builder()
+				.addHeader("timestamp" + CSVUpdateHandler.DELIM + HTMAnomalyDetector.CLASSFIER_FIELD)
+				.addHeader("datetime" + CSVUpdateHandler.DELIM + "float")
+				.addHeader("T" + CSVUpdateHandler.DELIM)
+				.build();
+		Object[] n = { "publisher", this.publisher };
+		Sensor<ObservableSensor<String>> sensor = Sensor.create(ObservableSensor::create, SensorParams.create(Keys::obs, n));
+
+		Parameters p = HTMAnomalyDetector.buildParams().union(HTMAnomalyDetector.buildEncoderParams());
+		this.network = Network.create("CloudSonar", p)
+				.add(Network.createRegion(HTMAnomalyDetector.REGION)
+					.add(Network.createLayer(HTMAnomalyDetector.LAYER, p)
+						.alterParameter(KEY.AUTO_CLASSIFY, Boolean.TRUE)
+						.add(Anomaly.create())
+						.add(new TemporalMemory())
+						.add(new SpatialPooler())
+						.add(sensor)));
+		this.network.observe().subscribe(new Subscriber<Inference>() {
+			@Override
+			public void onNext(Inference inference) {
+				HTMInputBenchmark.this.inferences.offer(inference);
+			}
+			@Override
+			public void onError(Throwable e) {
+			}
+			@Override
+			public void onCompleted() {
+			}
+		});
+		this.network.start();
+
+		String pattern = (String) HTMAnomalyDetector.getNetworkFieldEncodingMap().get("timestamp").get(KEY.DATEFIELD_PATTERN.getFieldName());
+		this.format = new SimpleDateFormat(pattern);
+
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.network.halt();
+		this.pool.shutdown();
+	}
+
+	/**
+	 * A minute apart, in a few micro to milli seconds.
+	 */
+	private float next() {
+		this.time += 60000;
+		return (float) (1 + (this.count++ % 7) * 0.4);
+	}
+
+	@Benchmark
+	public double typedInput() {
+		float log10 = this.next();
+		return this.typed.compute(this.time, log10, false).getAnomalyScore();
+	}
+
+	@Benchmark
+	public double stringSensorInput() throws InterruptedException {
+
+		float log10 = this.next();
+		StringBuffer sb = new StringBuffer();
+		sb.append(this.format.format(new Date(this.time)));
+		sb.append(CSVUpdateHandler.DELIM);
+		sb.append(log10);
+		this.publisher.onNext(sb.toString());
+
+		return this.inferences.take().getAnomalyScore();
+
+	}
+
+}
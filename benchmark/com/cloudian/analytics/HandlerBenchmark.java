@@ -0,0 +1,134 @@
+package com.cloudian.analytics;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.numenta.nupic.network.Inference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * Measures what the handlers do for every finished probe, from the job to a formatted record.
+ * Records are written to files linked to /dev/null, so this runs on Linux,
+ * and measures formatting and not a disk.
+ *
+ * An HTM network is not computed here, as HTM.publish only queues an input, see HTMInputBenchmark for inferences,
+ * but the record of an inference computed once is formatted as HTM does after each one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandlerBenchmark {
+
+	private static final int SAMPLES = 1000;
+
+	private File directory;
+	private CSVSink csvSink;
+	private CSVSink fdSink;
+	private CSVUpdateHandler csv;
+	private FailureDetectorUpdateHandler failureDetector;
+	private ArrivalWindow window;
+	private HTM htm;
+	private Inference inference;
+	private PollingJob job;
+	private long duration = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		this.directory = Files.createTempDirectory("sonar-benchmark").toFile();
+		this.csvSink = this.nullSink("sonar");
+		this.fdSink = this.nullSink("fd");
+		this.csv = new CSVUpdateHandler(this.csvSink);
+		this.failureDetector = new FailureDetectorUpdateHandler(this.fdSink);
+
+		InetAddress address = InetAddress.getByAddress("handler-benchmark", new byte[]{10, 0, 9, 2});
+		this.job = new PollingJob(address) {
+			@Override
+			public void run() {
+			}
+		};
+		this.job.hostId = HostRegistry.getDefault().register(address);
+		this.job.pollingStatus.status = Status.FINISHED;
+		this.job.pollingStatus.started = 0;
+
+		this.window = new ArrivalWindow(SAMPLES);
+		for (int i = 0; i < SAMPLES; i++) {
+			this.window.add(200000 + i);
+			this.nextDuration();
+			this.failureDetector.updateStatus(this.job);
+		}
+
+		// never runs a network, which is left scheduled once queued
+		HTMComputePool pool = new HTMComputePool(htm -> {}, HTMComputePool.DEFAULT_QUEUE_SIZE, System::currentTimeMillis);
+		HTMAnomalyDetector detector = new HTMAnomalyDetector(this.nullSink("htm"), HTMAnomalyDetector.DEFAULT_HISTORY_SIZE,
+				new HTMModelManager(this.directory, Long.MAX_VALUE), pool);
+		this.htm = detector.create(this.job.hostId, address);
+		this.inference = this.htm.compute(System.currentTimeMillis(), 2.3f, false);
+
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+
+	private CSVSink nullSink(String name) throws Exception {
+		Files.createSymbolicLink(new File(this.directory, name + CSVSink.SUFFIX).toPath(), new File("/dev/null").toPath());
+		return new CSVSink(this.directory, name, Long.MAX_VALUE);
+	}
+
+	private long nextDuration() {
+		this.duration = 200000 + (this.duration + 7919) % 100000;
+		this.job.pollingStatus.stopped = this.duration;
+		return this.duration;
+	}
+
+	@Benchmark
+	public void csvUpdate() {
+		this.nextDuration();
+		this.csv.updateStatus(this.job);
+	}
+
+	@Benchmark
+	public void failureDetectorUpdate() {
+		this.nextDuration();
+		this.failureDetector.updateStatus(this.job);
+	}
+
+	@Benchmark
+	public double arrivalWindowPhi() {
+		return ArrivalWindow.PHI_FACTOR * this.window.phi(this.nextDuration());
+	}
+
+	@Benchmark
+	public void htmPublish() {
+		this.htm.publish(System.currentTimeMillis(), this.nextDuration());
+	}
+
+	@Benchmark
+	public void htmRecord() {
+		this.htm.write(System.currentTimeMillis(), this.inference, (float) Math.log10(this.nextDuration() / 1000.0));
+	}
+
+}
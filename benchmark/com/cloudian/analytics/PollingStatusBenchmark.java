@@ -0,0 +1,52 @@
+package com.cloudian.analytics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * Measures the transitions of a PollingStatus that every probe goes through,
+ * and the copy a HandlerDispatcher takes of it for every handler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PollingStatusBenchmark {
+
+	private final PollingStatus status = new PollingStatus();
+	private final PollingStatus copy = new PollingStatus();
+
+	@Benchmark
+	public long startAndFinish() {
+		this.status.updateStatus(Status.STARTED, null);
+		this.status.updateStatus(Status.FINISHED, null);
+		return this.status.duration();
+	}
+
+	@Benchmark
+	public long startAndFail() {
+		this.status.updateStatus(Status.STARTED, null);
+		this.status.updateStatus(Status.ERROR, "Timeout");
+		return this.status.stopped;
+	}
+
+	@Benchmark
+	public long copy() {
+		this.copy.copy(this.status);
+		return this.copy.duration();
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.cloudian.analytics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares StatsRingBuffer with BoundedStatsDeque, which it replaced behind ArrivalWindow.
+ * Both are filled up to the sample size of FailureDetectorUpdateHandler, so every add evicts the oldest.
+ *
+ * Run with -prof gc to see the allocation rate per add.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatsBufferBenchmark {
+
+	private static final int SAMPLE_SIZE = 1000;
+
+	private BoundedStatsDeque deque;
+	private StatsRingBuffer ring;
+	private long value;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		this.deque = new BoundedStatsDeque(SAMPLE_SIZE);
+		this.ring = new StatsRingBuffer(SAMPLE_SIZE);
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			this.deque.add(100000 + i);
+			this.ring.add(100000 + i);
+		}
+
+	}
+
+	@Benchmark
+	public double dequeAddMean() {
+		this.deque.add(this.value++ & 0xFFFFF);
+		return this.deque.mean();
+	}
+
+	@Benchmark
+	public double ringAddMean() {
+		this.ring.add(this.value++ & 0xFFFFF);
+		return this.ring.mean();
+	}
+
+	@Benchmark
+	public double dequeMean() {
+		return this.deque.mean();
+	}
+
+	@Benchmark
+	public double ringMean() {
+		return this.ring.mean();
+	}
+
+	@Benchmark
+	public double ringVariance() {
+		return this.ring.variance();
+	}
+
+}
@@ -0,0 +1,316 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * AdaptiveRateController polls quiet hosts less often, and hosts that start to change as often as they are scheduled.
+ *
+ * Every interval, each host scheduled is given a factor of its base interval between 1 and maxFactor.
+ * 1. A host is alerted when its PHI is ALERT_PHI or higher, its anomaly score is ALERT_ANOMALY or higher,
+ *    or its recent latencies deviate from the mean of its FailureDetectorUpdateHandler window by more than ALERT_DEVIATION
+ *    times its variance. It is polled at its base interval at once.
+ * 2. A host is quiet when all of them are lower than QUIET_PHI, QUIET_ANOMALY and QUIET_DEVIATION.
+ *    Its interval grows by BACKOFF for every new sample, so it slows down gradually while it stays quiet.
+ * 3. Otherwise, a host keeps its interval.
+ * The recent deviation is a moving average of the squared difference between each new duration and the mean,
+ * divided by the variance of the window, which is about 1 for a host as usual.
+ *
+ * When the hosts would be polled more than the budget of probes per second, the hosts not alerted are slowed down
+ * in proportion to make room for the alerted ones first, and all of them if the alerted ones alone exceed the budget.
+ *
+ * Intervals are changed by PollingScheduler#adjust, which never schedules a host that is not scheduled,
+ * e.g. one moved to another member by a ShardCoordinator.
+ *
+ */
+public class AdaptiveRateController implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(AdaptiveRateController.class);
+
+	static final long DEFAULT_INTERVAL_IN_MILLIS = 1000;
+	static final double DEFAULT_MAX_FACTOR = 8;
+	static final double ALERT_PHI = 2;
+	static final double QUIET_PHI = 1;
+	static final double ALERT_ANOMALY = 0.5;
+	static final double QUIET_ANOMALY = 0.3;
+	static final double ALERT_DEVIATION = 4;
+	static final double QUIET_DEVIATION = 2;
+	static final double BACKOFF = 1.25;
+	// of a new squared deviation in the moving average
+	static final double DEVIATION_WEIGHT = 0.3;
+	// not to reschedule a host for a small change
+	static final double MIN_CHANGE = 0.1;
+
+	private final PollingScheduler scheduler;
+	private final HostRegistry registry;
+	private final FailureDetectorUpdateHandler failureDetector;
+	private final HealthTable health;
+	private final double budget;
+	private final double maxFactor;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ProbeEngine.DaemonThreadFactory("sonar-adaptive"));
+
+	// only touched by the executor
+	private final Map<InetAddress, Rate> rates = new HashMap<InetAddress, Rate>();
+	// as of the last run, in the order of host ids
+	private volatile Rate[] published = new Rate[0];
+	private volatile double totalRate;
+
+	private final Metrics.Counter limited;
+
+	/**
+	 * @param budget probes per second of all the hosts
+	 * @param maxFactor how many times longer than its base interval a host can be polled at most
+	 */
+	public AdaptiveRateController(PollingScheduler scheduler, FailureDetectorUpdateHandler failureDetector, double budget, double maxFactor) {
+		this(scheduler, HostRegistry.getDefault(), failureDetector, HealthTable.getDefault(), budget, maxFactor);
+	}
+
+	AdaptiveRateController(PollingScheduler scheduler, HostRegistry registry, FailureDetectorUpdateHandler failureDetector, HealthTable health,
+			double budget, double maxFactor) {
+
+		this.scheduler = scheduler;
+		this.registry = registry;
+		this.failureDetector = failureDetector;
+		this.health = health;
+		this.budget = budget;
+		this.maxFactor = maxFactor;
+
+		Metrics metrics = Metrics.getDefault();
+		this.limited = metrics.counter("adaptive.limited");
+		metrics.gauge("adaptive.rate", () -> Math.round(this.totalRate));
+		metrics.gauge("adaptive.alerted", () -> this.count(true));
+		metrics.gauge("adaptive.slowed", () -> this.count(false));
+
+	}
+
+	public void start(long intervalInMillis) {
+		this.executor.scheduleWithFixedDelay(this, intervalInMillis, intervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			this.adjust();
+		} catch (RuntimeException e) {
+			// not to stop the schedule
+			logger.error("failed to adjust intervals", e);
+		}
+
+	}
+
+	void adjust() {
+
+		HealthTable.Snapshot snapshot = this.health.snapshot();
+		List<Rate> rates = new ArrayList<Rate>();
+		double alertedRate = 0, otherRate = 0;
+
+		for (InetAddress host : this.scheduler.getHosts()) {
+
+			long base = this.scheduler.getBaseInterval(host);
+			if (base <= 0) {
+				continue;
+			}
+
+			Rate rate = this.rates.get(host);
+			if (rate == null || rate.base != base) {
+				// as scheduled
+				rate = new Rate(host, this.registry.register(host), base);
+				this.rates.put(host, rate);
+			}
+
+			rate.update(snapshot.get(rate.hostId));
+			rates.add(rate);
+			if (rate.alerted) {
+				alertedRate += rate.desiredRate();
+			} else {
+				otherRate += rate.desiredRate();
+			}
+
+		}
+
+		// hosts no longer scheduled
+		for (Iterator<InetAddress> i = this.rates.keySet().iterator(); i.hasNext();) {
+			if (this.scheduler.getBaseInterval(i.next()) < 0) {
+				i.remove();
+			}
+		}
+
+		// the alerted first within the budget
+		double alertedScale = 1, otherScale = 1;
+		if (alertedRate + otherRate > this.budget) {
+			if (alertedRate >= this.budget) {
+				alertedScale = otherScale = this.budget / (alertedRate + otherRate);
+			} else {
+				otherScale = (this.budget - alertedRate) / otherRate;
+			}
+			this.limited.increment();
+		}
+
+		double total = 0;
+		for (Rate rate : rates) {
+
+			long interval = Math.round(rate.base * rate.factor / (rate.alerted ? alertedScale : otherScale));
+			// but to reach either end
+			boolean end = rate.factor == 1 || rate.factor == this.maxFactor;
+			if (interval != rate.interval && (end || Math.abs(interval - rate.interval) > rate.interval * MIN_CHANGE)) {
+				if (this.scheduler.adjust(rate.host, interval)) {
+					rate.interval = interval;
+				}
+			}
+			total += 1000.0 / rate.interval;
+
+		}
+
+		rates.sort((a, b) -> Integer.compare(a.hostId, b.hostId));
+		this.published = rates.toArray(new Rate[rates.size()]);
+		this.totalRate = total;
+		logger.trace(rates.size() + " hosts polled " + total + " times per second");
+
+	}
+
+	/**
+	 * @return the interval a host is polled at as of the last run, -1 if not known
+	 */
+	long getInterval(InetAddress host) {
+
+		for (Rate rate : this.published) {
+			if (rate.host.equals(host)) {
+				return rate.interval;
+			}
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * @return probes per second of all the hosts as of the last run
+	 */
+	double getTotalRate() {
+		return this.totalRate;
+	}
+
+	private long count(boolean alerted) {
+
+		long count = 0;
+		for (Rate rate : this.published) {
+			if (alerted ? rate.alerted : rate.interval > rate.base) {
+				count++;
+			}
+		}
+
+		return count;
+
+	}
+
+	/**
+	 * @return a line of "host, base, interval, rate, phi, anomaly, deviation, alerted|quiet|steady" per host
+	 */
+	byte[] toText() {
+
+		Rate[] rates = this.published;
+		StringBuilder text = new StringBuilder(64 * rates.length + 128);
+		text.append("# ").append(rates.length).append(" hosts, ").append(Math.round(this.totalRate)).append(" probes per second of a budget of ")
+			.append(Math.round(this.budget)).append('\n')
+			.append("# host, base, interval, rate, phi, anomaly, deviation, state\n");
+
+		for (Rate rate : rates) {
+			text.append(this.registry.name(rate.hostId)).append(", ")
+				.append(rate.base).append(", ")
+				.append(rate.interval).append(", ")
+				.append(round(1000.0 / rate.interval)).append(", ")
+				.append(round(rate.phi)).append(", ")
+				.append(round(rate.anomaly)).append(", ")
+				.append(round(rate.deviation)).append(", ")
+				.append(rate.alerted ? "alerted" : rate.quiet ? "quiet" : "steady").append('\n');
+		}
+
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+
+	}
+
+	private static double round(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? value : Math.rint(value * 100) / 100;
+	}
+
+	/**
+	 * The rate of a host, only updated by the executor.
+	 */
+	private final class Rate {
+
+		final InetAddress host;
+		final int hostId;
+		// in milli seconds
+		final long base;
+		volatile long interval;
+		double factor = 1;
+		// of the last sample seen
+		long updated;
+		volatile double phi = Double.NaN, anomaly = Double.NaN, deviation = 1;
+		volatile boolean alerted, quiet;
+
+		Rate(InetAddress host, int hostId, long base) {
+			this.host = host;
+			this.hostId = hostId;
+			this.base = base;
+			this.interval = base;
+		}
+
+		void update(HealthTable.Health health) {
+
+			if (health == null) {
+				// nothing known yet
+				this.alerted = this.quiet = false;
+				return;
+			}
+
+			boolean fresh = health.updated != this.updated;
+			this.updated = health.updated;
+			this.phi = health.phi;
+			this.anomaly = health.anomaly;
+
+			double mean = AdaptiveRateController.this.failureDetector.getMeanInNano(this.hostId);
+			double variance = AdaptiveRateController.this.failureDetector.getVariance(this.hostId);
+			if (fresh && health.duration >= 0 && variance > 0) {
+				double difference = health.duration - mean;
+				this.deviation += DEVIATION_WEIGHT * (difference * difference / variance - this.deviation);
+			}
+
+			// NaN is neither
+			this.alerted = this.phi >= ALERT_PHI || this.anomaly >= ALERT_ANOMALY || this.deviation >= ALERT_DEVIATION;
+			this.quiet = this.phi < QUIET_PHI && !(this.anomaly >= QUIET_ANOMALY) && this.deviation < QUIET_DEVIATION;
+
+			if (this.alerted) {
+				this.factor = 1;
+			} else if (this.quiet && fresh) {
+				this.factor = Math.min(AdaptiveRateController.this.maxFactor, this.factor * BACKOFF);
+			}
+
+		}
+
+		/**
+		 * @return probes per second without the budget
+		 */
+		double desiredRate() {
+			return 1000.0 / (this.base * this.factor);
+		}
+
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudian.analytics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A modified version of org.apache.cassandra.gms.FailureDetector#ArrivalWindow from Apache Cassandra(2.0.11),
+ * which keeps its samples in a StatsRingBuffer.
+ */
+class ArrivalWindow
+{
+	private static final Logger logger = LogManager.getLogger(ArrivalWindow.class);
+    private final StatsRingBuffer arrivalIntervals;
+
+    // this is useless except to provide backwards compatibility in phi_convict_threshold,
+    // because everyone seems pretty accustomed to the default of 8, and users who have
+    // already tuned their phi_convict_threshold for their own environments won't need to
+    // change.
+    static final double PHI_FACTOR = 1.0 / Math.log(10.0);
+
+    // in the event of a long partition, never record an interval longer than the rpc timeout,
+    // since if a host is regularly experiencing connectivity problems lasting this long we'd
+    // rather mark it down quickly instead of adapting
+    // this value defaults to the same initial value the FD is seeded with
+    static final long MAX_INTERVAL_IN_NANO = CloudSonar.POLLING_INTERVAL_IN_SECONDS * 1000 * 1000 * 1000 * 2;
+
+    ArrivalWindow(int size)
+    {
+        arrivalIntervals = new StatsRingBuffer(size);
+    }
+
+    // a single writer at a time, readers do not block it
+    void add(long value)
+    {
+        arrivalIntervals.add(value);
+    }
+
+    int snapshot(long[] dst)
+    {
+        return arrivalIntervals.snapshot(dst);
+    }
+
+    double mean()
+    {
+        return arrivalIntervals.mean();
+    }
+
+    double variance()
+    {
+        return arrivalIntervals.variance();
+    }
+
+    // see CASSANDRA-2597 for an explanation of the math at work here.
+    double phi(long current)
+    {
+        assert arrivalIntervals.size() > 0; // should not be called before any samples arrive
+        return current / mean();
+    }
+}
@@ -0,0 +1,469 @@
+package com.cloudian.analytics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * CSVSink writes data records, e.g. sonar.csv, without going through log4j.
+ *
+ * A record is formatted directly into a reusable buffer, and buffered records are written
+ * in blocks to a FileChannel when the buffer is nearly full, or every FLUSH_INTERVAL_IN_MILLIS.
+ * Nothing is allocated per record, except when the minute changes.
+ *
+ * Files are laid out as log4j used to do. Each record starts with a timestamp in the ISO8601 format of log4j,
+ * and a file is rolled over daily and at MAX_FILE_SIZE into logs/yyyy-MM/name-MM-dd-yyyy-i.csv.gz.
+ *
+ * Records are timestamped by the clock of a sink, which is the system clock except for a ReplayEngine.
+ *
+ * A record is written while holding the lock of a sink, as follows.
+ * synchronized (sink) {
+ *     sink.begin().append(host).delim().append(duration).end();
+ * }
+ *
+ */
+public class CSVSink implements Closeable {
+
+	private static final Logger logger = LogManager.getLogger(CSVSink.class);
+
+	static final String DIRECTORY_PROPERTY = "cloudsonar.logs";
+	static final String DEFAULT_DIRECTORY = "logs";
+	static final String SUFFIX = ".csv";
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int MAX_RECORD_SIZE = 1 << 12;
+	static final long MAX_FILE_SIZE = 100L * 1024 * 1024;
+	static final long FLUSH_INTERVAL_IN_MILLIS = 1000;
+
+	private static final byte[] DELIM = CSVUpdateHandler.DELIM.getBytes();
+	private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+
+	// flushes all the sinks
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(new ProbeEngine.DaemonThreadFactory("sonar-csv-flush"));
+	// compresses rolled over files, which takes seconds for a large file, so as not to hold up flushing
+	private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(new ProbeEngine.DaemonThreadFactory("sonar-csv-compress"));
+	private static final Map<String, CSVSink> sinks = new HashMap<String, CSVSink>();
+
+	static {
+		// buffered records are written out on exit
+		Runtime.getRuntime().addShutdownHook(new Thread("sonar-csv-close") {
+			@Override
+			public void run() {
+				synchronized (CSVSink.class) {
+					for (CSVSink sink : sinks.values()) {
+						sink.close();
+					}
+				}
+			}
+		});
+	}
+
+	private final File directory;
+	private final String name;
+	private final File file;
+	private final long maxFileSize;
+	private final LongSupplier clock;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte[] digits = new byte[20];
+	private final ScheduledFuture<?> flushing;
+
+	// guarded by this
+	private FileChannel channel;
+	private long fileSize;
+	private final Calendar calendar = Calendar.getInstance();
+	// yyyy-MM-ddTHH:mm: of the current minute
+	private final byte[] minutePrefix = new byte[17];
+	private long minuteStart = 0;
+	// yyyyMMdd of the current minute and of the current file
+	private int today, fileDay;
+
+	CSVSink(File directory, String name, long maxFileSize) {
+		this(directory, name, maxFileSize, System::currentTimeMillis);
+	}
+
+	/**
+	 * @param clock the current time in milli seconds
+	 */
+	CSVSink(File directory, String name, long maxFileSize, LongSupplier clock) {
+
+		this.directory = directory;
+		this.name = name;
+		this.file = new File(directory, name + SUFFIX);
+		this.maxFileSize = maxFileSize;
+		this.clock = clock;
+
+		this.flushing = FLUSHER.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL_IN_MILLIS, FLUSH_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * @return a sink of a given name, e.g. sonar for logs/sonar.csv, shared in this process
+	 */
+	public static synchronized CSVSink get(String name) {
+
+		CSVSink sink = sinks.get(name);
+		if (sink == null) {
+			sink = new CSVSink(new File(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY)), name, MAX_FILE_SIZE);
+			sinks.put(name, sink);
+		}
+
+		return sink;
+
+	}
+
+	/**
+	 * Starts a record with the current time and a delimiter.
+	 */
+	public CSVSink begin() {
+		return this.begin(this.clock.getAsLong());
+	}
+
+	/**
+	 * Starts a record with a given time in milli seconds and a delimiter.
+	 */
+	public CSVSink begin(long now) {
+
+		if (now < this.minuteStart || now - this.minuteStart >= 60000) {
+			this.updateMinute(now);
+		}
+
+		if (this.buffer.remaining() < MAX_RECORD_SIZE) {
+			this.write();
+		}
+
+		if (this.channel == null || this.today != this.fileDay || this.fileSize >= this.maxFileSize) {
+			this.roll();
+		}
+
+		long elapsed = now - this.minuteStart;
+		this.put(this.minutePrefix);
+		this.putDigits(elapsed / 1000, 2);
+		this.put((byte) ',');
+		this.putDigits(elapsed % 1000, 3);
+		this.put(DELIM);
+
+		return this;
+
+	}
+
+	public CSVSink delim() {
+		this.put(DELIM);
+		return this;
+	}
+
+	/**
+	 * Appends ASCII characters, others are replaced with ?
+	 */
+	public CSVSink append(CharSequence value) {
+
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			this.put(c < 0x80 ? (byte) c : (byte) '?');
+		}
+
+		return this;
+
+	}
+
+	public CSVSink append(long value) {
+
+		if (value == Long.MIN_VALUE) {
+			return this.append(Long.toString(value));
+		}
+
+		if (value < 0) {
+			this.put((byte) '-');
+			value = -value;
+		}
+
+		int position = this.digits.length;
+		do {
+			this.digits[--position] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+
+		for (int i = position; i < this.digits.length; i++) {
+			this.put(this.digits[i]);
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * Appends a value with up to a given number of fraction digits without trailing zeros,
+	 * as DecimalFormat("#.##") does for 2.
+	 */
+	public CSVSink append(double value, int fractionDigits) {
+
+		if (Double.isNaN(value)) {
+			return this.append("NaN");
+		}
+
+		if (Double.isInfinite(value)) {
+			return this.append(value > 0 ? "Infinity" : "-Infinity");
+		}
+
+		long scale = POWERS_OF_TEN[fractionDigits];
+		double scaled = Math.rint(Math.abs(value) * scale);
+		if (scaled >= Long.MAX_VALUE) {
+			return this.append((long) value);
+		}
+
+		long units = (long) scaled;
+		if (value < 0 && units != 0) {
+			this.put((byte) '-');
+		}
+		this.append(units / scale);
+
+		long fraction = units % scale;
+		if (fraction != 0) {
+			int length = fractionDigits;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				length--;
+			}
+			this.put((byte) '.');
+			this.putDigits(fraction, length);
+		}
+
+		return this;
+
+	}
+
+	/**
+	 * Ends a record with a new line.
+	 */
+	public void end() {
+		// put always leaves room for this
+		this.buffer.put((byte) '\n');
+	}
+
+	/**
+	 * Writes buffered records to the file.
+	 */
+	public synchronized void flush() {
+		this.write();
+	}
+
+	@Override
+	public synchronized void close() {
+
+		this.flushing.cancel(false);
+		this.write();
+
+		if (this.channel != null) {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				logger.error("failed to close " + this.file, e);
+			}
+			this.channel = null;
+		}
+
+	}
+
+	private void put(byte b) {
+		// a record longer than the space left is truncated, one byte is left for a new line
+		if (this.buffer.remaining() > 1) {
+			this.buffer.put(b);
+		}
+	}
+
+	private void put(byte[] bytes) {
+		for (byte b : bytes) {
+			this.put(b);
+		}
+	}
+
+	private void putDigits(long value, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			this.put((byte) ('0' + value / POWERS_OF_TEN[i] % 10));
+		}
+	}
+
+	private void updateMinute(long now) {
+
+		this.calendar.setTimeInMillis(now);
+		this.minuteStart = now - this.calendar.get(Calendar.SECOND) * 1000 - this.calendar.get(Calendar.MILLISECOND);
+
+		int year = this.calendar.get(Calendar.YEAR);
+		int month = this.calendar.get(Calendar.MONTH) + 1;
+		int day = this.calendar.get(Calendar.DAY_OF_MONTH);
+		this.today = year * 10000 + month * 100 + day;
+
+		ByteBuffer prefix = ByteBuffer.wrap(this.minutePrefix);
+		putDigits(prefix, year, 4);
+		prefix.put((byte) '-');
+		putDigits(prefix, month, 2);
+		prefix.put((byte) '-');
+		putDigits(prefix, day, 2);
+		prefix.put((byte) 'T');
+		putDigits(prefix, this.calendar.get(Calendar.HOUR_OF_DAY), 2);
+		prefix.put((byte) ':');
+		putDigits(prefix, this.calendar.get(Calendar.MINUTE), 2);
+		prefix.put((byte) ':');
+
+	}
+
+	private static void putDigits(ByteBuffer buffer, int value, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			buffer.put((byte) ('0' + value / POWERS_OF_TEN[i] % 10));
+		}
+	}
+
+	private void write() {
+
+		this.buffer.flip();
+
+		try {
+
+			if (this.buffer.hasRemaining() && this.channel == null) {
+				this.open();
+			}
+
+			while (this.buffer.hasRemaining()) {
+				this.fileSize += this.channel.write(this.buffer);
+			}
+
+		} catch (IOException e) {
+			logger.error("failed to write " + this.buffer.remaining() + " bytes to " + this.file, e);
+		} finally {
+			this.buffer.clear();
+		}
+
+	}
+
+	private void open() throws IOException {
+
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("failed to create " + this.directory);
+		}
+
+		this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.fileSize = this.channel.size();
+
+		// a file left by a previous run belongs to the day it was last written
+		Calendar modified = Calendar.getInstance();
+		modified.setTimeInMillis(this.fileSize > 0 ? this.file.lastModified() : this.clock.getAsLong());
+		this.fileDay = modified.get(Calendar.YEAR) * 10000 + (modified.get(Calendar.MONTH) + 1) * 100 + modified.get(Calendar.DAY_OF_MONTH);
+
+	}
+
+	/**
+	 * Moves the current file into logs/yyyy-MM/name-MM-dd-yyyy-i.csv, which is compressed in the background.
+	 */
+	private void roll() {
+
+		this.write();
+
+		try {
+
+			if (this.channel == null) {
+				this.open();
+				if (this.fileDay == this.today && this.fileSize < this.maxFileSize) {
+					return;
+				}
+			}
+
+			this.channel.close();
+			this.channel = null;
+
+			if (this.fileSize > 0) {
+
+				int year = this.fileDay / 10000;
+				String month = pad(this.fileDay / 100 % 100);
+				String day = pad(this.fileDay % 100);
+
+				File archiveDirectory = new File(this.directory, year + "-" + month);
+				archiveDirectory.mkdirs();
+
+				int index = 1;
+				File archive;
+				do {
+					archive = new File(archiveDirectory, this.name + "-" + month + "-" + day + "-" + year + "-" + index++ + SUFFIX);
+				} while (archive.exists() || new File(archive.getPath() + ".gz").exists());
+
+				if (this.file.renameTo(archive)) {
+					final File rolled = archive;
+					COMPRESSOR.execute(new Runnable() {
+						@Override
+						public void run() {
+							compress(rolled);
+						}
+					});
+				} else {
+					logger.error("failed to roll over " + this.file + " to " + archive);
+				}
+
+			}
+
+			this.open();
+			this.fileDay = this.today;
+
+		} catch (IOException e) {
+			logger.error("failed to roll over " + this.file, e);
+		}
+
+	}
+
+	private static String pad(int value) {
+		return value < 10 ? "0" + value : Integer.toString(value);
+	}
+
+	static void compress(File file) {
+
+		File compressed = new File(file.getPath() + ".gz");
+
+		try {
+
+			InputStream in = new FileInputStream(file);
+			try {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed));
+				try {
+					byte[] bytes = new byte[BUFFER_SIZE];
+					int read;
+					while ((read = in.read(bytes)) > 0) {
+						out.write(bytes, 0, read);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+
+			file.delete();
+
+		} catch (IOException e) {
+			logger.error("failed to compress " + file, e);
+		}
+
+	}
+
+}
@@ -1,38 +1,51 @@
 package com.cloudian.analytics;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
 import com.cloudian.analytics.PollingStatus.Status;
 
 public class CSVUpdateHandler implements PollingUpdateHandler {
 	
-	private static final Logger logger = LogManager.getLogger(CSVUpdateHandler.class);
 	static final String DELIM = ", ";
 	
+	private final CSVSink sink;
+	private final HostRegistry registry = HostRegistry.getDefault();
+	
 	public CSVUpdateHandler() {
-		// default constructor
+		this(CSVSink.get("sonar"));
+	}
+	
+	CSVUpdateHandler(CSVSink sink) {
+		this.sink = sink;
 	}
 
 	@Override
-	public void updateStatus(PollingJob job) {
+	public void updateStatus(PollingEvent event) {
 		
-		if (!job.pollingStatus.isStopped()) {
+		PollingStatus pollingStatus = event.pollingStatus();
+		
+		if (!pollingStatus.isStopped()) {
 			return;
 		}
 		
-		StringBuffer sb = new StringBuffer(job.host.getHostName());
-		sb.append(DELIM);
-		
-		if (job.pollingStatus.status.equals(Status.FINISHED)) {
-			sb.append(job.pollingStatus.duration());
-		} else {
-			// error
-			sb.append(job.pollingStatus.error);
+		synchronized (this.sink) {
+			
+			this.sink.begin().append(this.registry.name(this.registry.id(event))).delim();
+			
+			if (pollingStatus.status.equals(Status.FINISHED)) {
+				this.sink.append(pollingStatus.duration());
+				// only for a polling method that records it
+				long ttfb = pollingStatus.timeToFirstByte();
+				if (ttfb > -1) {
+					this.sink.delim().append(ttfb);
+				}
+			} else {
+				// error
+				this.sink.append(pollingStatus.error);
+			}
+			
+			this.sink.end();
+			
 		}
 		
-		logger.info(sb.toString());
-		
 	}
 
 }
@@ -0,0 +1,263 @@
+package com.cloudian.analytics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Checkpoint saves the learned state of every host to a file periodically, and restores it at startup
+ * so that a restart does not have to learn everything again.
+ *
+ * A host is saved with the samples of its FailureDetectorUpdateHandler window,
+ * and the inputs given to its HTM network, which are replayed into a new network when restored.
+ * Hosts are keyed by the name or the address given, since host ids may change across restarts.
+ *
+ * A checkpoint is written to a temporary file host by host, each of which is copied under its own lock,
+ * so probes and handlers are never paused. The file is replaced atomically when completed,
+ * and written once more on exit.
+ *
+ */
+public class Checkpoint {
+
+	private static final Logger logger = LogManager.getLogger(Checkpoint.class);
+
+	static final int MAGIC = 0x534F4E43;
+	static final int VERSION = 1;
+	static final long DEFAULT_INTERVAL_IN_SECONDS = 300;
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File file;
+	private final HostRegistry registry;
+	private final FailureDetectorUpdateHandler failureDetector;
+	private final HTMAnomalyDetector anomalyDetector;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ProbeEngine.DaemonThreadFactory("sonar-checkpoint"));
+
+	public Checkpoint(File file, FailureDetectorUpdateHandler failureDetector, HTMAnomalyDetector anomalyDetector) {
+		this(file, HostRegistry.getDefault(), failureDetector, anomalyDetector);
+	}
+
+	Checkpoint(File file, HostRegistry registry, FailureDetectorUpdateHandler failureDetector, HTMAnomalyDetector anomalyDetector) {
+		this.file = file;
+		this.registry = registry;
+		this.failureDetector = failureDetector;
+		this.anomalyDetector = anomalyDetector;
+	}
+
+	/**
+	 * Restores the registered hosts found in the file, if any.
+	 * This must be called before the hosts are polled.
+	 * @return the number of hosts restored
+	 */
+	public int restore() throws IOException {
+
+		if (!this.file.exists()) {
+			return 0;
+		}
+
+		Map<String, HostState> states = load(this.file);
+		int restored = 0;
+
+		for (int id = 0; id < this.registry.size(); id++) {
+
+			HostState state = states.get(this.registry.key(id));
+			if (state == null) {
+				continue;
+			}
+
+			state.restore(id, this.registry.address(id), this.failureDetector, this.anomalyDetector);
+			restored++;
+
+		}
+
+		logger.info("restored " + restored + " of " + states.size() + " hosts from " + this.file);
+
+		return restored;
+
+	}
+
+	/**
+	 * Saves every interval and on exit.
+	 */
+	public void start(long intervalInSeconds) {
+
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				Checkpoint.this.saveQuietly();
+			}
+		}, intervalInSeconds, intervalInSeconds, TimeUnit.SECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("sonar-checkpoint-exit") {
+			@Override
+			public void run() {
+				Checkpoint.this.executor.shutdownNow();
+				Checkpoint.this.saveQuietly();
+			}
+		});
+
+	}
+
+	private synchronized void saveQuietly() {
+
+		try {
+			this.save();
+		} catch (IOException e) {
+			logger.warn("failed to save a checkpoint to " + this.file, e);
+		}
+
+	}
+
+	/**
+	 * @return the number of hosts saved
+	 */
+	int save() throws IOException {
+
+		File temp = new File(this.file.getPath() + TEMP_SUFFIX);
+		int saved = 0;
+
+		try (FileOutputStream fos = new FileOutputStream(temp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+
+			for (int id = 0; id < this.registry.size(); id++) {
+
+				long[] samples = this.failureDetector.getSamples(id);
+				HTMHistory history = this.anomalyDetector.getHistory(id);
+				if (samples == null && history == null) {
+					continue;
+				}
+
+				out.writeBoolean(true);
+				write(out, this.registry.key(id), samples, history);
+				saved++;
+
+			}
+
+			out.writeBoolean(false);
+			out.flush();
+			fos.getFD().sync();
+
+		}
+
+		Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.debug("saved " + saved + " hosts to " + this.file);
+
+		return saved;
+
+	}
+
+	/**
+	 * @return the states of hosts by their keys
+	 */
+	static Map<String, HostState> load(File file) throws IOException {
+
+		Map<String, HostState> states = new HashMap<String, HostState>();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a checkpoint");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported version " + version + " of " + file);
+			}
+			in.readLong();
+
+			while (in.readBoolean()) {
+				HostState state = read(in);
+				states.put(state.key, state);
+			}
+
+		}
+
+		return states;
+
+	}
+
+	/**
+	 * Writes the state of a host, which is also how a ShardCoordinator hands it over to another agent.
+	 * @param samples null if none
+	 * @param history null if none
+	 */
+	static void write(DataOutput out, String key, long[] samples, HTMHistory history) throws IOException {
+
+		out.writeUTF(key);
+
+		if (samples == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(samples.length);
+			for (long sample : samples) {
+				out.writeLong(sample);
+			}
+		}
+
+		if (history == null) {
+			out.writeInt(0);
+		} else {
+			history.write(out);
+		}
+
+	}
+
+	static HostState read(DataInput in) throws IOException {
+
+		String key = in.readUTF();
+
+		long[] samples = new long[in.readInt()];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = in.readLong();
+		}
+
+		return new HostState(key, samples, HTMHistory.read(in));
+
+	}
+
+	static class HostState {
+
+		final String key;
+		final long[] samples;
+		final HTMHistory history;
+
+		HostState(String key, long[] samples, HTMHistory history) {
+			this.key = key;
+			this.samples = samples;
+			this.history = history;
+		}
+
+		void restore(int hostId, InetAddress address, FailureDetectorUpdateHandler failureDetector, HTMAnomalyDetector anomalyDetector) {
+
+			if (this.samples.length > 0) {
+				failureDetector.restore(hostId, this.samples);
+			}
+			if (this.history.size() > 0) {
+				anomalyDetector.restore(hostId, address, this.history);
+			}
+
+		}
+
+	}
+
+}
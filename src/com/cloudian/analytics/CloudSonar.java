@@ -1,7 +1,15 @@
 package com.cloudian.analytics;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,11 +21,29 @@ import org.apache.logging.log4j.Logger;
  * 
  * A polling method(e.g. PING, HTTP HEAD) and update handlers are pluggable.
  * 
- * SimplePingPollingStrategy is available as a default polling method.
+ * SimplePingPollingStrategy is available as a default polling method,
+ * and TcpConnect, UdpEcho, HttpHead and Simulated polling strategies with -Dcloudsonar.strategy.
  * 
- * The following two handlers are available by default.
+ * The following four handlers are available by default.
  * 1. CSVUpdateHandler
  * 2. FailureDetectorUpdateHandler
+ * 3. WindowedAggregator, which feeds an HTMAnomalyDetector
+ * 4. LatencyHistogramHandler
+ * 
+ * HTMAnomalyDetector is given a duration of each host per window by a WindowedAggregator, and runs on an HTMComputePool.
+ * LatencyHistogramHandler writes tail latencies of each host.
+ * TimeSeriesUpdateHandler stores samples in a TimeSeriesStore, and is added with -Dcloudsonar.store.
+ * Checkpoint saves and restores the failure detector windows and HTM inputs of hosts.
+ * Polling jobs run on a ProbeEngine of platform or virtual threads.
+ * Handlers run behind a HandlerDispatcher, so they never delay probes.
+ * Hosts are registered in a HostRegistry, which refreshes their names and addresses in the background.
+ * Metrics and a HealthTable of hosts are served as plain text over HTTP.
+ * A MeshAgent gossips node to node health among the members of a mesh.
+ * A ShardCoordinator splits the hosts among the members of a mesh.
+ * A PollingScheduler polls each host on its own interval, which an AdaptiveRateController adjusts within a budget.
+ * Logs of a previous run can be replayed through the same detectors by a ReplayEngine.
+ * 
+ * See README.md for the system properties of each.
  * 
  * @author tsato
  *
@@ -28,47 +54,350 @@ public class CloudSonar {
 	
 	static final long POLLING_INTERVAL_IN_SECONDS = 1;
 	
+	static final String ENGINE_PROPERTY = "cloudsonar.engine";
+	static final String ENGINE_SIZE_PROPERTY = "cloudsonar.engine.size";
+	static final String STRATEGY_PROPERTY = "cloudsonar.strategy";
+	static final String TCP_PORT_PROPERTY = "cloudsonar.tcp.port";
+	static final String UDP_PORT_PROPERTY = "cloudsonar.udp.port";
+	static final String HTTP_PORT_PROPERTY = "cloudsonar.http.port";
+	static final String HTTP_SECURE_PROPERTY = "cloudsonar.http.secure";
+	static final String HTTP_PATH_PROPERTY = "cloudsonar.http.path";
+	
+	static final String SIMULATED_HOSTS_PROPERTY = "cloudsonar.simulated.hosts";
+	static final String SIMULATED_MIN_PROPERTY = "cloudsonar.simulated.min";
+	static final String SIMULATED_MEAN_PROPERTY = "cloudsonar.simulated.mean";
+	static final int DEFAULT_SIMULATED_HOSTS = 1000;
+	
+	static final String STORE_PROPERTY = "cloudsonar.store";
+	static final String CHECKPOINT_PROPERTY = "cloudsonar.checkpoint";
+	static final String CHECKPOINT_INTERVAL_PROPERTY = "cloudsonar.checkpoint.interval";
+	static final String HTM_BUDGET_PROPERTY = "cloudsonar.htm.budget";
+	static final String HTM_HIBERNATE_PROPERTY = "cloudsonar.htm.hibernate";
+	static final String HTM_THREADS_PROPERTY = "cloudsonar.htm.threads";
+	static final String HTM_QUEUE_PROPERTY = "cloudsonar.htm.queue";
+	static final String WINDOW_UNIT_PROPERTY = "cloudsonar.window.unit";
+	static final String WINDOW_SIZE_PROPERTY = "cloudsonar.window.size";
+	static final String WINDOW_SLIDE_PROPERTY = "cloudsonar.window.slide";
+	static final String WINDOW_REDUCER_PROPERTY = "cloudsonar.window.reducer";
+	static final String DNS_TTL_PROPERTY = "cloudsonar.dns.ttl";
+	static final String LATENCY_INTERVAL_PROPERTY = "cloudsonar.latency.interval";
+	static final String LATENCY_WINDOW_PROPERTY = "cloudsonar.latency.window";
+	static final String DISPATCH_CAPACITY_PROPERTY = "cloudsonar.dispatch.capacity";
+	static final String DISPATCH_POLICY_PROPERTY = "cloudsonar.dispatch.policy.";
+	static final String METRICS_PORT_PROPERTY = "cloudsonar.metrics.port";
+	static final String HEALTH_PHI_PROPERTY = "cloudsonar.health.phi";
+	static final String HEALTH_ANOMALY_PROPERTY = "cloudsonar.health.anomaly";
+	static final String MESH_MEMBERS_PROPERTY = "cloudsonar.mesh.members";
+	static final String MESH_SELF_PROPERTY = "cloudsonar.mesh.self";
+	static final String MESH_INTERVAL_PROPERTY = "cloudsonar.mesh.interval";
+	static final String MESH_FANOUT_PROPERTY = "cloudsonar.mesh.fanout";
+	static final String MESH_BYTES_PROPERTY = "cloudsonar.mesh.bytes";
+	static final String SHARD_REPLICAS_PROPERTY = "cloudsonar.shard.replicas";
+	static final String SHARD_TIMEOUT_PROPERTY = "cloudsonar.shard.timeout";
+	static final String ADAPTIVE_BUDGET_PROPERTY = "cloudsonar.adaptive.budget";
+	static final String ADAPTIVE_MAX_PROPERTY = "cloudsonar.adaptive.max";
+	static final String INTERVAL_DELIM = "@";
+	static final String HEALTH_PATH = "/health";
+	static final String MESH_PATH = "/mesh";
+	static final String SHARD_PATH = "/shard";
+	static final String RATES_PATH = "/rates";
+	static final String MEMBER_DELIM = ",";
+	
 	private final String[] hosts;
+	private final long[] intervals;
 	private PollingStrategy pollingStrategy;
+	private PollingScheduler scheduler;
+	private Checkpoint checkpoint;
+	private MetricsServer metricsServer;
+	private String[] meshMembers;
+	private int meshSelf = -1;
+	private MeshAgent mesh;
+	// the first hosts, which are given, not the members
+	private int sharded;
+	private ShardCoordinator shard;
+	private AdaptiveRateController adaptive;
+	private FailureDetectorUpdateHandler failureDetector;
+	private HTMAnomalyDetector anomalyDetector;
 	
 	private CloudSonar(String[] hosts) {
 		
-		this.hosts = hosts;
+		this.sharded = hosts.length;
+		
+		String members = System.getProperty(MESH_MEMBERS_PROPERTY);
+		if (members != null) {
+			// the other members are polled as hosts
+			this.meshMembers = members.trim().split("\\s*" + MEMBER_DELIM + "\\s*");
+			this.meshSelf = Arrays.asList(this.meshMembers).indexOf(System.getProperty(MESH_SELF_PROPERTY));
+			if (this.meshSelf < 0) {
+				throw new IllegalArgumentException(MESH_SELF_PROPERTY + " must be one of " + members);
+			}
+			List<String> polled = new ArrayList<String>(Arrays.asList(hosts));
+			for (int i = 0; i < this.meshMembers.length; i++) {
+				String host = memberHost(this.meshMembers[i]);
+				if (i != this.meshSelf && !polled.contains(host)) {
+					polled.add(host);
+				}
+			}
+			hosts = polled.toArray(new String[polled.size()]);
+		}
+		
+		if (hosts.length == 0 && "simulated".equals(System.getProperty(STRATEGY_PROPERTY))) {
+			hosts = new String[Integer.getInteger(SIMULATED_HOSTS_PROPERTY, DEFAULT_SIMULATED_HOSTS)];
+			for (int i = 0; i < hosts.length; i++) {
+				hosts[i] = "sim-" + i;
+			}
+		}
+		
+		this.hosts = new String[hosts.length];
+		this.intervals = new long[hosts.length];
+		
+		for (int i = 0; i < hosts.length; i++) {
+			
+			int delim = hosts[i].lastIndexOf(INTERVAL_DELIM);
+			if (delim < 0) {
+				this.hosts[i] = hosts[i];
+				this.intervals[i] = POLLING_INTERVAL_IN_SECONDS * 1000;
+			} else {
+				this.hosts[i] = hosts[i].substring(0, delim);
+				this.intervals[i] = Long.parseLong(hosts[i].substring(delim + 1));
+			}
+			
+		}
 		
 	}
 	
-	private InetAddress[] configure() throws UnknownHostException {
+	private InetAddress[] configure() throws IOException {
 		
 		//construct PollingStrategy
-		this.pollingStrategy = new SimplePingPollingStrategy(this.createHandlers());
+		this.pollingStrategy = this.createStrategy(this.createHandlers(), this.createEngine());
+		this.scheduler = new PollingScheduler(this.pollingStrategy);
+		
+		Metrics.getDefault().registerMBean();
+		Integer metricsPort = Integer.getInteger(METRICS_PORT_PROPERTY);
+		if (metricsPort != null) {
+			this.metricsServer = new MetricsServer(metricsPort, Metrics.getDefault());
+			final HealthTable health = HealthTable.getDefault();
+			this.metricsServer.serve(HEALTH_PATH, () -> health.snapshot().toText());
+			this.metricsServer.serve(HEALTH_PATH + "/attention", () -> health.snapshot().toAttentionText());
+		}
 		
 		// resolve hosts
 		InetAddress[] addresses = new InetAddress[this.hosts.length];
 		for (int i = 0; i<this.hosts.length; i++) {
-			addresses[i] = InetAddress.getByName(hosts[i]);
+			if (this.pollingStrategy instanceof SimulatedPollingStrategy) {
+				addresses[i] = HostRegistry.localAddress(hosts[i]);
+			} else {
+				addresses[i] = InetAddress.getByName(hosts[i]);
+			}
+		}
+		
+		if (this.meshMembers != null) {
+			this.mesh = this.createMesh();
+			if (this.metricsServer != null) {
+				final MeshAgent mesh = this.mesh;
+				final HealthTable health = HealthTable.getDefault();
+				this.metricsServer.serve(MESH_PATH, () -> mesh.getMatrix().toText(health));
+			}
+		}
+		
+		Integer replicas = Integer.getInteger(SHARD_REPLICAS_PROPERTY);
+		if (replicas != null) {
+			if (this.mesh == null) {
+				throw new IllegalArgumentException(SHARD_REPLICAS_PROPERTY + " needs " + MESH_MEMBERS_PROPERTY);
+			}
+			this.shard = new ShardCoordinator(this.mesh, Arrays.copyOf(addresses, this.sharded), Arrays.copyOf(this.intervals, this.sharded), replicas,
+					Long.getLong(MESH_INTERVAL_PROPERTY, MeshAgent.DEFAULT_INTERVAL_IN_MILLIS),
+					Long.getLong(SHARD_TIMEOUT_PROPERTY, ShardCoordinator.DEFAULT_TIMEOUT_IN_MILLIS),
+					this.scheduler, this.failureDetector, this.anomalyDetector);
+			if (this.metricsServer != null) {
+				final ShardCoordinator shard = this.shard;
+				this.metricsServer.serve(SHARD_PATH, () -> shard.toText());
+			}
+		}
+		
+		String budget = System.getProperty(ADAPTIVE_BUDGET_PROPERTY);
+		if (budget != null) {
+			String maxFactor = System.getProperty(ADAPTIVE_MAX_PROPERTY);
+			this.adaptive = new AdaptiveRateController(this.scheduler, this.failureDetector, Double.parseDouble(budget),
+					maxFactor == null ? AdaptiveRateController.DEFAULT_MAX_FACTOR : Double.parseDouble(maxFactor));
+			if (this.metricsServer != null) {
+				final AdaptiveRateController adaptive = this.adaptive;
+				this.metricsServer.serve(RATES_PATH, () -> adaptive.toText());
+			}
+		}
+		
+		if (this.metricsServer != null) {
+			this.metricsServer.start();
+		}
+		
+		if (this.checkpoint != null) {
+			// registered in advance to be restored by their ids
+			for (InetAddress address : addresses) {
+				HostRegistry.getDefault().register(address);
+			}
+			this.checkpoint.restore();
+			this.checkpoint.start(Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, Checkpoint.DEFAULT_INTERVAL_IN_SECONDS));
 		}
 		
 		return addresses;
 	}
 	
-	private PollingUpdateHandler[] createHandlers() {
-		return new PollingUpdateHandler[]{new CSVUpdateHandler(), new FailureDetectorUpdateHandler(), new HTMAnomalyDetector()};
+	private MeshAgent createMesh() throws IOException {
+		
+		List<InetSocketAddress> members = new ArrayList<InetSocketAddress>();
+		int[] hostIds = new int[this.meshMembers.length];
+		for (int i = 0; i < this.meshMembers.length; i++) {
+			String member = this.meshMembers[i];
+			int delim = member.lastIndexOf(':');
+			if (delim < 0) {
+				throw new IllegalArgumentException("a member must be host:port, but " + member);
+			}
+			members.add(new InetSocketAddress(member.substring(0, delim), Integer.parseInt(member.substring(delim + 1))));
+			hostIds[i] = i == this.meshSelf ? -1 : HostRegistry.getDefault().register(InetAddress.getByName(memberHost(member)));
+		}
+		
+		return new MeshAgent(members, this.meshSelf, HealthTable.getDefault(), hostIds,
+				Long.getLong(MESH_INTERVAL_PROPERTY, MeshAgent.DEFAULT_INTERVAL_IN_MILLIS),
+				Integer.getInteger(MESH_FANOUT_PROPERTY, MeshAgent.DEFAULT_FANOUT),
+				Integer.getInteger(MESH_BYTES_PROPERTY, MeshAgent.DEFAULT_MAX_BYTES));
+		
+	}
+	
+	private static String memberHost(String member) {
+		
+		int delim = member.lastIndexOf(':');
+		return delim < 0 ? member : member.substring(0, delim);
+		
+	}
+	
+	private PollingStrategy createStrategy(PollingUpdateHandler[] handlers, ProbeEngine engine) throws IOException {
+		
+		String strategy = System.getProperty(STRATEGY_PROPERTY, "ping");
+		
+		if ("tcp".equals(strategy)) {
+			return new TcpConnectPollingStrategy(handlers, engine, Integer.getInteger(TCP_PORT_PROPERTY, TcpConnectPollingStrategy.DEFAULT_PORT), TcpConnectPollingStrategy.DEFAULT_TIMEOUT_IN_MILLIS);
+		}
+		
+		if ("udp".equals(strategy)) {
+			return new UdpEchoPollingStrategy(handlers, engine, Integer.getInteger(UDP_PORT_PROPERTY, UdpEchoPollingStrategy.DEFAULT_PORT), UdpEchoPollingStrategy.DEFAULT_TIMEOUT_IN_MILLIS);
+		}
+		
+		if ("simulated".equals(strategy)) {
+			SimulatedPollingStrategy.Latency latency = SimulatedPollingStrategy.Latency.exponential(
+					TimeUnit.MICROSECONDS.toNanos(Long.getLong(SIMULATED_MIN_PROPERTY, SimulatedPollingStrategy.DEFAULT_MIN_LATENCY)),
+					TimeUnit.MICROSECONDS.toNanos(Long.getLong(SIMULATED_MEAN_PROPERTY, SimulatedPollingStrategy.DEFAULT_MEAN_LATENCY)));
+			return new SimulatedPollingStrategy(handlers, engine, latency, SimulatedPollingStrategy.DEFAULT_TIMEOUT_IN_MILLIS);
+		}
+		
+		if ("http".equals(strategy)) {
+			boolean secure = Boolean.getBoolean(HTTP_SECURE_PROPERTY);
+			int port = Integer.getInteger(HTTP_PORT_PROPERTY, secure ? 443 : HttpHeadPollingStrategy.DEFAULT_PORT);
+			return new HttpHeadPollingStrategy(handlers, engine, port, secure, System.getProperty(HTTP_PATH_PROPERTY, HttpHeadPollingStrategy.DEFAULT_PATH), HttpHeadPollingStrategy.DEFAULT_TIMEOUT_IN_MILLIS);
+		}
+		
+		return new SimplePingPollingStrategy(handlers, engine);
+		
+	}
+	
+	private ProbeEngine createEngine() {
+		
+		if ("virtual".equals(System.getProperty(ENGINE_PROPERTY))) {
+			return ProbeEngine.createVirtualEngine(Integer.getInteger(ENGINE_SIZE_PROPERTY, ProbeEngine.DEFAULT_MAX_CONCURRENCY));
+		}
+		
+		return ProbeEngine.createPlatformEngine(Integer.getInteger(ENGINE_SIZE_PROPERTY, ProbeEngine.DEFAULT_POOL_SIZE), ProbeEngine.DEFAULT_QUEUE_SIZE);
+		
+	}
+	
+	private PollingUpdateHandler[] createHandlers() throws IOException {
+		
+		FailureDetectorUpdateHandler failureDetector = new FailureDetectorUpdateHandler();
+		HTMComputePool pool = new HTMComputePool(Integer.getInteger(HTM_THREADS_PROPERTY, HTMComputePool.defaultThreads()),
+				Integer.getInteger(HTM_QUEUE_PROPERTY, HTMComputePool.DEFAULT_QUEUE_SIZE));
+		HTMAnomalyDetector anomalyDetector = new HTMAnomalyDetector(new HTMModelManager(new File(System.getProperty(HTM_HIBERNATE_PROPERTY, HTMModelManager.DEFAULT_DIRECTORY)), htmBudget()), pool);
+		LatencyHistogramHandler latency = new LatencyHistogramHandler(Long.getLong(LATENCY_INTERVAL_PROPERTY, LatencyHistogramHandler.DEFAULT_INTERVAL_IN_MILLIS),
+				Integer.getInteger(LATENCY_WINDOW_PROPERTY, LatencyHistogramHandler.DEFAULT_WINDOW_SIZE));
+		WindowedAggregator aggregator = createAggregator(System::currentTimeMillis);
+		aggregator.subscribe(anomalyDetector);
+		PollingUpdateHandler[] handlers = new PollingUpdateHandler[]{new CSVUpdateHandler(), failureDetector, aggregator, latency};
+		
+		String store = System.getProperty(STORE_PROPERTY);
+		if (store != null) {
+			handlers = Arrays.copyOf(handlers, handlers.length + 1);
+			handlers[handlers.length - 1] = new TimeSeriesUpdateHandler(new TimeSeriesStore(new File(store)), failureDetector, anomalyDetector);
+		}
+		
+		this.failureDetector = failureDetector;
+		this.anomalyDetector = anomalyDetector;
+		
+		String checkpoint = System.getProperty(CHECKPOINT_PROPERTY);
+		if (checkpoint != null) {
+			this.checkpoint = new Checkpoint(new File(checkpoint), failureDetector, anomalyDetector);
+		}
+		
+		HandlerDispatcher.OverflowPolicy[] policies = new HandlerDispatcher.OverflowPolicy[handlers.length];
+		for (int i = 0; i < handlers.length; i++) {
+			String name = handlers[i].getClass().getSimpleName();
+			policies[i] = HandlerDispatcher.OverflowPolicy.valueOf(System.getProperty(DISPATCH_POLICY_PROPERTY + name, "drop_oldest").toUpperCase());
+		}
+		
+		HandlerDispatcher dispatcher = new HandlerDispatcher(handlers, policies, Integer.getInteger(DISPATCH_CAPACITY_PROPERTY, HandlerDispatcher.DEFAULT_CAPACITY));
+		
+		return new PollingUpdateHandler[]{dispatcher};
+	}
+	
+	/**
+	 * @return the heap in bytes for HTM networks, a half of the max heap by default
+	 */
+	static long htmBudget() {
+		return Long.getLong(HTM_BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024)) * 1024 * 1024;
+	}
+	
+	static WindowedAggregator createAggregator(LongSupplier clock) {
+		
+		long windowSize = Long.getLong(WINDOW_SIZE_PROPERTY, WindowedAggregator.DEFAULT_SIZE);
+		
+		return new WindowedAggregator(WindowedAggregator.Unit.valueOf(System.getProperty(WINDOW_UNIT_PROPERTY, "count").toUpperCase()),
+				windowSize, Long.getLong(WINDOW_SLIDE_PROPERTY, windowSize), Reducer.of(System.getProperty(WINDOW_REDUCER_PROPERTY, WindowedAggregator.DEFAULT_REDUCER)),
+				clock);
+		
 	}
 	
 	private void start(InetAddress[] addresses) {
 		
 		logger.debug("polling " + addresses.length + " hosts");
 		
-		for (InetAddress address : addresses) {
+		for (int i = 0; i < addresses.length; i++) {
 			
-			this.pollingStrategy.poll(address);
+			// polled only if owned
+			if (this.shard != null && i < this.sharded) {
+				continue;
+			}
+			this.scheduler.schedule(addresses[i], this.intervals[i]);
 			
 		}
 		
+		if (this.mesh != null) {
+			this.mesh.start();
+		}
+		
+		if (this.shard != null) {
+			this.shard.start();
+		}
+		
+		if (this.adaptive != null) {
+			this.adaptive.start(AdaptiveRateController.DEFAULT_INTERVAL_IN_MILLIS);
+		}
+		
 	}
 
 	public static void main(String[] args) {
 		
+		// simulated hosts keep their names, which are not looked up
+		if ("simulated".equals(System.getProperty(STRATEGY_PROPERTY)) && System.getProperty(DNS_TTL_PROPERTY) == null) {
+			System.setProperty(DNS_TTL_PROPERTY, Long.toString(Long.MAX_VALUE));
+		}
+		
 		final CloudSonar checker = new CloudSonar(args);
 		
 		InetAddress[] addresses = null;
@@ -78,19 +407,18 @@ public class CloudSonar {
 			logger.error("Some host names provided are not resolved.");
 			e.printStackTrace();
 			System.exit(1);
+		} catch (IOException e) {
+			logger.error("Failed to configure a polling strategy.");
+			e.printStackTrace();
+			System.exit(1);
 		}
 		
-		while (true) {
-			
-			checker.start(addresses);
-			
-			try {
-				Thread.sleep(POLLING_INTERVAL_IN_SECONDS * 1000);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			
+		checker.start(addresses);
+		
+		try {
+			checker.scheduler.awaitStop();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
 		
 	}
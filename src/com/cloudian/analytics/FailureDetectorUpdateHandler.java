@@ -17,14 +17,8 @@
  */
 package com.cloudian.analytics;
 
-import java.net.InetAddress;
-import java.text.DecimalFormat;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -40,6 +34,9 @@ import com.cloudian.analytics.PollingStatus.Status;
  * ArrivalWindow is a modified version of org.apache.cassandra.gmt.FailureDetector#ArrivalWindow.
  * BoundedStatsDeque is the same as org.apache.cassandra.util.BoundedStatsDeque.
  * 
+ * ArrivalWindow keeps its samples in a StatsRingBuffer instead of BoundedStatsDeque,
+ * which is left for comparison.
+ * 
  * @author tsato
  *
  */
@@ -47,153 +44,186 @@ public class FailureDetectorUpdateHandler implements PollingUpdateHandler {
 	
 	private static final Logger logger = LogManager.getLogger(FailureDetectorUpdateHandler.class);
 	private static final int SAMPLE_SIZE = 1000;
-	private static final DecimalFormat FORMAT = new DecimalFormat("#.##");
+	// as #.##
+	private static final int PHI_FRACTION_DIGITS = 2;
 	
-	private final Map<InetAddress, ArrivalWindow> arrivalSamples = new Hashtable<InetAddress, ArrivalWindow>();
+	// by host id, replaced by restore and remove only under the lock of this table,
+	// as the handler thread adds samples to the window it finds
+	private final HostTable<ArrivalWindow> arrivalSamples = new HostTable<ArrivalWindow>();
+	private final HostRegistry registry = HostRegistry.getDefault();
+	private final HealthTable health = HealthTable.getDefault();
+	private final CSVSink sink;
 	
 	public FailureDetectorUpdateHandler() {
-		// default constructor	
+		this(CSVSink.get("fd"));
+	}
+	
+	FailureDetectorUpdateHandler(CSVSink sink) {
+		this.sink = sink;
 	}
 	
-	public long getMean(InetAddress address) {
+	public long getMean(int hostId) {
 		
-		ArrivalWindow window = this.arrivalSamples.get(address);
+		double meanInNano = this.getMeanInNano(hostId);
 		
-		if (window == null) {
+		if (Double.isNaN(meanInNano)) {
 			return 0;
 		}
 		
-		long meanInNano = Double.valueOf(window.mean()).longValue();
-		return TimeUnit.MILLISECONDS.convert(meanInNano, TimeUnit.NANOSECONDS);
+		return TimeUnit.MILLISECONDS.convert(Double.valueOf(meanInNano).longValue(), TimeUnit.NANOSECONDS);
+		
+	}
+	
+	/**
+	 * @return the mean of the samples of a host in nano seconds, NaN if none
+	 */
+	double getMeanInNano(int hostId) {
+		
+		ArrivalWindow window = this.arrivalSamples.get(hostId);
+		return window == null ? Double.NaN : window.mean();
+		
+	}
+	
+	/**
+	 * @return the variance of the samples of a host in nano seconds squared, NaN if none
+	 */
+	double getVariance(int hostId) {
+		
+		ArrivalWindow window = this.arrivalSamples.get(hostId);
+		return window == null ? Double.NaN : window.variance();
+		
+	}
+
+	/**
+	 * @return PHI of a given duration against the current samples of a host, NaN if none
+	 */
+	public double getPhi(int hostId, long durationInNano) {
+		
+		ArrivalWindow window = this.arrivalSamples.get(hostId);
+		
+		if (window == null) {
+			return Double.NaN;
+		}
+		
+		return ArrivalWindow.PHI_FACTOR * window.phi(durationInNano);
+		
+	}
+
+	/**
+	 * @return a copy of the samples of a host from the oldest to the newest, null if none
+	 */
+	long[] getSamples(int hostId) {
+		
+		ArrivalWindow window = this.arrivalSamples.get(hostId);
+		
+		if (window == null) {
+			return null;
+		}
+		
+		long[] samples = new long[SAMPLE_SIZE];
+		return Arrays.copyOf(samples, window.snapshot(samples));
+		
+	}
+	
+	/**
+	 * Replaces the samples of a host with ones of a previous run, or ones handed over by another member.
+	 */
+	void restore(int hostId, long[] samples) {
+		
+		ArrivalWindow window = new ArrivalWindow(SAMPLE_SIZE);
+		for (long sample : samples) {
+			window.add(sample);
+		}
+		synchronized (this.arrivalSamples) {
+			this.arrivalSamples.set(hostId, window);
+		}
+		
+	}
+	
+	/**
+	 * Releases the samples of a host no longer polled.
+	 */
+	void remove(int hostId) {
+		
+		synchronized (this.arrivalSamples) {
+			this.arrivalSamples.set(hostId, null);
+		}
 		
 	}
 
 	@Override
-	public void updateStatus(PollingJob job) {
+	public void updateStatus(PollingEvent event) {
 		
-		if (job.pollingStatus.status.equals(Status.NOT_STARTED) || job.pollingStatus.status.equals(Status.ERROR)) {
+		PollingStatus pollingStatus = event.pollingStatus();
+		
+		if (pollingStatus.status.equals(Status.NOT_STARTED)) {
 			// do nothing for now
 			return;
 		}
 		
-		ArrivalWindow heartbeatWindow = this.arrivalSamples.get(job.host);
+		int hostId = this.registry.id(event);
+		ArrivalWindow heartbeatWindow = this.arrivalSamples.get(hostId);
+		
+		if (pollingStatus.status.equals(Status.ERROR)) {
+			// not a sample, but as suspicious as how long it took
+			long duration = pollingStatus.duration();
+			this.health.updatePhi(hostId, Status.ERROR, duration, heartbeatWindow == null ? Double.NaN : ArrivalWindow.PHI_FACTOR * heartbeatWindow.phi(duration));
+			return;
+		}
+		
 		if (heartbeatWindow == null) {
 			
-			heartbeatWindow = new ArrivalWindow(SAMPLE_SIZE);
-            heartbeatWindow.add(job.pollingStatus.duration());
-            arrivalSamples.put(job.host, heartbeatWindow);
+			this.add(hostId, pollingStatus.duration());
+			this.health.updatePhi(hostId, pollingStatus.status, pollingStatus.duration(), Double.NaN);
 			
 		} else {
 			
 			double phi = 0.0;
 			long duration = 0;
 			
-			if (!job.pollingStatus.isStopped()) {
+			if (!pollingStatus.isStopped()) {
 				// compute phi
-				duration = System.nanoTime() - job.pollingStatus.started;
+				duration = System.nanoTime() - pollingStatus.started;
 				phi = ArrivalWindow.PHI_FACTOR * heartbeatWindow.phi(duration);
 			} else {
 				// compute phi
-				duration = job.pollingStatus.duration();
+				duration = pollingStatus.duration();
 				phi = ArrivalWindow.PHI_FACTOR * heartbeatWindow.phi(duration);
 				// done
-				heartbeatWindow.add(job.pollingStatus.duration());
+				this.add(hostId, pollingStatus.duration());
 			}
 			
-			StringBuffer sb = new StringBuffer();
-			sb.append(job.host.getHostName());
-			sb.append(CSVUpdateHandler.DELIM);
-			sb.append(job.pollingStatus.status);
-			sb.append(CSVUpdateHandler.DELIM);
-			sb.append(duration);
-			sb.append(CSVUpdateHandler.DELIM);
-			sb.append(FORMAT.format(phi));
-			logger.info(sb.toString());
+			this.health.updatePhi(hostId, pollingStatus.status, duration, phi);
+			
+			synchronized (this.sink) {
+				this.sink.begin()
+					.append(this.registry.name(hostId)).delim()
+					.append(pollingStatus.status.name()).delim()
+					.append(duration).delim()
+					.append(phi, PHI_FRACTION_DIGITS)
+					.end();
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Adds a sample to the current window of a host, which may have been replaced since it was looked up.
+	 */
+	private void add(int hostId, long duration) {
+		
+		synchronized (this.arrivalSamples) {
+			
+			ArrivalWindow window = this.arrivalSamples.get(hostId);
+			if (window == null) {
+				window = new ArrivalWindow(SAMPLE_SIZE);
+				this.arrivalSamples.set(hostId, window);
+			}
+			window.add(duration);
 			
 		}
 		
 	}
 
 }
-class ArrivalWindow
-{
-	private static final Logger logger = LogManager.getLogger(ArrivalWindow.class);
-    private final BoundedStatsDeque arrivalIntervals;
-
-    // this is useless except to provide backwards compatibility in phi_convict_threshold,
-    // because everyone seems pretty accustomed to the default of 8, and users who have
-    // already tuned their phi_convict_threshold for their own environments won't need to
-    // change.
-    static final double PHI_FACTOR = 1.0 / Math.log(10.0);
-
-    // in the event of a long partition, never record an interval longer than the rpc timeout,
-    // since if a host is regularly experiencing connectivity problems lasting this long we'd
-    // rather mark it down quickly instead of adapting
-    // this value defaults to the same initial value the FD is seeded with
-    static final long MAX_INTERVAL_IN_NANO = CloudSonar.POLLING_INTERVAL_IN_SECONDS * 1000 * 1000 * 1000 * 2;
-
-    ArrivalWindow(int size)
-    {
-        arrivalIntervals = new BoundedStatsDeque(size);
-    }
-
-    synchronized void add(long value)
-    {
-        arrivalIntervals.add(value);
-    }
-
-    double mean()
-    {
-        return arrivalIntervals.mean();
-    }
-
-    // see CASSANDRA-2597 for an explanation of the math at work here.
-    double phi(long current)
-    {
-        assert arrivalIntervals.size() > 0; // should not be called before any samples arrive
-        return current / mean();
-    }
-}
-
-class BoundedStatsDeque implements Iterable<Long>
-{
-    private final LinkedBlockingDeque<Long> deque;
-    private final AtomicLong sum;
-
-    public BoundedStatsDeque(int size)
-    {
-        deque = new LinkedBlockingDeque<>(size);
-        sum = new AtomicLong(0);
-    }
-
-    public Iterator<Long> iterator()
-    {
-        return deque.iterator();
-    }
-
-    public int size()
-    {
-        return deque.size();
-    }
-
-    public void add(long i)
-    {
-        if (!deque.offer(i))
-        {
-            Long removed = deque.remove();
-            sum.addAndGet(-removed);
-            deque.offer(i);
-        }
-        sum.addAndGet(i);
-    }
-
-    public long sum()
-    {
-        return sum.get();
-    }
-
-    public double mean()
-    {
-        return size() > 0 ? ((double) sum()) / size() : 0;
-    }
-}
\ No newline at end of file
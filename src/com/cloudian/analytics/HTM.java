@@ -0,0 +1,250 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.joda.time.DateTime;
+import org.numenta.nupic.Connections;
+import org.numenta.nupic.network.Inference;
+import org.numenta.nupic.network.Network;
+
+/**
+ * The network of a host, which computes its queued inputs on an HTMComputePool.
+ */
+class HTM implements Runnable {
+	
+	final InetAddress address;
+	private final HostRegistry registry;
+	private final HealthTable health;
+	final int hostId;
+	final Network network;
+	private final CSVSink sink;
+	// the inputs computed, to be checkpointed
+	final HTMHistory history;
+	private final HTMComputePool pool;
+	private final HTMComputePool.InputQueue inputs;
+	// reused for every input, as a network is computed by a single thread at a time
+	private final Map<String, Object> input = new HashMap<String, Object>(4);
+	// true while queued or running on the pool
+	final AtomicBoolean scheduled = new AtomicBoolean();
+	// inputs of a previous run to be computed before the queued ones
+	private volatile HTMHistory replay;
+	// of the next input replayed, only touched by the pool
+	private int replayed = 0;
+	// the synapses of a new network, most of which are of the spatial pooler
+	int initialSynapses = 0;
+	// the last one, written by a pool thread
+	volatile double anomalyScore = Double.NaN;
+	// milli seconds from when the last input was queued until it was computed
+	volatile long lag = -1;
+	
+	HTM(InetAddress address, HostRegistry registry, HealthTable health, int hostId, Network network, CSVSink sink, HTMHistory history, HTMComputePool pool) {
+		this.address = address;
+		this.registry = registry;
+		this.health = health;
+		this.hostId = hostId;
+		this.sink = sink;
+		this.network = network;
+		this.history = history;
+		this.pool = pool;
+		this.inputs = pool.newQueue();
+	}
+	
+	Connections connections() {
+		return this.network.lookup(HTMAnomalyDetector.REGION).lookup(HTMAnomalyDetector.LAYER).getConnections();
+	}
+	
+	/**
+	 * @return the estimated bytes of the network, which grows as it learns
+	 */
+	long footprint() {
+		
+		long learned = Math.max(0, this.connections().getSynapseCount() - this.initialSynapses);
+		
+		return HTMModelManager.NETWORK_BASE_BYTES + learned * HTMModelManager.BYTES_PER_LEARNED_SYNAPSE;
+		
+	}
+	
+	/**
+	 * @param time the end of a window
+	 * @param duration in nano seconds
+	 */
+	void publish(long time, double duration) {
+		
+		// ~ 10 micro sec = {0.0, 1.0}
+		// ~ 100 micro sec = {1.0, 2.0}
+		// ~ 1 milli sec = {2.0, 3.0}
+		// ~ 10 milli sec = {3.0, 4.0}
+		// ~ 100 milli sec = {4.0, 5.0}
+		// ~ 1 sec = {5.0, 6.0}
+		// ~ 10 sec = {6.0, 7.0}
+		// no less than a micro sec, not to be -Infinity
+		double micro = Math.max(1, duration / 1000);
+		float log10 = Double.valueOf(Math.log10(micro)).floatValue();
+		
+		if (!this.inputs.offer(time, log10)) {
+			this.pool.dropped();
+		}
+		this.pool.schedule(this);
+		
+	}
+	
+	/**
+	 * Takes a network off the pool for good if it is idle, so that it is hibernated with all the inputs computed
+	 * and never computes another one.
+	 * @return false if it is queued or running on the pool, or has inputs waiting
+	 */
+	boolean retire() {
+		
+		if (!this.scheduled.compareAndSet(false, true)) {
+			return false;
+		}
+		if (this.inputs.size() == 0 && this.replay == null) {
+			return true;
+		}
+		
+		this.resume();
+		return false;
+		
+	}
+	
+	/**
+	 * Takes a network off the pool for good whatever is waiting, e.g. when it is replaced by another one of the host,
+	 * waiting for it to be run if it is queued or running, so that it never computes nor writes another input.
+	 */
+	void stop() {
+		
+		while (!this.scheduled.compareAndSet(false, true)) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		// not to be counted as waiting
+		while (this.inputs.poll()) {
+		}
+		
+	}
+	
+	/**
+	 * Puts a network back on the pool after retire, e.g. when it fails to be hibernated.
+	 */
+	void resume() {
+		
+		this.scheduled.set(false);
+		// what was queued meanwhile, which could not be scheduled
+		if (this.inputs.size() > 0 || this.replay != null) {
+			this.pool.schedule(this);
+		}
+		
+	}
+	
+	/**
+	 * Computes inputs of a previous run, the anomaly scores of which are not written,
+	 * a queue of them at a time before the queued ones.
+	 */
+	void replay(HTMHistory inputs) {
+		
+		// kept from now, so as not to be lost if hibernated or checkpointed before computed
+		for (int i = 0; i < inputs.size(); i++) {
+			this.history.add(inputs.getTime(i), inputs.getValue(i));
+		}
+		this.replay = inputs;
+		this.pool.schedule(this);
+		
+	}
+	
+	@Override
+	public void run() {
+		
+		try {
+			
+			// no more than a queue at a time, to be fair to the other hosts
+			HTMHistory replay = this.replay;
+			if (replay != null) {
+				int end = Math.min(replay.size(), this.replayed + this.inputs.capacity());
+				while (this.replayed < end) {
+					// past an input that throws
+					int i = this.replayed++;
+					this.compute(replay.getTime(i), replay.getValue(i), false);
+				}
+				if (this.replayed == replay.size()) {
+					this.replay = null;
+					this.replayed = 0;
+				}
+			}
+			
+			// the queued ones are newer than the replay
+			if (this.replay == null) {
+				for (int i = this.inputs.size(); i > 0 && this.inputs.poll(); i--) {
+					this.compute(this.inputs.time, this.inputs.value, true);
+					this.lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.inputs.queuedAt);
+				}
+			}
+			
+		} catch (RuntimeException e) {
+			HTMAnomalyDetector.logger.error("HTM Network threw an error!", e);
+		} finally {
+			this.scheduled.set(false);
+		}
+		
+		if (this.inputs.size() > 0 || this.replay != null) {
+			this.pool.schedule(this);
+		}
+		
+	}
+	
+	/**
+	 * @param live false for an input replayed, which is already in the history and written by a previous run
+	 */
+	Inference compute(long time, float log10, boolean live) {
+		
+		// typed values for the encoder, neither formatted nor parsed, though a DateTime and a Double are still
+		// allocated per input, far less than the network itself allocates per inference
+		this.input.put("timestamp", new DateTime(time));
+		this.input.put(HTMAnomalyDetector.CLASSFIER_FIELD, (double) log10);
+		
+		if (HTMAnomalyDetector.logger.isDebugEnabled()) {
+			HTMAnomalyDetector.logger.debug("computing a next input: " + time + ", " + log10);
+		}
+		Inference infer = this.network.computeImmediate(this.input);
+		this.anomalyScore = infer.getAnomalyScore();
+		
+		if (!live) {
+			return infer;
+		}
+		this.history.add(time, log10);
+		this.health.updateAnomaly(this.hostId, this.anomalyScore);
+		// at when it was queued rather than computed
+		this.write(this.inputs.stamp, infer, log10);
+		
+		return infer;
+		
+	}
+	
+	/**
+	 * Writes a record of an inference to htm.csv.
+	 */
+	void write(long stamp, Inference infer, float log10) {
+		
+		Object pred = infer.getClassification(HTMAnomalyDetector.CLASSFIER_FIELD).getMostProbableValue(1);
+		
+		synchronized (this.sink) {
+			this.sink.begin(stamp)
+				.append(this.registry.name(this.hostId)).delim()
+				.append(infer.getRecordNum()).delim()
+				.append(log10, HTMAnomalyDetector.LOG_FRACTION_DIGITS).delim();
+			if (pred == null) {
+				this.sink.append("N/A");
+			} else {
+				this.sink.append(((Number) pred).doubleValue(), HTMAnomalyDetector.LOG_FRACTION_DIGITS);
+			}
+			this.sink.delim()
+				.append(infer.getAnomalyScore(), HTMAnomalyDetector.ANOMALY_FRACTION_DIGITS)
+				.end();
+		}
+		
+	}
+	
+}
@@ -1,13 +1,10 @@
 package com.cloudian.analytics;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.text.DateFormat;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,8 +14,9 @@ import org.numenta.nupic.algorithms.Anomaly;
 import org.numenta.nupic.algorithms.SpatialPooler;
 import org.numenta.nupic.algorithms.TemporalMemory;
 import org.numenta.nupic.encoders.Encoder;
-import org.numenta.nupic.network.Inference;
+import org.numenta.nupic.encoders.MultiEncoder;
 import org.numenta.nupic.network.Network;
+import org.numenta.nupic.network.sensor.HTMSensor;
 import org.numenta.nupic.network.sensor.ObservableSensor;
 import org.numenta.nupic.network.sensor.Publisher;
 import org.numenta.nupic.network.sensor.Sensor;
@@ -26,87 +24,212 @@ import org.numenta.nupic.network.sensor.SensorParams;
 import org.numenta.nupic.network.sensor.SensorParams.Keys;
 import org.numenta.nupic.util.Tuple;
 
-import com.cloudian.analytics.PollingStatus.Status;
-
-import rx.Subscriber;
-
-public class HTMAnomalyDetector implements PollingUpdateHandler {
+public class HTMAnomalyDetector implements WindowedAggregator.WindowListener {
 	
 	static final Logger logger = LogManager.getLogger(HTMAnomalyDetector.class);
 	private static final String FULL_DATE = "YYYY/MM/dd HH:mm:ss";
-	static final DateFormat FULL_DATE_FORMAT = new SimpleDateFormat(FULL_DATE);
-	static final DecimalFormat LOG_FORMAT = new DecimalFormat("#.###");
+	// as #.###
+	static final int LOG_FRACTION_DIGITS = 3;
+	static final int ANOMALY_FRACTION_DIGITS = 6;
 	static final String CLASSFIER_FIELD = "log10_resp";
-	static final int NUMBER_OF_AGGREGATIONS = 30;
+	// a day of inputs at one per 30 second window
+	static final int DEFAULT_HISTORY_SIZE = 2880;
+	static final String REGION = "Region";
+	static final String LAYER = "Layer";
+	
+	// networks by host id, read by other handlers
+	private final HTMModelManager models;
+	
+	private final CSVSink sink;
+	private final HostRegistry registry = HostRegistry.getDefault();
+	private final HealthTable health = HealthTable.getDefault();
+	private final int historySize;
+	private final HTMComputePool pool;
 	
-	private final Map<InetAddress, HTM> htmMaps = new HashMap<InetAddress, HTM>();
+	public HTMAnomalyDetector() {
+		this(new HTMModelManager(new File(HTMModelManager.DEFAULT_DIRECTORY), Long.MAX_VALUE),
+				new HTMComputePool(HTMComputePool.defaultThreads(), HTMComputePool.DEFAULT_QUEUE_SIZE));
+	}
+	
+	public HTMAnomalyDetector(HTMModelManager models, HTMComputePool pool) {
+		this(CSVSink.get("htm"), DEFAULT_HISTORY_SIZE, models, pool);
+	}
+	
+	HTMAnomalyDetector(CSVSink sink, int historySize, HTMModelManager models, HTMComputePool pool) {
+		this.sink = sink;
+		this.historySize = historySize;
+		this.models = models;
+		this.pool = pool;
+	}
+	
+	public HTMModelManager getModelManager() {
+		return this.models;
+	}
+	
+	public HTMComputePool getComputePool() {
+		return this.pool;
+	}
 	
-	public void HTMAnomalyDetector() {
-		// default constructor
+	/**
+	 * @return milli seconds from when the last input of a host was queued until it was computed, -1 if none yet or hibernated
+	 */
+	public long getInferenceLag(int hostId) {
+		
+		HTM htm = this.models.get(hostId);
+		
+		return htm == null ? -1 : htm.lag;
+		
+	}
+
+	/**
+	 * @return the last anomaly score of a host, NaN if none yet or hibernated
+	 */
+	public double getAnomalyScore(int hostId) {
+		
+		HTM htm = this.models.get(hostId);
+		
+		return htm == null ? Double.NaN : htm.anomalyScore;
+		
 	}
 
+	/**
+	 * Gives a window of durations of a host to its network as a next input.
+	 */
 	@Override
-	public void updateStatus(PollingJob job) {
+	public void onWindow(int hostId, InetAddress host, long end, double value) {
 		
-		if (!job.pollingStatus.status.equals(Status.FINISHED)) {
-			// do nothing for now
-			return;
+		HTM htm = this.models.get(hostId);
+		if (htm == null) {
+			htm = this.models.isHibernated(hostId) ? this.wake(hostId, host) : null;
 		}
-		
-		HTM htm = this.htmMaps.get(job.host);
 		if (htm == null) {
-			logger.debug("starting a new network for " + job.host);
-			
-			// create
-			Publisher publisher = Publisher.builder()
-										.addHeader("timestamp" + CSVUpdateHandler.DELIM + CLASSFIER_FIELD)
-										.addHeader("datetime" + CSVUpdateHandler.DELIM + "float")
-										.addHeader("T" + CSVUpdateHandler.DELIM)
-										.build();
-			
-			Object[] n = { "publisher", publisher};
-	        SensorParams parms = SensorParams.create(Keys::obs, n);
-	        Sensor<ObservableSensor<String>> sensor = Sensor.create(ObservableSensor::create, parms);
-	        Network network = createNetwork(sensor);
-	        
-	        // create htm
-	        htm = new HTM(job.host, network, publisher);
-	        this.htmMaps.put(job.host, htm);
-	        // add observer
-	        network.observe().subscribe(htm);
-	        // start
-	        network.start();
-			
+			logger.debug("starting a new network for " + host);
+			htm = this.create(hostId, host);
 		}
 		
-		// add
-		logger.debug("pushing job: " + job.toString());
-		htm.push(job);
+		htm.publish(end, value);
+		this.models.touch(htm);
+		
+	}
+	
+	/**
+	 * @return a network restored from the inputs of a hibernated host, null if they are lost
+	 */
+	private HTM wake(int hostId, InetAddress address) {
+		
+		HTMHistory history;
+		try {
+			history = this.models.wake(hostId);
+		} catch (IOException e) {
+			logger.warn("failed to wake up " + address + ", starting a new network", e);
+			return null;
+		}
+		
+		HTM htm = this.newNetwork(hostId, address);
+		htm.replay(history);
+		HTM added = this.models.add(htm);
+		if (added != htm) {
+			// replaced meanwhile, e.g. by one handed over
+			htm.stop();
+		}
+		
+		return added;
+		
+	}
+	
+	/**
+	 * @return a copy of the inputs given to the network of a host, null if none
+	 */
+	HTMHistory getHistory(int hostId) throws IOException {
+		return this.models.getHistory(hostId);
+	}
+	
+	/**
+	 * Starts a new network of a host in place of the current one, and replays inputs of a previous run into it on the pool
+	 * so that it resumes from what it had learned.
+	 * The anomaly scores of replayed inputs are not written.
+	 */
+	HTM restore(int hostId, InetAddress address, HTMHistory history) {
+		
+		logger.debug("restoring a network for " + address + " from " + history.size() + " inputs");
+		HTM htm = this.newNetwork(hostId, address);
+		// before it is found by onWindow, so that the inputs replayed are computed before new ones
+		htm.replay(history);
+		this.models.replace(htm);
+		
+		return htm;
 		
 	}
 	
-	private static Network createNetwork(Sensor<ObservableSensor<String>> sensor) {
+	/**
+	 * Releases the network of a host no longer polled, e.g. moved to another member by a ShardCoordinator.
+	 */
+	void remove(int hostId) {
+		this.models.remove(hostId);
+	}
+	
+	/**
+	 * @return a new network of a host, or the one added first by another thread
+	 */
+	HTM create(int hostId, InetAddress address) {
+		return this.models.add(this.newNetwork(hostId, address));
+	}
+	
+	private HTM newNetwork(int hostId, InetAddress address) {
 		
 		Parameters p = buildParams();
 		p = p.union(buildEncoderParams());
+		Network network = createNetwork(p, createEncoder(p));
+		// initialized as start() would do, which is not called not to run a thread of its own
+		network.lookup(REGION).close();
+		
+		HTM htm = new HTM(address, this.registry, this.health, hostId, network, this.sink, new HTMHistory(this.historySize), this.pool);
+		htm.initialSynapses = htm.connections().getSynapseCount();
+		
+		return htm;
+		
+	}
+	
+	/**
+	 * A sensor is used only to build an encoder of the fields in the same way as a network with the sensor,
+	 * once for a network. Inputs are given to the encoder as typed values, not through the sensor.
+	 */
+	private static MultiEncoder createEncoder(Parameters p) {
+		
+		Publisher publisher = Publisher.builder()
+									.addHeader("timestamp" + CSVUpdateHandler.DELIM + CLASSFIER_FIELD)
+									.addHeader("datetime" + CSVUpdateHandler.DELIM + "float")
+									.addHeader("T" + CSVUpdateHandler.DELIM)
+									.build();
+		
+		Object[] n = { "publisher", publisher};
+		SensorParams parms = SensorParams.create(Keys::obs, n);
+		HTMSensor<?> sensor = (HTMSensor<?>) Sensor.create(ObservableSensor::create, parms);
+		sensor.initEncoder(p);
+		
+		return sensor.getEncoder();
+		
+	}
+	
+	private static Network createNetwork(Parameters p, MultiEncoder encoder) {
 		
 		return Network.create("CloudSonar", p)
-	            .add(Network.createRegion("Region")
-	                .add(Network.createLayer("Layer", p)
+	            .add(Network.createRegion(REGION)
+	                .add(Network.createLayer(LAYER, p)
 	                    .alterParameter(KEY.AUTO_CLASSIFY, Boolean.TRUE)
 	                    .add(Anomaly.create())
 	                    .add(new TemporalMemory())
 	                    .add(new SpatialPooler())
-	                    .add(sensor)
+	                    .add(encoder)
 	                    )
 	                );
 	}
 	
-	private static Parameters buildParams() {
+	static Parameters buildParams() {
 		return Parameters.getAllDefaultParameters();
 	}
 	
-	private static Parameters buildEncoderParams() {
+	static Parameters buildEncoderParams() {
 		
 		Map<String, Map<String, Object>> fieldEncodings = getNetworkFieldEncodingMap();
         Parameters p = Parameters.getEncoderDefaultParameters();
@@ -233,105 +356,3 @@ public class HTMAnomalyDetector implements PollingUpdateHandler {
     }
 
 }
-
-class HTM extends Subscriber<Inference>{
-	
-	final InetAddress address;
-	final Network network;
-	final Publisher publisher;
-	private long maxDuration = 0;
-	private int passed = 0;
-	
-	public HTM(InetAddress address, Network network, Publisher publisher) {
-		this.address = address;
-		this.network = network;
-		this.publisher = publisher;
-	}
-	
-	void push(PollingJob job) {
-		
-		long duration = job.pollingStatus.duration();
-		
-		if (this.passed == 0) {
-			
-			// new
-			this.maxDuration = duration;
-			this.passed++;
-			
-		} else if (this.maxDuration < duration){
-			
-			// lost
-			this.maxDuration = duration;
-			this.passed++;
-			
-		} else {
-			
-			// won
-			this.passed++;
-			
-			if (this.passed == HTMAnomalyDetector.NUMBER_OF_AGGREGATIONS) {
-				
-				this.publish();
-				this.maxDuration = 0;
-				this.passed = 0;
-				
-			}
-			
-		}
-		
-		HTMAnomalyDetector.logger.debug("a job was pushed, the current maxDuration, won = " + this.maxDuration + ", " + this.passed);
-		
-	}
-	
-	private void publish() {
-		
-		StringBuffer sb = new StringBuffer();
-		
-		sb.append(HTMAnomalyDetector.FULL_DATE_FORMAT.format(new Date()));
-		sb.append(CSVUpdateHandler.DELIM);
-		
-		// ~ 10 micro sec = {0.0, 1.0}
-		// ~ 100 micro sec = {1.0, 2.0}
-		// ~ 1 milli sec = {2.0, 3.0}
-		// ~ 10 milli sec = {3.0, 4.0}
-		// ~ 100 milli sec = {4.0, 5.0}
-		// ~ 1 sec = {5.0, 6.0}
-		// ~ 10 sec = {6.0, 7.0}
-		long micro = TimeUnit.MICROSECONDS.convert(this.maxDuration, TimeUnit.NANOSECONDS);
-		float log10 = Double.valueOf(Math.log10(micro)).floatValue();
-		sb.append(log10);
-		
-		String input = sb.toString();
-		HTMAnomalyDetector.logger.debug("publishing a next input: " + input);
-		publisher.onNext(input);
-		
-	}
-
-	@Override
-	public void onCompleted() {
-		HTMAnomalyDetector.logger.debug("HTM Network completed");
-	}
-
-	@Override
-	public void onError(Throwable error) {
-		HTMAnomalyDetector.logger.error("HTM Network threw an error!", error);
-	}
-
-	@Override
-	public void onNext(Inference infer) {
-		
-        StringBuilder sb = new StringBuilder();
-        sb.append(address.getHostName());
-        sb.append(CSVUpdateHandler.DELIM);
-        sb.append(infer.getRecordNum());
-        sb.append(CSVUpdateHandler.DELIM);
-        sb.append(HTMAnomalyDetector.LOG_FORMAT.format(infer.getClassifierInput().get(HTMAnomalyDetector.CLASSFIER_FIELD).get("inputValue")));
-        sb.append(CSVUpdateHandler.DELIM);
-        Object pred = infer.getClassification(HTMAnomalyDetector.CLASSFIER_FIELD).getMostProbableValue(1);
-        sb.append(pred == null ? "N/A" : HTMAnomalyDetector.LOG_FORMAT.format(pred));
-        sb.append(CSVUpdateHandler.DELIM);
-        sb.append(infer.getAnomalyScore());
-        
-        HTMAnomalyDetector.logger.info(sb.toString());
-	}
-}
\ No newline at end of file
@@ -0,0 +1,182 @@
+package com.cloudian.analytics;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * HTMComputePool runs the HTM networks of all the hosts on a fixed number of threads,
+ * instead of a thread of each network, so that HTM never takes more cores than given from probes.
+ *
+ * Each host has a bounded InputQueue of inputs, and is scheduled on the pool at most once at a time,
+ * so inputs of a host are computed in order by a single thread.
+ * When the pool falls behind, the oldest input of a host is dropped for a new one,
+ * so a network skips to the latest inputs rather than falling further behind.
+ *
+ */
+public class HTMComputePool {
+
+	static final int DEFAULT_QUEUE_SIZE = 16;
+
+	static int defaultThreads() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	}
+
+	private final Executor executor;
+	private final int queueSize;
+	// when inputs are queued, in milli seconds
+	private final LongSupplier clock;
+	private final AtomicLong dropped = new AtomicLong();
+	// inputs waiting in the queues of all the hosts
+	private final LongAdder depth = new LongAdder();
+
+	public HTMComputePool(int threads, int queueSize) {
+		this(Executors.newFixedThreadPool(threads, new ProbeEngine.DaemonThreadFactory("sonar-htm")), queueSize, System::currentTimeMillis);
+
+		Metrics metrics = Metrics.getDefault();
+		metrics.gauge("htm.queue.depth", this::getDepth);
+		metrics.gauge("htm.dropped", this::getDropped);
+	}
+
+	/**
+	 * @param executor runs networks, e.g. only when a ReplayEngine has queued inputs of all the hosts
+	 */
+	HTMComputePool(Executor executor, int queueSize, LongSupplier clock) {
+		this.executor = executor;
+		this.queueSize = queueSize;
+		this.clock = clock;
+	}
+
+	InputQueue newQueue() {
+		return new InputQueue(this.queueSize, this.clock, this.depth);
+	}
+
+	/**
+	 * Runs a network unless it is already scheduled.
+	 */
+	void schedule(HTM htm) {
+
+		if (htm.scheduled.compareAndSet(false, true)) {
+			this.executor.execute(htm);
+		}
+
+	}
+
+	void dropped() {
+		this.dropped.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of inputs dropped for newer ones so far
+	 */
+	public long getDropped() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * @return the number of inputs waiting for a thread
+	 */
+	public long getDepth() {
+		return this.depth.sum();
+	}
+
+	public void shutdown() {
+		if (this.executor instanceof ExecutorService) {
+			((ExecutorService) this.executor).shutdownNow();
+		}
+	}
+
+	/**
+	 * A bounded queue of inputs of a host in primitive arrays, which drops the oldest one when full.
+	 * The input polled last is kept in fields for the single consumer.
+	 */
+	static class InputQueue {
+
+		private final long[] times;
+		private final float[] values;
+		private final long[] queued;
+		private final long[] stamps;
+		private final LongSupplier clock;
+		private final LongAdder depth;
+		private int head = 0;
+		private int size = 0;
+
+		long time;
+		float value;
+		// System.nanoTime() when queued
+		long queuedAt;
+		// the time in milli seconds when queued, which the anomaly score is written at
+		long stamp;
+
+		InputQueue(int capacity) {
+			this(capacity, System::currentTimeMillis, new LongAdder());
+		}
+
+		InputQueue(int capacity, LongSupplier clock, LongAdder depth) {
+			this.times = new long[capacity];
+			this.values = new float[capacity];
+			this.queued = new long[capacity];
+			this.stamps = new long[capacity];
+			this.clock = clock;
+			this.depth = depth;
+		}
+
+		/**
+		 * @return false if the oldest one was dropped
+		 */
+		synchronized boolean offer(long time, float value) {
+
+			boolean full = this.size == this.times.length;
+			if (full) {
+				this.head = (this.head + 1) % this.times.length;
+				this.size--;
+			} else {
+				this.depth.increment();
+			}
+
+			int tail = (this.head + this.size) % this.times.length;
+			this.times[tail] = time;
+			this.values[tail] = value;
+			this.queued[tail] = System.nanoTime();
+			this.stamps[tail] = this.clock.getAsLong();
+			this.size++;
+
+			return !full;
+
+		}
+
+		/**
+		 * @return false if empty, otherwise the oldest input is set to time, value, queuedAt and stamp
+		 */
+		synchronized boolean poll() {
+
+			if (this.size == 0) {
+				return false;
+			}
+
+			this.time = this.times[this.head];
+			this.value = this.values[this.head];
+			this.queuedAt = this.queued[this.head];
+			this.stamp = this.stamps[this.head];
+			this.head = (this.head + 1) % this.times.length;
+			this.size--;
+			this.depth.decrement();
+
+			return true;
+
+		}
+
+		synchronized int size() {
+			return this.size;
+		}
+
+		int capacity() {
+			return this.times.length;
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.cloudian.analytics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A bounded history of the inputs given to an HTM network, from the oldest to the newest,
+ * which is kept in primitive arrays to be replayed into a new network.
+ *
+ * An HTM network of htm.java can not be serialized, so a network is restored by
+ * feeding the same inputs again instead.
+ *
+ */
+class HTMHistory {
+
+	private final long[] times;
+	private final float[] values;
+	// the index to write a next input
+	private int head = 0;
+	private int size = 0;
+
+	HTMHistory(int capacity) {
+		this.times = new long[capacity];
+		this.values = new float[capacity];
+	}
+
+	/**
+	 * @param time in milli seconds
+	 * @param value log10 of a response time in micro seconds
+	 */
+	synchronized void add(long time, float value) {
+
+		this.times[this.head] = time;
+		this.values[this.head] = value;
+		this.head = (this.head + 1) % this.times.length;
+		this.size = Math.min(this.size + 1, this.times.length);
+
+	}
+
+	synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * @param index from 0 for the oldest
+	 */
+	synchronized long getTime(int index) {
+		return this.times[this.indexOf(index)];
+	}
+
+	synchronized float getValue(int index) {
+		return this.values[this.indexOf(index)];
+	}
+
+	/**
+	 * @return a copy of the inputs, the capacity of which is the number of inputs
+	 */
+	synchronized HTMHistory copy() {
+
+		HTMHistory copy = new HTMHistory(Math.max(1, this.size));
+		for (int i = 0; i < this.size; i++) {
+			int index = this.indexOf(i);
+			copy.add(this.times[index], this.values[index]);
+		}
+		return copy;
+
+	}
+
+	/**
+	 * Writes the number of inputs, and each input as a long time and a float value.
+	 */
+	synchronized void write(DataOutput out) throws IOException {
+
+		out.writeInt(this.size);
+		for (int i = 0; i < this.size; i++) {
+			int index = this.indexOf(i);
+			out.writeLong(this.times[index]);
+			out.writeFloat(this.values[index]);
+		}
+
+	}
+
+	static HTMHistory read(DataInput in) throws IOException {
+
+		int size = in.readInt();
+		HTMHistory history = new HTMHistory(Math.max(1, size));
+		for (int i = 0; i < size; i++) {
+			history.add(in.readLong(), in.readFloat());
+		}
+		return history;
+
+	}
+
+	private int indexOf(int index) {
+		return (this.head - this.size + index + this.times.length) % this.times.length;
+	}
+
+}
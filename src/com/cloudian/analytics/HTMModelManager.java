@@ -0,0 +1,255 @@
+package com.cloudian.analytics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * HTMModelManager keeps the HTM networks of hosts within a heap budget.
+ *
+ * The footprint of each network is estimated from the synapses it has learned, and when the total is
+ * over the budget, the networks of the least recently updated hosts are hibernated:
+ * their inputs are written to a file of the host in a directory, and the networks are released.
+ * A hibernated host is woken up by its next update, which replays the inputs into a new network.
+ * A network queued or running on the HTMComputePool is not hibernated until it is idle at a later check,
+ * so no input is computed after its inputs are written.
+ * A network replaced or removed, e.g. of a host handed over by a ShardCoordinator, is taken off the pool first
+ * in the same way, so that only one network of a host computes and writes its inputs.
+ *
+ * Networks are looked up without locking, and the others are synchronized,
+ * since they are called by a handler thread and a Checkpoint.
+ *
+ */
+public class HTMModelManager {
+
+	private static final Logger logger = LogManager.getLogger(HTMModelManager.class);
+
+	// measured with the default parameters, most of which is the spatial pooler
+	static final long NETWORK_BASE_BYTES = 10L * 1024 * 1024;
+	// a synapse learned by the temporal memory, with its share of a segment
+	static final long BYTES_PER_LEARNED_SYNAPSE = 750;
+	// the budget is checked every this number of updates, as networks keep learning
+	static final int CHECK_INTERVAL = 1024;
+	static final String DEFAULT_DIRECTORY = "hibernate";
+	static final String HIBERNATED_SUFFIX = ".htm";
+
+	private final File directory;
+	private final long budget;
+	// by host id, only resident ones
+	private final HostTable<HTM> models = new HostTable<HTM>();
+	// from the least recently updated
+	private final LinkedHashMap<Integer, HTM> residents = new LinkedHashMap<Integer, HTM>(16, 0.75f, true);
+	private final Set<Integer> hibernated = new HashSet<Integer>();
+	private long footprint = 0;
+	private int updates = 0;
+
+	/**
+	 * @param budgetInBytes Long.MAX_VALUE not to hibernate
+	 */
+	public HTMModelManager(File directory, long budgetInBytes) {
+		this.directory = directory;
+		this.budget = budgetInBytes;
+
+		// host ids of a previous run may not be the same
+		File[] stale = directory.listFiles();
+		if (stale != null) {
+			for (File file : stale) {
+				if (file.getName().endsWith(HIBERNATED_SUFFIX)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a resident network, null if none or hibernated
+	 */
+	HTM get(int hostId) {
+		return this.models.get(hostId);
+	}
+
+	/**
+	 * Adds a new network unless the host has one, which may hibernate others.
+	 * @return the network of the host, which is not the new one if another one was added first
+	 */
+	synchronized HTM add(HTM htm) {
+
+		HTM current = this.models.get(htm.hostId);
+		if (current != null) {
+			return current;
+		}
+
+		this.models.set(htm.hostId, htm);
+		this.residents.put(htm.hostId, htm);
+		this.check(htm);
+
+		return htm;
+
+	}
+
+	/**
+	 * Adds a new network in place of the one of the host, resident or hibernated, e.g. restored from inputs handed over.
+	 */
+	synchronized void replace(HTM htm) {
+
+		this.remove(htm.hostId);
+		this.add(htm);
+
+	}
+
+	/**
+	 * Releases the network of a host, resident or hibernated, e.g. of a host no longer polled.
+	 * A resident one is taken off the pool first, which waits for it to be run if it is queued.
+	 */
+	synchronized void remove(int hostId) {
+
+		HTM current = this.models.get(hostId);
+		if (current != null) {
+			current.stop();
+			this.models.set(hostId, null);
+			this.residents.remove(hostId);
+		}
+
+		if (this.hibernated.remove(hostId)) {
+			this.file(hostId).delete();
+		}
+
+	}
+
+	/**
+	 * Marks a network as the most recently updated one.
+	 */
+	synchronized void touch(HTM htm) {
+
+		this.residents.get(htm.hostId);
+		if (++this.updates % CHECK_INTERVAL == 0) {
+			this.check(htm);
+		}
+
+	}
+
+	synchronized boolean isHibernated(int hostId) {
+		return this.hibernated.contains(hostId);
+	}
+
+	/**
+	 * @return the inputs of a hibernated host, which is no longer hibernated
+	 */
+	synchronized HTMHistory wake(int hostId) throws IOException {
+
+		HTMHistory history = this.read(hostId);
+		this.hibernated.remove(hostId);
+		this.file(hostId).delete();
+
+		logger.debug("woke up " + hostId + " with " + history.size() + " inputs");
+
+		return history;
+
+	}
+
+	/**
+	 * @return the inputs of a host, resident or hibernated, null if none
+	 */
+	synchronized HTMHistory getHistory(int hostId) throws IOException {
+
+		HTM htm = this.models.get(hostId);
+		if (htm != null) {
+			return htm.history.copy();
+		}
+
+		return this.hibernated.contains(hostId) ? this.read(hostId) : null;
+
+	}
+
+	public synchronized int getResidentCount() {
+		return this.residents.size();
+	}
+
+	public synchronized int getHibernatedCount() {
+		return this.hibernated.size();
+	}
+
+	/**
+	 * @return the estimated bytes of the resident networks as of the last check
+	 */
+	public synchronized long getFootprint() {
+		return this.footprint;
+	}
+
+	/**
+	 * Hibernates the least recently updated networks but a given one and busy ones until they fit in the budget.
+	 */
+	private void check(HTM current) {
+
+		long total = 0;
+		for (HTM htm : this.residents.values()) {
+			total += htm.footprint();
+		}
+
+		Iterator<Map.Entry<Integer, HTM>> i = this.residents.entrySet().iterator();
+		while (total > this.budget && i.hasNext()) {
+
+			HTM htm = i.next().getValue();
+			if (htm == current || !htm.retire()) {
+				continue;
+			}
+
+			long released = htm.footprint();
+			try {
+				this.hibernate(htm);
+			} catch (IOException e) {
+				logger.warn("failed to hibernate " + htm.address + ", keeping it resident", e);
+				htm.resume();
+				continue;
+			}
+			i.remove();
+			total -= released;
+			logger.info("hibernated " + htm.address + ", " + this.residents.size() + " resident, " + this.hibernated.size() + " hibernated");
+
+		}
+
+		this.footprint = total;
+
+	}
+
+	private void hibernate(HTM htm) throws IOException {
+
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("failed to create " + this.directory);
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file(htm.hostId))))) {
+			htm.history.write(out);
+		}
+
+		this.models.set(htm.hostId, null);
+		this.hibernated.add(htm.hostId);
+
+	}
+
+	private HTMHistory read(int hostId) throws IOException {
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file(hostId))))) {
+			return HTMHistory.read(in);
+		}
+
+	}
+
+	private File file(int hostId) {
+		return new File(this.directory, hostId + HIBERNATED_SUFFIX);
+	}
+
+}
@@ -0,0 +1,304 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * HandlerDispatcher decouples handlers from probes.
+ *
+ * A status update is copied into a preallocated slot of a ring buffer, and every handler
+ * consumes the ring on its own thread at its own pace. A slow handler, e.g. HTMAnomalyDetector,
+ * does not delay the thread that completed a job, nor the other handlers.
+ *
+ * What happens when a handler falls behind by the capacity of the ring depends on its OverflowPolicy.
+ * 1. BLOCK: a publisher waits for the handler, so nothing is lost, but probes can be delayed
+ * 2. DROP_OLDEST: a publisher overwrites the oldest updates, and the handler skips them
+ * 3. SAMPLE: same as DROP_OLDEST, and the handler also processes only one of SAMPLE_RATE updates
+ *    while it is behind by more than a half of the capacity
+ *
+ * Handlers are given a PollingSnapshot of a job, which is reused for the next update,
+ * so a handler must not keep a reference to it.
+ *
+ */
+public class HandlerDispatcher implements PollingUpdateHandler {
+
+	private static final Logger logger = LogManager.getLogger(HandlerDispatcher.class);
+
+	static final int DEFAULT_CAPACITY = 1 << 16;
+	static final int SAMPLE_RATE = 10;
+	private static final long IDLE_PARK_IN_NANO = 1000000;
+	private static final long BLOCKED_PARK_IN_NANO = 10000;
+
+	public enum OverflowPolicy {
+		BLOCK, DROP_OLDEST, SAMPLE
+	};
+
+	private final Slot[] slots;
+	private final int mask;
+	// the next sequence to claim
+	private final AtomicLong cursor = new AtomicLong();
+	private final Consumer[] consumers;
+	private final Consumer[] gating;
+
+	public HandlerDispatcher(PollingUpdateHandler[] handlers, OverflowPolicy[] policies, int capacity) {
+
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			this.slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+
+		this.consumers = new Consumer[handlers.length];
+		int blocking = 0;
+		for (int i = 0; i < handlers.length; i++) {
+			this.consumers[i] = new Consumer(handlers[i], policies[i]);
+			if (policies[i] == OverflowPolicy.BLOCK) {
+				blocking++;
+			}
+		}
+
+		this.gating = new Consumer[blocking];
+		for (Consumer consumer : this.consumers) {
+			if (consumer.policy == OverflowPolicy.BLOCK) {
+				this.gating[--blocking] = consumer;
+			}
+		}
+
+		for (Consumer consumer : this.consumers) {
+			consumer.thread.start();
+		}
+
+	}
+
+	/**
+	 * Publishes a snapshot of a job. This can be called from any thread,
+	 * and never blocks unless a handler has the BLOCK policy.
+	 */
+	@Override
+	public void updateStatus(PollingEvent event) {
+
+		long sequence = this.cursor.getAndIncrement();
+
+		// wait for handlers that must not miss anything
+		long wrapPoint = sequence - this.slots.length;
+		for (Consumer consumer : this.gating) {
+			while (consumer.sequence.get() <= wrapPoint && consumer.running) {
+				LockSupport.parkNanos(BLOCKED_PARK_IN_NANO);
+			}
+		}
+
+		Slot slot = this.slots[(int) (sequence & this.mask)];
+		synchronized (slot) {
+
+			if (slot.sequence > sequence) {
+				// lapped by a newer update already
+				return;
+			}
+
+			slot.sequence = -1;
+			slot.host = event.host();
+			slot.hostId = event.hostId();
+			slot.status.copy(event.pollingStatus());
+			slot.sequence = sequence;
+
+		}
+
+		for (Consumer consumer : this.consumers) {
+			if (consumer.waiting) {
+				LockSupport.unpark(consumer.thread);
+			}
+		}
+
+	}
+
+	/**
+	 * @return the first handler of a given type, or null
+	 */
+	<T extends PollingUpdateHandler> T find(Class<T> type) {
+
+		for (Consumer consumer : this.consumers) {
+			if (type.isInstance(consumer.handler)) {
+				return type.cast(consumer.handler);
+			}
+		}
+
+		return null;
+
+	}
+
+	int size() {
+		return this.consumers.length;
+	}
+
+	PollingUpdateHandler getHandler(int index) {
+		return this.consumers[index].handler;
+	}
+
+	/**
+	 * @return the number of updates published but not yet consumed by a handler
+	 */
+	public long getLag(int index) {
+		return Math.max(0, this.cursor.get() - this.consumers[index].sequence.get());
+	}
+
+	public long getProcessed(int index) {
+		return this.consumers[index].processed;
+	}
+
+	/**
+	 * @return the number of updates a handler missed because they were overwritten
+	 */
+	public long getDropped(int index) {
+		return this.consumers[index].dropped;
+	}
+
+	/**
+	 * @return the number of updates a handler skipped by sampling
+	 */
+	public long getSampledOut(int index) {
+		return this.consumers[index].sampledOut;
+	}
+
+	public void stop() {
+
+		for (Consumer consumer : this.consumers) {
+			consumer.running = false;
+			LockSupport.unpark(consumer.thread);
+		}
+
+	}
+
+	/**
+	 * A preallocated update, written under its lock, and read optimistically.
+	 */
+	private static final class Slot {
+
+		volatile long sequence = -1;
+		InetAddress host;
+		int hostId;
+		final PollingStatus status = new PollingStatus();
+
+	}
+
+	private final class Consumer implements Runnable {
+
+		private final PollingUpdateHandler handler;
+		private final OverflowPolicy policy;
+		private final Thread thread;
+		private final PollingSnapshot event = new PollingSnapshot();
+		// the next sequence to consume
+		final AtomicLong sequence = new AtomicLong();
+		volatile boolean running = true;
+		volatile boolean waiting = false;
+
+		// written only by the consumer thread
+		volatile long processed, dropped, sampledOut;
+		private long sampleCount = 0;
+		// nano seconds a handler takes per update
+		private final Metrics.Histogram latency;
+
+		Consumer(PollingUpdateHandler handler, OverflowPolicy policy) {
+			this.handler = handler;
+			this.policy = policy;
+			this.thread = new Thread(this, "sonar-handler-" + handler.getClass().getSimpleName());
+			this.thread.setDaemon(true);
+
+			String name = "handler." + handler.getClass().getSimpleName();
+			Metrics metrics = Metrics.getDefault();
+			this.latency = metrics.histogram(name + ".latency");
+			metrics.gauge(name + ".lag", () -> Math.max(0, cursor.get() - this.sequence.get()));
+			metrics.gauge(name + ".dropped", () -> this.dropped);
+		}
+
+		@Override
+		public void run() {
+
+			logger.debug(this.thread.getName() + " started with " + this.policy);
+
+			while (this.running) {
+
+				long next = this.sequence.get();
+				long available = cursor.get();
+
+				if (next >= available) {
+					this.idle(next);
+					continue;
+				}
+
+				if (this.policy != OverflowPolicy.BLOCK && available - next > slots.length) {
+					// the oldest ones have been overwritten
+					long oldest = available - slots.length;
+					this.dropped += oldest - next;
+					this.sequence.set(oldest);
+					continue;
+				}
+
+				Slot slot = slots[(int) (next & mask)];
+				long published = slot.sequence;
+
+				if (published < next) {
+					// claimed, but not yet written
+					Thread.yield();
+					continue;
+				}
+
+				if (published > next) {
+					// overwritten while this handler was behind
+					this.dropped++;
+					this.sequence.set(next + 1);
+					continue;
+				}
+
+				if (this.policy == OverflowPolicy.SAMPLE && available - next > slots.length / 2
+						&& this.sampleCount++ % SAMPLE_RATE != 0) {
+					this.sampledOut++;
+					this.sequence.set(next + 1);
+					continue;
+				}
+
+				this.event.host = slot.host;
+				this.event.hostId = slot.hostId;
+				this.event.pollingStatus.copy(slot.status);
+
+				if (slot.sequence != next) {
+					// overwritten while being copied
+					this.dropped++;
+					this.sequence.set(next + 1);
+					continue;
+				}
+
+				this.sequence.set(next + 1);
+
+				long start = System.nanoTime();
+				try {
+					this.handler.updateStatus(this.event);
+				} catch (Throwable t) {
+					logger.error(this.thread.getName() + " threw an error", t);
+				}
+				this.latency.record(System.nanoTime() - start);
+				this.processed++;
+
+			}
+
+			logger.debug(this.thread.getName() + " stopped");
+
+		}
+
+		private void idle(long next) {
+
+			this.waiting = true;
+			if (cursor.get() <= next && this.running) {
+				LockSupport.parkNanos(IDLE_PARK_IN_NANO);
+			}
+			this.waiting = false;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.cloudian.analytics;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HashRing places agents on a consistent-hash ring, and gives a key the agents that own it.
+ *
+ * Each agent is placed at virtualNodes points hashed from its name, and a key is owned by
+ * the first replicas distinct agents found clockwise from the hash of the key.
+ * When an agent is added or removed, only the keys next to its points move, from or to it,
+ * and the others keep their owners.
+ *
+ * A ring is immutable, and the same agents give the same ring on every agent whatever their order is.
+ *
+ */
+public class HashRing {
+
+	static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private final List<String> agents;
+	// sorted points, and the agent of each
+	private final long[] points;
+	private final int[] owners;
+
+	public HashRing(List<String> agents, int virtualNodes) {
+
+		this.agents = Collections.unmodifiableList(new ArrayList<String>(agents));
+
+		long[] points = new long[agents.size() * virtualNodes];
+		for (int agent = 0; agent < agents.size(); agent++) {
+			for (int i = 0; i < virtualNodes; i++) {
+				points[agent * virtualNodes + i] = hash(agents.get(agent) + "#" + i);
+			}
+		}
+
+		Integer[] order = new Integer[points.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> points[a] != points[b] ? Long.compare(points[a], points[b])
+				: agents.get(a / virtualNodes).compareTo(agents.get(b / virtualNodes)));
+
+		this.points = new long[points.length];
+		this.owners = new int[points.length];
+		for (int i = 0; i < order.length; i++) {
+			this.points[i] = points[order[i]];
+			this.owners[i] = order[i] / virtualNodes;
+		}
+
+	}
+
+	public List<String> getAgents() {
+		return this.agents;
+	}
+
+	/**
+	 * @return the indexes of the agents that own a key in the order found on the ring,
+	 * as many as the replicas or the agents, whichever is fewer
+	 */
+	public int[] owners(String key, int replicas) {
+
+		int count = Math.min(replicas, this.agents.size());
+		int[] found = new int[count];
+		if (count == 0) {
+			return found;
+		}
+
+		int index = Arrays.binarySearch(this.points, hash(key));
+		if (index < 0) {
+			index = -index - 1;
+		}
+
+		for (int n = 0, i = 0; n < count; i++) {
+
+			int owner = this.owners[(index + i) % this.owners.length];
+			boolean known = false;
+			for (int j = 0; j < n; j++) {
+				known |= found[j] == owner;
+			}
+			if (!known) {
+				found[n++] = owner;
+			}
+
+		}
+
+		return found;
+
+	}
+
+	/**
+	 * @return the first 8 bytes of the MD5 of a string, which is spread evenly enough however alike strings are
+	 */
+	static long hash(String value) {
+
+		byte[] bytes;
+		try {
+			bytes = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = hash << 8 | (bytes[i] & 0xff);
+		}
+
+		return hash;
+
+	}
+
+}
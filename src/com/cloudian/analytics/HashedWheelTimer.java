@@ -0,0 +1,245 @@
+package com.cloudian.analytics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A single thread timer that keeps timeouts in a wheel of buckets, one bucket per tick.
+ * Adding and cancelling a timeout is O(1), and any number of timeouts share the same thread.
+ *
+ * Ticks are computed from the start time, not by sleeping a tick duration after another,
+ * so a timer does not drift however long tasks take.
+ * A task is run on the timer thread, so it must not block.
+ *
+ * The design is the same as the one described in
+ * "Hashed and Hierarchical Timing Wheels" by George Varghese and Tony Lauck.
+ *
+ */
+public class HashedWheelTimer implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(HashedWheelTimer.class);
+
+	static final long DEFAULT_TICK_IN_MILLIS = 10;
+	static final int DEFAULT_WHEEL_SIZE = 512;
+
+	public interface TimerTask {
+
+		/**
+		 * This is called on the timer thread when the timeout expires.
+		 */
+		void run(Timeout timeout);
+
+	}
+
+	public static final class Timeout {
+
+		final TimerTask task;
+		// nano time since the start of the timer
+		final long deadline;
+		// only touched by the timer thread
+		long remainingRounds;
+		Timeout next;
+		private volatile boolean cancelled = false;
+
+		private Timeout(TimerTask task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * A cancelled timeout is dropped when its bucket comes round.
+		 */
+		public void cancel() {
+			this.cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+
+	}
+
+	private final long tickInNano;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime;
+	private final Thread thread;
+	private volatile boolean running = true;
+	// only touched by the timer thread
+	private long tick = 0;
+
+	public HashedWheelTimer(String name) {
+		this(name, DEFAULT_TICK_IN_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param wheelSize rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.tickInNano = Math.max(1, unit.toNanos(tickDuration));
+		this.startTime = System.nanoTime();
+
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+
+	}
+
+	/**
+	 * This can be called from any thread, including the timer thread in a task.
+	 */
+	public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+		return this.newTimeoutAt(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+	}
+
+	/**
+	 * @param nanoTime an absolute deadline in System#nanoTime
+	 */
+	public Timeout newTimeoutAt(TimerTask task, long nanoTime) {
+
+		Timeout timeout = new Timeout(task, nanoTime - this.startTime);
+		this.pending.offer(timeout);
+		return timeout;
+
+	}
+
+	/**
+	 * @return nano seconds since the deadline of a timeout, e.g. how late its task is run
+	 */
+	long lateness(Timeout timeout) {
+		return System.nanoTime() - this.startTime - timeout.deadline;
+	}
+
+	long getTickInNano() {
+		return this.tickInNano;
+	}
+
+	public void stop() {
+		this.running = false;
+		this.thread.interrupt();
+	}
+
+	@Override
+	public void run() {
+
+		while (this.running) {
+
+			if (!this.waitForNextTick()) {
+				continue;
+			}
+
+			this.transferPending();
+			this.expire((int) (this.tick & this.mask));
+			this.tick++;
+
+		}
+
+		logger.debug("timer stopped");
+
+	}
+
+	/**
+	 * @return false when interrupted
+	 */
+	private boolean waitForNextTick() {
+
+		long deadline = this.tickInNano * (this.tick + 1);
+
+		while (true) {
+
+			long current = System.nanoTime() - this.startTime;
+			long sleepInMillis = (deadline - current + 999999) / 1000000;
+
+			if (sleepInMillis <= 0) {
+				return true;
+			}
+
+			try {
+				Thread.sleep(sleepInMillis);
+			} catch (InterruptedException e) {
+				return false;
+			}
+
+		}
+
+	}
+
+	private void transferPending() {
+
+		Timeout timeout;
+		while ((timeout = this.pending.poll()) != null) {
+
+			if (timeout.isCancelled()) {
+				continue;
+			}
+
+			long calculated = timeout.deadline / this.tickInNano;
+			timeout.remainingRounds = (calculated - this.tick) / this.wheel.length;
+
+			// an expired one goes to the current bucket
+			long ticks = Math.max(calculated, this.tick);
+			int index = (int) (ticks & this.mask);
+
+			timeout.next = this.wheel[index];
+			this.wheel[index] = timeout;
+
+		}
+
+	}
+
+	private void expire(int index) {
+
+		Timeout previous = null;
+		Timeout timeout = this.wheel[index];
+
+		while (timeout != null) {
+
+			Timeout next = timeout.next;
+			boolean remove = false;
+
+			if (timeout.isCancelled()) {
+
+				remove = true;
+
+			} else if (timeout.remainingRounds <= 0) {
+
+				remove = true;
+				try {
+					timeout.task.run(timeout);
+				} catch (Throwable t) {
+					logger.error("a timer task threw an error", t);
+				}
+
+			} else {
+
+				timeout.remainingRounds--;
+
+			}
+
+			if (remove) {
+				if (previous == null) {
+					this.wheel[index] = next;
+				} else {
+					previous.next = next;
+				}
+				timeout.next = null;
+			} else {
+				previous = timeout;
+			}
+
+			timeout = next;
+
+		}
+
+	}
+
+}
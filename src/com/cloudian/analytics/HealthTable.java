@@ -0,0 +1,352 @@
+package com.cloudian.analytics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * HealthTable combines the PHI score and the anomaly score of each host into the verdict in README.
+ * A host needs attention when both of the following are met:
+ * 1. HTM raises an anomaly score higher than -Dcloudsonar.health.anomaly (default: 0.5)
+ * 2. PHI is higher than -Dcloudsonar.health.phi (default: 8)
+ *
+ * FailureDetectorUpdateHandler writes PHI on every update, and HTM writes an anomaly score on every window,
+ * into a mutable entry of the host, so that a writer neither locks nor allocates.
+ * Readers are given an immutable Snapshot of all the hosts, which is copied from the entries on publish,
+ * at most once every publish interval however many readers there are, and shared by them until the next one.
+ * A snapshot is rendered as text once, so that serving it to many readers is copying bytes.
+ *
+ */
+public class HealthTable {
+
+	private static final Logger logger = LogManager.getLogger(HealthTable.class);
+
+	static final double DEFAULT_PHI_THRESHOLD = 8;
+	static final double DEFAULT_ANOMALY_THRESHOLD = 0.5;
+	static final long DEFAULT_PUBLISH_INTERVAL_IN_MILLIS = 100;
+
+	private static HealthTable defaultTable;
+
+	private final HostRegistry registry;
+	// by host id
+	private final HostTable<Entry> entries = new HostTable<Entry>();
+	private final double phiThreshold;
+	private final double anomalyThreshold;
+	private final long publishInterval;
+	private volatile Snapshot published;
+	private volatile boolean dirty = false;
+	private final AtomicBoolean publishing = new AtomicBoolean();
+
+	public HealthTable(double phiThreshold, double anomalyThreshold, long publishIntervalInMillis) {
+		this(HostRegistry.getDefault(), phiThreshold, anomalyThreshold, publishIntervalInMillis);
+	}
+
+	HealthTable(HostRegistry registry, double phiThreshold, double anomalyThreshold, long publishIntervalInMillis) {
+		this.registry = registry;
+		this.phiThreshold = phiThreshold;
+		this.anomalyThreshold = anomalyThreshold;
+		this.publishInterval = TimeUnit.MILLISECONDS.toNanos(publishIntervalInMillis);
+		// as old as to be published by the first reader
+		this.published = new Snapshot(new Health[0], 0, System.nanoTime() - this.publishInterval);
+	}
+
+	static synchronized HealthTable getDefault() {
+
+		if (defaultTable == null) {
+			defaultTable = new HealthTable(doubleProperty(CloudSonar.HEALTH_PHI_PROPERTY, DEFAULT_PHI_THRESHOLD),
+					doubleProperty(CloudSonar.HEALTH_ANOMALY_PROPERTY, DEFAULT_ANOMALY_THRESHOLD), DEFAULT_PUBLISH_INTERVAL_IN_MILLIS);
+		}
+
+		return defaultTable;
+
+	}
+
+	private static double doubleProperty(String name, double defaultValue) {
+
+		String value = System.getProperty(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+
+	}
+
+	/**
+	 * Called by the failure detector of a host, a single writer at a time.
+	 * @param duration in nano seconds, how long the last poll took or has been waiting
+	 */
+	void updatePhi(int hostId, Status status, long duration, double phi) {
+
+		Entry entry = this.entry(hostId);
+		entry.status = status;
+		entry.duration = duration;
+		entry.phi = phi;
+		entry.updated = System.currentTimeMillis();
+		this.dirty = true;
+
+	}
+
+	/**
+	 * Called by the network of a host, a single writer at a time.
+	 */
+	void updateAnomaly(int hostId, double anomaly) {
+
+		Entry entry = this.entry(hostId);
+		entry.anomaly = anomaly;
+		entry.updated = System.currentTimeMillis();
+		this.dirty = true;
+
+	}
+
+	private Entry entry(int hostId) {
+
+		Entry entry = this.entries.get(hostId);
+		if (entry == null) {
+			this.entries.compareAndSet(hostId, null, new Entry());
+			entry = this.entries.get(hostId);
+		}
+
+		return entry;
+
+	}
+
+	/**
+	 * @return the last snapshot published, which is published anew if it is older than the publish interval and outdated
+	 */
+	public Snapshot snapshot() {
+
+		Snapshot snapshot = this.published;
+		if (!this.dirty || System.nanoTime() - snapshot.publishedAt < this.publishInterval) {
+			return snapshot;
+		}
+
+		// one reader publishes, and the others are given the last one meanwhile
+		if (!this.publishing.compareAndSet(false, true)) {
+			return snapshot;
+		}
+
+		try {
+			this.dirty = false;
+			snapshot = this.publish();
+			this.published = snapshot;
+		} finally {
+			this.publishing.set(false);
+		}
+
+		return snapshot;
+
+	}
+
+	/**
+	 * @return true if both of the scores are higher than the thresholds, false if either is NaN
+	 */
+	boolean needsAttention(double phi, double anomaly) {
+		return phi > this.phiThreshold && anomaly > this.anomalyThreshold;
+	}
+
+	private Snapshot publish() {
+
+		List<Health> hosts = new ArrayList<Health>();
+		int attention = 0;
+		for (int id = 0; id < this.registry.size(); id++) {
+
+			Entry entry = this.entries.get(id);
+			if (entry == null) {
+				continue;
+			}
+
+			double phi = entry.phi;
+			double anomaly = entry.anomaly;
+			Health health = new Health(this.registry.name(id), id, entry.status, entry.duration, phi, anomaly, entry.updated,
+					this.needsAttention(phi, anomaly));
+			if (health.needsAttention) {
+				attention++;
+			}
+			hosts.add(health);
+
+		}
+
+		logger.trace("published health of " + hosts.size() + " hosts");
+
+		return new Snapshot(hosts.toArray(new Health[hosts.size()]), attention, System.nanoTime());
+
+	}
+
+	/**
+	 * The latest values of a host, written by the detectors.
+	 */
+	private static final class Entry {
+
+		volatile Status status = Status.NOT_STARTED;
+		volatile long duration = -1;
+		volatile double phi = Double.NaN;
+		volatile double anomaly = Double.NaN;
+		// in milli seconds
+		volatile long updated;
+
+	}
+
+	/**
+	 * The health of a host in a snapshot.
+	 */
+	public static final class Health {
+
+		public final String host;
+		public final int hostId;
+		public final Status status;
+		// in nano seconds, -1 if none yet
+		public final long duration;
+		// NaN if none yet
+		public final double phi, anomaly;
+		// in milli seconds
+		public final long updated;
+		public final boolean needsAttention;
+
+		Health(String host, int hostId, Status status, long duration, double phi, double anomaly, long updated, boolean needsAttention) {
+			this.host = host;
+			this.hostId = hostId;
+			this.status = status;
+			this.duration = duration;
+			this.phi = phi;
+			this.anomaly = anomaly;
+			this.updated = updated;
+			this.needsAttention = needsAttention;
+		}
+
+		void appendTo(StringBuilder text) {
+			text.append(this.host).append(", ")
+				.append(this.status).append(", ")
+				.append(this.duration).append(", ")
+				.append(round(this.phi, 100)).append(", ")
+				.append(round(this.anomaly, 1000)).append(", ")
+				.append(this.needsAttention ? "needs-attention" : "ok").append('\n');
+		}
+
+		private static double round(double value, double scale) {
+			return Double.isNaN(value) || Double.isInfinite(value) ? value : Math.rint(value * scale) / scale;
+		}
+
+	}
+
+	/**
+	 * An immutable table of the health of hosts in the order of host ids.
+	 */
+	public static final class Snapshot {
+
+		private final Health[] hosts;
+		private final int attention;
+		// System#nanoTime when published
+		final long publishedAt;
+		// rendered by the first reader
+		private volatile byte[] text;
+		private volatile byte[] attentionText;
+
+		Snapshot(Health[] hosts, int attention, long publishedAt) {
+			this.hosts = hosts;
+			this.attention = attention;
+			this.publishedAt = publishedAt;
+		}
+
+		public List<Health> getHosts() {
+			return Collections.unmodifiableList(Arrays.asList(this.hosts));
+		}
+
+		/**
+		 * @return null if a host has no health yet
+		 */
+		public Health get(String host) {
+
+			for (Health health : this.hosts) {
+				if (health.host.equals(host)) {
+					return health;
+				}
+			}
+
+			return null;
+
+		}
+
+		/**
+		 * @return null if a host has no health yet
+		 */
+		public Health get(int hostId) {
+
+			// in the order of host ids
+			int low = 0;
+			int high = this.hosts.length - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int id = this.hosts[middle].hostId;
+				if (id < hostId) {
+					low = middle + 1;
+				} else if (id > hostId) {
+					high = middle - 1;
+				} else {
+					return this.hosts[middle];
+				}
+			}
+
+			return null;
+
+		}
+
+		public int size() {
+			return this.hosts.length;
+		}
+
+		public int getAttentionCount() {
+			return this.attention;
+		}
+
+		/**
+		 * @return a line of "host, status, duration, phi, anomaly, needs-attention|ok" per host
+		 */
+		byte[] toText() {
+
+			byte[] text = this.text;
+			if (text == null) {
+				this.text = text = this.render(false);
+			}
+
+			return text;
+
+		}
+
+		/**
+		 * @return the same as toText of only the hosts that need attention
+		 */
+		byte[] toAttentionText() {
+
+			byte[] text = this.attentionText;
+			if (text == null) {
+				this.attentionText = text = this.render(true);
+			}
+
+			return text;
+
+		}
+
+		private byte[] render(boolean attentionOnly) {
+
+			StringBuilder text = new StringBuilder(64 * (attentionOnly ? this.attention : this.hosts.length) + 64);
+			text.append("# ").append(this.hosts.length).append(" hosts, ").append(this.attention).append(" need attention\n")
+				.append("# host, status, duration, phi, anomaly, verdict\n");
+			for (Health health : this.hosts) {
+				if (!attentionOnly || health.needsAttention) {
+					health.appendTo(text);
+				}
+			}
+
+			return text.toString().getBytes(StandardCharsets.UTF_8);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * HostRegistry assigns a dense int id to each target, from 0 in the order targets are registered,
+ * so that per-host state can be kept in a HostTable instead of a map keyed by InetAddress.
+ *
+ * The name of a host is cached, and refreshed on a background thread when it is older than a TTL,
+ * so that no one on a hot path waits for DNS.
+ * 1. a host given by name keeps the name, and its address follows the name when the name resolves to another one
+ * 2. a host given by an address is named by a reverse lookup, and by the address until then
+ *
+ */
+public class HostRegistry {
+
+	private static final Logger logger = LogManager.getLogger(HostRegistry.class);
+
+	static final long DEFAULT_TTL_IN_SECONDS = 60;
+
+	private static HostRegistry defaultRegistry;
+
+	private final ConcurrentMap<InetAddress, Host> ids = new ConcurrentHashMap<InetAddress, Host>();
+	private final HostTable<Host> hosts = new HostTable<Host>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final long ttl;
+	private final ExecutorService resolver = Executors.newSingleThreadExecutor(new ProbeEngine.DaemonThreadFactory("sonar-dns"));
+
+	public HostRegistry(long ttlInSeconds) {
+		this.ttl = TimeUnit.SECONDS.toNanos(ttlInSeconds);
+	}
+
+	static synchronized HostRegistry getDefault() {
+
+		if (defaultRegistry == null) {
+			defaultRegistry = new HostRegistry(Long.getLong(CloudSonar.DNS_TTL_PROPERTY, DEFAULT_TTL_IN_SECONDS));
+		}
+
+		return defaultRegistry;
+
+	}
+
+	/**
+	 * @return the id of a host, which is assigned if the host is new
+	 */
+	public int register(InetAddress address) {
+
+		Host host = this.ids.get(address);
+		if (host != null) {
+			return host.id;
+		}
+
+		synchronized (this) {
+
+			host = this.ids.get(address);
+			if (host != null) {
+				return host.id;
+			}
+
+			host = new Host(this.size.get(), address);
+			// visible by id before by address
+			this.hosts.set(host.id, host);
+			this.ids.put(address, host);
+			this.size.incrementAndGet();
+
+		}
+
+		logger.debug("registered " + host.name + " as " + host.id);
+
+		if (!host.named) {
+			this.refresh(host);
+		}
+
+		return host.id;
+
+	}
+
+	/**
+	 * @return the id of a job, the host of which is registered if the job did not come from a PollingStrategy
+	 */
+	int id(PollingEvent event) {
+		int hostId = event.hostId();
+		return hostId < 0 ? this.register(event.host()) : hostId;
+	}
+
+	/**
+	 * @return the current address of a host
+	 */
+	public InetAddress address(int id) {
+		return this.hosts.get(id).address;
+	}
+
+	/**
+	 * @return the cached name of a host, which is refreshed in the background once expired
+	 */
+	public String name(int id) {
+
+		Host host = this.hosts.get(id);
+
+		if (System.nanoTime() - host.resolved > this.ttl) {
+			this.refresh(host);
+		}
+
+		return host.name;
+
+	}
+
+	/**
+	 * @return the host as given, which stays the same across restarts unlike an id
+	 */
+	public String key(int id) {
+		return this.hosts.get(id).key;
+	}
+
+	/**
+	 * @return an address of a host that is not polled over a network, e.g. a recorded or simulated one,
+	 * which is a unique local address of its own derived from the name, so the name is kept and never looked up
+	 */
+	static InetAddress localAddress(String name) throws UnknownHostException {
+
+		byte[] bytes;
+		try {
+			bytes = MessageDigest.getInstance("MD5").digest(name.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		bytes[0] = (byte) 0xfd;
+
+		return InetAddress.getByAddress(name, bytes);
+
+	}
+
+	public int size() {
+		return this.size.get();
+	}
+
+	private void refresh(final Host host) {
+
+		if (host.resolving) {
+			return;
+		}
+		host.resolving = true;
+
+		this.resolver.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					host.resolve();
+				} finally {
+					host.resolved = System.nanoTime();
+					host.resolving = false;
+				}
+			}
+		});
+
+	}
+
+	public void shutdown() {
+		this.resolver.shutdownNow();
+	}
+
+	static class Host {
+
+		final int id;
+		// given by name, or by address
+		final boolean named;
+		// the name or the address given
+		final String key;
+		volatile InetAddress address;
+		volatile String name;
+		volatile long resolved;
+		volatile boolean resolving = false;
+
+		Host(int id, InetAddress address) {
+			this.id = id;
+			this.address = address;
+			// toString never looks up a name, and starts with / if there is no name
+			this.named = !address.toString().startsWith("/");
+			this.name = this.named ? address.getHostName() : address.getHostAddress();
+			this.key = this.name;
+			this.resolved = System.nanoTime();
+		}
+
+		void resolve() {
+
+			try {
+
+				if (this.named) {
+
+					InetAddress current = InetAddress.getByName(this.name);
+					if (!current.equals(this.address)) {
+						logger.info(this.name + " moved from " + this.address.getHostAddress() + " to " + current.getHostAddress());
+						this.address = current;
+					}
+
+				} else {
+
+					// a new instance to avoid the name cached in the original one
+					this.name = InetAddress.getByAddress(this.address.getAddress()).getHostName();
+
+				}
+
+			} catch (UnknownHostException e) {
+				logger.warn("failed to resolve " + this.name + ", keeping " + this.address.getHostAddress());
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,82 @@
+package com.cloudian.analytics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A table of per-host state indexed by a host id of a HostRegistry.
+ *
+ * Values are kept in chunks of CHUNK_SIZE, so a lookup is two array accesses without hashing nor locking.
+ * A new chunk is added under a lock when an id beyond the current ones is set,
+ * and existing chunks are shared by the grown table, so no update is lost while growing.
+ *
+ */
+class HostTable<T> {
+
+	private static final int CHUNK_BITS = 10;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private volatile AtomicReferenceArray<T>[] chunks = newChunks(0);
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <T> AtomicReferenceArray<T>[] newChunks(int size) {
+		return new AtomicReferenceArray[size];
+	}
+
+	/**
+	 * @return null if nothing is set
+	 */
+	T get(int id) {
+
+		AtomicReferenceArray<T>[] chunks = this.chunks;
+		int index = id >>> CHUNK_BITS;
+		if (index >= chunks.length) {
+			return null;
+		}
+
+		return chunks[index].get(id & CHUNK_MASK);
+
+	}
+
+	void set(int id, T value) {
+		this.chunk(id).set(id & CHUNK_MASK, value);
+	}
+
+	boolean compareAndSet(int id, T expected, T value) {
+		return this.chunk(id).compareAndSet(id & CHUNK_MASK, expected, value);
+	}
+
+	/**
+	 * @return the number of ids this table has room for without growing
+	 */
+	int capacity() {
+		return this.chunks.length * CHUNK_SIZE;
+	}
+
+	private AtomicReferenceArray<T> chunk(int id) {
+
+		AtomicReferenceArray<T>[] chunks = this.chunks;
+		int index = id >>> CHUNK_BITS;
+		if (index < chunks.length) {
+			return chunks[index];
+		}
+
+		synchronized (this) {
+
+			chunks = this.chunks;
+			if (index >= chunks.length) {
+				AtomicReferenceArray<T>[] grown = Arrays.copyOf(chunks, index + 1);
+				for (int i = chunks.length; i < grown.length; i++) {
+					grown[i] = new AtomicReferenceArray<T>(CHUNK_SIZE);
+				}
+				this.chunks = chunks = grown;
+			}
+
+			return chunks[index];
+
+		}
+
+	}
+
+}
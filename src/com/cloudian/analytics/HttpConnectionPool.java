@@ -0,0 +1,174 @@
+package com.cloudian.analytics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A per-host pool of keep-alive connections for HttpHeadPollingJob.
+ * A connection, including its TLS handshake, is established outside of a measurement,
+ * and reused by the following jobs for the same host.
+ *
+ */
+public class HttpConnectionPool {
+
+	private static final Logger logger = LogManager.getLogger(HttpConnectionPool.class);
+
+	private final ConcurrentMap<InetAddress, Deque<HttpConnection>> idle = new ConcurrentHashMap<InetAddress, Deque<HttpConnection>>();
+	private final int port;
+	private final boolean secure;
+	private final int maxIdlePerHost;
+	private final int timeoutInMillis;
+
+	final AtomicLong opened = new AtomicLong();
+	final AtomicLong reused = new AtomicLong();
+
+	public HttpConnectionPool(int port, boolean secure, int maxIdlePerHost, int timeoutInMillis) {
+		this.port = port;
+		this.secure = secure;
+		this.maxIdlePerHost = maxIdlePerHost;
+		this.timeoutInMillis = timeoutInMillis;
+	}
+
+	int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * @param name of the host to verify a certificate against, and to log, which is not looked up
+	 * @return an idle connection to the host if any, otherwise a new one
+	 * @throws IOException when a new connection can not be established
+	 */
+	HttpConnection acquire(InetAddress host, String name) throws IOException {
+
+		Deque<HttpConnection> connections = this.idle.get(host);
+		if (connections != null) {
+
+			HttpConnection connection;
+			while ((connection = connections.pollFirst()) != null) {
+
+				if (!connection.socket.isClosed()) {
+					this.reused.incrementAndGet();
+					connection.reused = true;
+					return connection;
+				}
+
+			}
+
+		}
+
+		return this.open(host, name);
+
+	}
+
+	HttpConnection open(InetAddress host, String name) throws IOException {
+
+		Socket socket = new Socket();
+		try {
+
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(this.timeoutInMillis);
+			socket.connect(new InetSocketAddress(host, this.port), this.timeoutInMillis);
+
+			if (this.secure) {
+				SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, name, this.port, true);
+				ssl.startHandshake();
+				socket = ssl;
+			}
+
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		this.opened.incrementAndGet();
+		if (logger.isDebugEnabled()) {
+			logger.debug("opened a new connection to " + name + ":" + this.port);
+		}
+
+		return new HttpConnection(host, socket);
+
+	}
+
+	/**
+	 * Returns a connection to the pool if it can be kept alive, otherwise closes it.
+	 */
+	void release(HttpConnection connection, boolean keepAlive) {
+
+		if (!keepAlive) {
+			connection.close();
+			return;
+		}
+
+		Deque<HttpConnection> connections = this.idle.get(connection.host);
+		if (connections == null) {
+			Deque<HttpConnection> created = new ConcurrentLinkedDeque<HttpConnection>();
+			connections = this.idle.putIfAbsent(connection.host, created);
+			if (connections == null) {
+				connections = created;
+			}
+		}
+
+		if (connections.size() >= this.maxIdlePerHost) {
+			connection.close();
+			return;
+		}
+
+		connections.offerFirst(connection);
+
+	}
+
+	public void close() {
+
+		for (Deque<HttpConnection> connections : this.idle.values()) {
+			HttpConnection connection;
+			while ((connection = connections.pollFirst()) != null) {
+				connection.close();
+			}
+		}
+
+	}
+
+	static class HttpConnection {
+
+		final InetAddress host;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		boolean reused = false;
+
+		HttpConnection(InetAddress host, Socket socket) throws IOException {
+			this.host = host;
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		void close() {
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				logger.debug("failed to close a connection", e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.cloudian.analytics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.cloudian.analytics.HttpConnectionPool.HttpConnection;
+
+/**
+ * This is an HTTP HEAD job on a keep-alive connection from HttpConnectionPool.
+ *
+ * The job is started when a request is about to be written, so that a connection setup is not measured.
+ * The time to the first byte of a response is recorded separately from the time to the end of its headers.
+ *
+ * A response of 5xx is regarded as an error, any other status means the server responded.
+ *
+ */
+public class HttpHeadPollingJob extends PollingJob {
+
+	private static final Logger logger = LogManager.getLogger(HttpHeadPollingJob.class);
+
+	private final HttpConnectionPool pool;
+	private final byte[] request;
+
+	public HttpHeadPollingJob(InetAddress host, HttpConnectionPool pool, byte[] request) {
+		super(host);
+		this.pool = pool;
+		this.request = request;
+	}
+
+	static byte[] createRequest(String hostHeader, String path) {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("HEAD ").append(path).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(hostHeader).append("\r\n");
+		sb.append("User-Agent: CloudSonar\r\n");
+		sb.append("Connection: keep-alive\r\n");
+		sb.append("\r\n");
+
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+
+	}
+
+	@Override
+	public void run() {
+
+		HttpConnection connection;
+		try {
+			connection = this.pool.acquire(this.host, this.key());
+		} catch (IOException e) {
+			this.started();
+			this.failed(e.getMessage() == null ? "unreachable" : e.getMessage());
+			if (logger.isDebugEnabled()) {
+				logger.debug("HttpHead to " + this.name() + " failed to connect");
+			}
+			return;
+		}
+
+		try {
+
+			this.exchange(connection);
+
+		} catch (IOException e) {
+
+			connection.close();
+
+			if (!connection.reused || this.pollingStatus.firstByte > -1) {
+				this.failed(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+				return;
+			}
+
+			// the server closed an idle connection, so retry once on a new one
+			if (logger.isDebugEnabled()) {
+				logger.debug("HttpHead to " + this.name() + " retries on a new connection");
+			}
+			try {
+				connection = this.pool.open(this.host, this.key());
+				this.exchange(connection);
+			} catch (IOException retried) {
+				connection.close();
+				if (this.pollingStatus.status == PollingStatus.Status.NOT_STARTED) {
+					this.started();
+				}
+				this.failed(retried.getMessage() == null ? retried.getClass().getSimpleName() : retried.getMessage());
+			}
+
+		}
+
+	}
+
+	private void exchange(HttpConnection connection) throws IOException {
+
+		this.started();
+
+		connection.out.write(this.request);
+		connection.out.flush();
+
+		InputStream in = connection.in;
+		int first = in.read();
+		if (first < 0) {
+			throw new EOFException("connection closed");
+		}
+		this.pollingStatus.firstByteReceived();
+
+		// status line
+		StringBuilder line = new StringBuilder(64);
+		line.append((char) first);
+		readLine(in, line);
+		String statusLine = line.toString();
+
+		boolean keepAlive = !statusLine.startsWith("HTTP/1.0");
+
+		// headers, a response to HEAD has no body
+		while (true) {
+			line.setLength(0);
+			readLine(in, line);
+			if (line.length() == 0) {
+				break;
+			}
+			String header = line.toString().toLowerCase();
+			if (header.startsWith("connection:")) {
+				keepAlive = header.contains("keep-alive") || (keepAlive && !header.contains("close"));
+			}
+		}
+
+		int code = parseStatusCode(statusLine);
+
+		if (code >= 500 || code < 0) {
+			this.failed(statusLine);
+		} else {
+			this.finished();
+		}
+
+		this.pool.release(connection, keepAlive);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("HttpHead to " + this.name() + " got " + statusLine);
+		}
+
+	}
+
+	/**
+	 * reads a line without its CRLF
+	 */
+	private static void readLine(InputStream in, StringBuilder line) throws IOException {
+
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new EOFException("connection closed");
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+
+	}
+
+	static int parseStatusCode(String statusLine) {
+
+		// HTTP/1.1 200 OK
+		int start = statusLine.indexOf(' ');
+		if (start < 0 || statusLine.length() < start + 4) {
+			return -1;
+		}
+
+		try {
+			return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+
+	}
+
+}
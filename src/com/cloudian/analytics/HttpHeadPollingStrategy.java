@@ -0,0 +1,72 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+
+/**
+ * This strategy polls hosts by HTTP HEAD requests on keep-alive connections,
+ * which tells how a web front-end responds rather than how ICMP does.
+ *
+ * Requests to different hosts are sent concurrently by the threads of a ProbeEngine,
+ * so the number of threads is bounded by the engine, not by the number of hosts.
+ *
+ * The Host header of a request is the name or the address a host is given as, which is never looked up,
+ * as jobs are created on the thread of a PollingScheduler.
+ *
+ * sonar.csv has an extra column of the time to the first byte for this strategy.
+ *
+ */
+public class HttpHeadPollingStrategy extends PollingStrategy {
+
+	static final int DEFAULT_PORT = 80;
+	static final String DEFAULT_PATH = "/";
+	static final int DEFAULT_TIMEOUT_IN_MILLIS = 10000;
+	static final int MAX_IDLE_CONNECTIONS_PER_HOST = 2;
+
+	private final HttpConnectionPool pool;
+	private final String path;
+	private final HostRegistry registry = HostRegistry.getDefault();
+	// by host id
+	private final HostTable<byte[]> requests = new HostTable<byte[]>();
+
+	public HttpHeadPollingStrategy(PollingUpdateHandler[] handlers, int port, boolean secure, String path) {
+		this(handlers, ProbeEngine.getDefault(), port, secure, path, DEFAULT_TIMEOUT_IN_MILLIS);
+	}
+
+	public HttpHeadPollingStrategy(PollingUpdateHandler[] handlers, ProbeEngine engine, int port, boolean secure, String path, int timeoutInMillis) {
+		super(handlers, engine);
+		this.pool = new HttpConnectionPool(port, secure, MAX_IDLE_CONNECTIONS_PER_HOST, timeoutInMillis);
+		this.path = path;
+	}
+
+	@Override
+	PollingJob createPollingJob(InetAddress host) {
+		return this.createPollingJob(this.registry.register(host), host);
+	}
+
+	@Override
+	PollingJob createPollingJob(int hostId, InetAddress host) {
+
+		// a request is the same for every job of a host
+		byte[] request = this.requests.get(hostId);
+		if (request == null) {
+			request = HttpHeadPollingJob.createRequest(this.registry.key(hostId) + ":" + this.pool.getPort(), this.path);
+			this.requests.set(hostId, request);
+		}
+
+		return new HttpHeadPollingJob(host, this.pool, request);
+
+	}
+
+	public long getOpenedConnections() {
+		return this.pool.opened.get();
+	}
+
+	public long getReusedConnections() {
+		return this.pool.reused.get();
+	}
+
+	public void shutdown() {
+		this.pool.close();
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.cloudian.analytics;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of durations in nano seconds in the manner of HdrHistogram.
+ *
+ * Values below SUB_BUCKET_COUNT have a bucket each, and each power of two above that is split into
+ * SUB_BUCKET_COUNT / 2 buckets, so a value is kept with a relative error of less than 1 / 64.
+ * Recording is O(1), and the memory is fixed at BUCKET_COUNT, i.e. 1984, ints whatever number of values is recorded.
+ * Values above MAX_VALUE, about 68 seconds, are recorded as MAX_VALUE.
+ *
+ * Histograms can be merged with add, e.g. across hosts or across intervals.
+ * This is not thread-safe.
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+	static final long MAX_VALUE = (1L << 36) - 1;
+	static final int BUCKET_COUNT = bucketOf(MAX_VALUE) + 1;
+
+	private final int[] counts = new int[BUCKET_COUNT];
+	private long count = 0;
+	private long max = 0;
+
+	public void record(long value) {
+
+		long clamped = Math.max(0, Math.min(MAX_VALUE, value));
+		this.counts[bucketOf(clamped)]++;
+		this.count++;
+		this.max = Math.max(this.max, clamped);
+
+	}
+
+	/**
+	 * Adds all the values of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+
+		if (other.count == 0) {
+			return;
+		}
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			this.counts[i] += other.counts[i];
+		}
+		this.count += other.count;
+		this.max = Math.max(this.max, other.max);
+
+	}
+
+	public void reset() {
+
+		if (this.count == 0) {
+			return;
+		}
+
+		Arrays.fill(this.counts, 0);
+		this.count = 0;
+		this.max = 0;
+
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return the exact maximum, 0 if empty
+	 */
+	public long getMax() {
+		return this.max;
+	}
+
+	/**
+	 * @param percentile e.g. 99.9
+	 * @return the highest value that is equivalent to the value at a percentile, 0 if empty
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		if (this.count == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += this.counts[i];
+			if (seen >= target) {
+				return Math.min(highestEquivalentValue(i), this.max);
+			}
+		}
+
+		return this.max;
+
+	}
+
+	static int bucketOf(long value) {
+
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = Math.max(0, msb - SUB_BUCKET_HALF_BITS);
+
+		return (shift << SUB_BUCKET_HALF_BITS) + (int) (value >>> shift);
+
+	}
+
+	static long lowestEquivalentValue(int bucket) {
+
+		int shift = Math.max(0, (bucket >>> SUB_BUCKET_HALF_BITS) - 1);
+
+		return (long) (bucket - (shift << SUB_BUCKET_HALF_BITS)) << shift;
+
+	}
+
+	static long highestEquivalentValue(int bucket) {
+
+		int shift = Math.max(0, (bucket >>> SUB_BUCKET_HALF_BITS) - 1);
+
+		return lowestEquivalentValue(bucket) + (1L << shift) - 1;
+
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.cloudian.analytics;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * LatencyHistogramHandler records the duration of every finished job into a LatencyHistogram per host,
+ * and writes the tail latencies of each host over a sliding window every interval.
+ *
+ * A window is made of the last windowSize intervals, so a host keeps windowSize + 1 histograms
+ * however many jobs it has. A line of all the hosts merged is written as * after the hosts.
+ *
+ * latency.csv (timestamp, host name, count, p50, p90, p99, p99.9, max in nano seconds)
+ *
+ * An interval is rolled over by the first update after it ends.
+ *
+ */
+public class LatencyHistogramHandler implements PollingUpdateHandler {
+
+	static final long DEFAULT_INTERVAL_IN_MILLIS = 10000;
+	static final int DEFAULT_WINDOW_SIZE = 6;
+	static final String ALL_HOSTS = "*";
+	static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	private final CSVSink sink;
+	private final HostRegistry registry = HostRegistry.getDefault();
+	private final long interval;
+	private final int windowSize;
+	// by host id
+	private final HostTable<HostLatency> latencies = new HostTable<HostLatency>();
+	private final LatencyHistogram all = new LatencyHistogram();
+	private long nextRoll = 0;
+
+	public LatencyHistogramHandler(long intervalInMillis, int windowSize) {
+		this(CSVSink.get("latency"), intervalInMillis, windowSize);
+	}
+
+	LatencyHistogramHandler(CSVSink sink, long intervalInMillis, int windowSize) {
+		this.sink = sink;
+		this.interval = intervalInMillis;
+		this.windowSize = windowSize;
+	}
+
+	@Override
+	public void updateStatus(PollingEvent event) {
+
+		PollingStatus pollingStatus = event.pollingStatus();
+
+		long now = System.currentTimeMillis();
+		if (now >= this.nextRoll) {
+			if (this.nextRoll > 0) {
+				this.roll();
+			}
+			this.nextRoll = (now / this.interval + 1) * this.interval;
+		}
+
+		if (!pollingStatus.status.equals(Status.FINISHED)) {
+			return;
+		}
+
+		int hostId = this.registry.id(event);
+		HostLatency latency = this.latencies.get(hostId);
+		if (latency == null) {
+			latency = new HostLatency(this.windowSize);
+			this.latencies.set(hostId, latency);
+		}
+
+		synchronized (latency) {
+			latency.current().record(pollingStatus.duration());
+		}
+
+	}
+
+	/**
+	 * @return a copy of the window of a host as of the last interval, null if none
+	 */
+	public LatencyHistogram getWindow(int hostId) {
+
+		HostLatency latency = this.latencies.get(hostId);
+		if (latency == null) {
+			return null;
+		}
+
+		LatencyHistogram copy = new LatencyHistogram();
+		synchronized (latency) {
+			copy.add(latency.window);
+		}
+		return copy;
+
+	}
+
+	/**
+	 * Ends the current interval of all the hosts, and writes their windows.
+	 */
+	void roll() {
+
+		this.all.reset();
+
+		synchronized (this.sink) {
+
+			int size = this.registry.size();
+			for (int id = 0; id < size; id++) {
+
+				HostLatency latency = this.latencies.get(id);
+				if (latency == null) {
+					continue;
+				}
+
+				synchronized (latency) {
+					latency.roll();
+					if (latency.window.getCount() > 0) {
+						this.write(this.registry.name(id), latency.window);
+						this.all.add(latency.window);
+					}
+				}
+
+			}
+
+			if (this.all.getCount() > 0) {
+				this.write(ALL_HOSTS, this.all);
+			}
+
+		}
+
+	}
+
+	private void write(String host, LatencyHistogram histogram) {
+
+		this.sink.begin().append(host).delim().append(histogram.getCount());
+		for (double percentile : PERCENTILES) {
+			this.sink.delim().append(histogram.getValueAtPercentile(percentile));
+		}
+		this.sink.delim().append(histogram.getMax()).end();
+
+	}
+
+	/**
+	 * The histograms of the last intervals of a host, and the merged one of them.
+	 */
+	static class HostLatency {
+
+		private final LatencyHistogram[] intervals;
+		final LatencyHistogram window = new LatencyHistogram();
+		private int current = 0;
+
+		HostLatency(int windowSize) {
+			this.intervals = new LatencyHistogram[windowSize];
+			for (int i = 0; i < windowSize; i++) {
+				this.intervals[i] = new LatencyHistogram();
+			}
+		}
+
+		LatencyHistogram current() {
+			return this.intervals[this.current];
+		}
+
+		void roll() {
+
+			this.window.reset();
+			for (LatencyHistogram histogram : this.intervals) {
+				this.window.add(histogram);
+			}
+
+			// the oldest one is reused for the next interval
+			this.current = (this.current + 1) % this.intervals.length;
+			this.intervals[this.current].reset();
+
+		}
+
+	}
+
+}
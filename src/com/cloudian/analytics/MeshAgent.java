@@ -0,0 +1,589 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * MeshAgent exchanges node to node health among CloudSonar agents, one on each member of a mesh,
+ * so that every agent holds the N x N matrix of the PHI and anomaly scores each member sees of each other member.
+ *
+ * An agent polls the other members as hosts, and its own row of the matrix is taken from its HealthTable every round.
+ * Rows are spread by gossip over UDP. Every round, an agent fills one datagram of up to maxBytes
+ * with its own row first and then the rows it has learned in turn, and sends the same datagram to fanout random members,
+ * so an agent sends no more than fanout * maxBytes a round however large the mesh is.
+ * A row that does not fit is sent in chunks over rounds.
+ *
+ * Every cell has the version of its row, the time in milli seconds when its origin took it, which only the origin advances,
+ * so a cell is replaced only by a newer one, and datagrams can be lost, duplicated or reordered.
+ *
+ * A datagram is MAGIC(4) + MEMBERS(4, a hash of the members) + SENDER(2) + CHUNKS(2), and each chunk is
+ * ORIGIN(2) + VERSION(8) + FIRST(2) + COUNT(2) + COUNT * (PHI(2) + ANOMALY(2)) of the targets from FIRST.
+ * PHI is in 1/100 and ANOMALY in 1/10000, and NaN is 0xFFFF.
+ *
+ * All the members are given the same list of members, the index of which identifies a member.
+ * A member is heard when a newer row of it arrives, directly or not, so a member that stops is no longer heard
+ * while the others may still relay its last row.
+ *
+ */
+public class MeshAgent implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(MeshAgent.class);
+
+	static final int MAGIC = 0x534F4E4D; // SONM
+	static final int HEADER_SIZE = 12;
+	static final int CHUNK_HEADER_SIZE = 14;
+	static final int CELL_SIZE = 4;
+	static final long DEFAULT_INTERVAL_IN_MILLIS = 1000;
+	static final int DEFAULT_FANOUT = 3;
+	// fits in an ethernet frame without fragments
+	static final int DEFAULT_MAX_BYTES = 1400;
+
+	private static final char NAN = 0xFFFF;
+	private static final double PHI_SCALE = 100;
+	private static final double ANOMALY_SCALE = 10000;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final List<InetSocketAddress> members;
+	private final int membersHash;
+	private final int self;
+	private final int size;
+	private final HealthTable health;
+	// host ids in the health table by member, -1 for self
+	private final int[] hostIds;
+	private final long interval;
+	private final int fanout;
+	private final ByteBuffer sendBuffer;
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(65536);
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	// cells by origin * size + target, only touched by the loop thread
+	private final char[] phis;
+	private final char[] anomalies;
+	private final long[] versions;
+	// milli seconds of this agent when a newer row of each origin arrived
+	private final long[] heard;
+	private boolean changed = true;
+	// in the datagram being filled
+	private int chunks;
+	// where the next datagram continues from
+	private int ownOffset = 0, otherOrigin = 0, otherOffset = 0;
+	private volatile Matrix matrix;
+
+	// written only by the loop thread
+	volatile long rounds, sentBytes, received, rejected;
+
+	/**
+	 * Listens on the port of self on all the addresses.
+	 * @param hostIds the ids of members in the HostRegistry of the health table, -1 for self
+	 */
+	public MeshAgent(List<InetSocketAddress> members, int self, HealthTable health, int[] hostIds,
+			long intervalInMillis, int fanout, int maxBytes) throws IOException {
+		this(open(new InetSocketAddress(members.get(self).getPort())), members, self, health, hostIds, intervalInMillis, fanout, maxBytes);
+	}
+
+	/**
+	 * @param channel bound to the address of self
+	 */
+	MeshAgent(DatagramChannel channel, List<InetSocketAddress> members, int self, HealthTable health, int[] hostIds,
+			long intervalInMillis, int fanout, int maxBytes) throws IOException {
+
+		if (maxBytes < HEADER_SIZE + CHUNK_HEADER_SIZE + CELL_SIZE) {
+			throw new IllegalArgumentException("too small for a cell: " + maxBytes);
+		}
+
+		this.channel = channel;
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+		this.members = new ArrayList<InetSocketAddress>(members);
+		this.membersHash = hash(members);
+		this.self = self;
+		this.size = members.size();
+		this.health = health;
+		this.hostIds = hostIds.clone();
+		this.interval = TimeUnit.MILLISECONDS.toNanos(intervalInMillis);
+		this.fanout = Math.min(fanout, this.size - 1);
+		this.sendBuffer = ByteBuffer.allocateDirect(maxBytes);
+
+		this.phis = new char[this.size * this.size];
+		this.anomalies = new char[this.size * this.size];
+		this.versions = new long[this.size * this.size];
+		Arrays.fill(this.phis, NAN);
+		Arrays.fill(this.anomalies, NAN);
+		// given a grace period from the start as if all were heard
+		this.heard = new long[this.size];
+		Arrays.fill(this.heard, System.currentTimeMillis());
+		this.publish();
+
+		this.thread = new Thread(this, "sonar-mesh");
+		this.thread.setDaemon(true);
+
+	}
+
+	private static DatagramChannel open(InetSocketAddress address) throws IOException {
+
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(address);
+
+		return channel;
+
+	}
+
+	/**
+	 * @return a hash of the members as given, with which datagrams of another mesh are rejected
+	 */
+	static int hash(List<InetSocketAddress> members) {
+
+		StringBuilder joined = new StringBuilder();
+		for (InetSocketAddress member : members) {
+			joined.append(member.getHostString()).append(':').append(member.getPort()).append(',');
+		}
+
+		return Arrays.hashCode(joined.toString().getBytes(StandardCharsets.UTF_8));
+
+	}
+
+	public void start() {
+		this.thread.start();
+	}
+
+	public void shutdown() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	public int getPort() {
+		return this.channel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return the matrix as of the last round, which is immutable
+	 */
+	public Matrix getMatrix() {
+		return this.matrix;
+	}
+
+	@Override
+	public void run() {
+
+		logger.debug("mesh agent " + this.self + " of " + this.size + " started on " + this.getPort());
+
+		long nextRound = System.nanoTime();
+
+		while (this.running) {
+
+			try {
+
+				long wait = nextRound - System.nanoTime();
+				if (wait > 0) {
+					this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+					this.selector.selectedKeys().clear();
+				}
+
+				this.receive();
+
+				if (System.nanoTime() - nextRound >= 0) {
+					this.round();
+					nextRound += this.interval;
+					if (System.nanoTime() - nextRound > 0) {
+						// fell behind, not to send rounds in a burst
+						nextRound = System.nanoTime() + this.interval;
+					}
+				}
+
+			} catch (IOException e) {
+				logger.error("mesh agent failed", e);
+			}
+
+		}
+
+		try {
+			this.selector.close();
+			this.channel.close();
+		} catch (IOException e) {
+			logger.warn("failed to close a channel", e);
+		}
+
+		logger.debug("mesh agent " + this.self + " finished");
+
+	}
+
+	/**
+	 * Takes the own row from the health table, and sends a datagram to random members.
+	 */
+	private void round() throws IOException {
+
+		this.refreshOwnRow();
+
+		this.fill();
+		int remaining = this.sendBuffer.remaining();
+		for (int member : this.pickMembers()) {
+			this.sendBuffer.rewind();
+			try {
+				if (this.channel.send(this.sendBuffer, this.members.get(member)) > 0) {
+					this.sentBytes += remaining;
+				}
+			} catch (IOException e) {
+				logger.debug("failed to gossip to " + this.members.get(member) + ": " + e.getMessage());
+			}
+		}
+
+		if (this.changed) {
+			this.publish();
+			this.changed = false;
+		}
+		this.rounds++;
+
+	}
+
+	private void refreshOwnRow() {
+
+		HealthTable.Snapshot snapshot = this.health.snapshot();
+		int row = this.self * this.size;
+		// never the same as the last one, even within a milli second
+		long version = Math.max(System.currentTimeMillis(), this.versions[row] + 1);
+		this.heard[this.self] = System.currentTimeMillis();
+
+		for (int target = 0; target < this.size; target++) {
+
+			HealthTable.Health health = target == this.self || this.hostIds[target] < 0 ? null : snapshot.get(this.hostIds[target]);
+			this.phis[row + target] = health == null ? NAN : quantize(health.phi, PHI_SCALE);
+			this.anomalies[row + target] = health == null ? NAN : quantize(health.anomaly, ANOMALY_SCALE);
+			this.versions[row + target] = version;
+
+		}
+
+		this.changed = true;
+
+	}
+
+	/**
+	 * Fills the send buffer with the own row, and then with the others in turn as much as it can.
+	 */
+	private void fill() {
+
+		ByteBuffer buffer = this.sendBuffer;
+		buffer.clear();
+		buffer.putInt(MAGIC);
+		buffer.putInt(this.membersHash);
+		buffer.putShort((short) this.self);
+		buffer.putShort((short) 0);
+
+		this.chunks = 0;
+		this.ownOffset = this.putChunk(this.self, this.ownOffset);
+
+		// each other row at most once a datagram
+		for (int visited = 0; visited < this.size && buffer.remaining() >= CHUNK_HEADER_SIZE + CELL_SIZE; visited++) {
+
+			if (this.otherOrigin != this.self) {
+				this.otherOffset = this.putChunk(this.otherOrigin, this.otherOffset);
+				if (this.otherOffset > 0) {
+					// the rest of the row in the next datagram
+					break;
+				}
+			}
+
+			this.otherOrigin = (this.otherOrigin + 1) % this.size;
+
+		}
+
+		buffer.putShort(10, (short) this.chunks);
+		buffer.flip();
+
+	}
+
+	/**
+	 * Puts chunks of a row from a given cell as many as fit, one per run of cells of the same version.
+	 * @return the offset of the next cell to send of a row, 0 if the row is done
+	 */
+	private int putChunk(int origin, int first) {
+
+		ByteBuffer buffer = this.sendBuffer;
+		int row = origin * this.size;
+
+		while (first < this.size) {
+
+			long version = this.versions[row + first];
+			if (version == 0) {
+				// not known yet
+				first++;
+				continue;
+			}
+
+			int room = (buffer.remaining() - CHUNK_HEADER_SIZE) / CELL_SIZE;
+			if (room <= 0) {
+				return first;
+			}
+
+			int count = 1;
+			while (count < room && first + count < this.size && this.versions[row + first + count] == version) {
+				count++;
+			}
+
+			buffer.putShort((short) origin);
+			buffer.putLong(version);
+			buffer.putShort((short) first);
+			buffer.putShort((short) count);
+			for (int target = first; target < first + count; target++) {
+				buffer.putChar(this.phis[row + target]);
+				buffer.putChar(this.anomalies[row + target]);
+			}
+			this.chunks++;
+			first += count;
+
+		}
+
+		return 0;
+
+	}
+
+	private int[] pickMembers() {
+
+		// a partial Fisher-Yates shuffle of the others
+		int[] others = new int[this.size - 1];
+		for (int i = 0, member = 0; member < this.size; member++) {
+			if (member != this.self) {
+				others[i++] = member;
+			}
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < this.fanout; i++) {
+			int j = i + random.nextInt(others.length - i);
+			int picked = others[j];
+			others[j] = others[i];
+			others[i] = picked;
+		}
+
+		return Arrays.copyOf(others, this.fanout);
+
+	}
+
+	private void receive() throws IOException {
+
+		while (true) {
+
+			this.receiveBuffer.clear();
+			SocketAddress from = this.channel.receive(this.receiveBuffer);
+			if (from == null) {
+				return;
+			}
+			this.receiveBuffer.flip();
+
+			try {
+				if (this.merge(this.receiveBuffer)) {
+					this.received++;
+					continue;
+				}
+			} catch (BufferUnderflowException e) {
+				// truncated
+			}
+
+			this.rejected++;
+			logger.debug("rejected a datagram from " + from);
+
+		}
+
+	}
+
+	/**
+	 * @return false if a datagram is not of this mesh
+	 */
+	boolean merge(ByteBuffer buffer) {
+
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != this.membersHash) {
+			return false;
+		}
+
+		int sender = buffer.getShort();
+		int chunks = buffer.getShort();
+		if (sender < 0 || sender >= this.size || sender == this.self) {
+			return false;
+		}
+
+		for (int i = 0; i < chunks; i++) {
+
+			int origin = buffer.getShort();
+			long version = buffer.getLong();
+			int first = buffer.getShort();
+			int count = buffer.getShort();
+			if (origin < 0 || origin >= this.size || first < 0 || count < 0 || first + count > this.size) {
+				return false;
+			}
+
+			int row = origin * this.size;
+			boolean newer = false;
+			for (int target = first; target < first + count; target++) {
+
+				char phi = buffer.getChar();
+				char anomaly = buffer.getChar();
+
+				// the own row is only taken from the health table
+				if (origin != this.self && version > this.versions[row + target]) {
+					this.phis[row + target] = phi;
+					this.anomalies[row + target] = anomaly;
+					this.versions[row + target] = version;
+					this.changed = true;
+					newer = true;
+				}
+
+			}
+
+			if (newer) {
+				this.heard[origin] = System.currentTimeMillis();
+			}
+
+		}
+
+		return true;
+
+	}
+
+	private void publish() {
+
+		long[] rowVersions = new long[this.size];
+		for (int origin = 0; origin < this.size; origin++) {
+			for (int target = 0; target < this.size; target++) {
+				rowVersions[origin] = Math.max(rowVersions[origin], this.versions[origin * this.size + target]);
+			}
+		}
+
+		this.matrix = new Matrix(this.members, this.self, this.phis.clone(), this.anomalies.clone(), rowVersions, this.heard.clone());
+
+	}
+
+	static char quantize(double value, double scale) {
+
+		if (Double.isNaN(value)) {
+			return NAN;
+		}
+
+		return (char) Math.max(0, Math.min(NAN - 1, Math.round(value * scale)));
+
+	}
+
+	static double dequantize(char value, double scale) {
+		return value == NAN ? Double.NaN : value / scale;
+	}
+
+	/**
+	 * An immutable N x N matrix of what each member (origin) sees of each other member (target).
+	 */
+	public static final class Matrix {
+
+		private final List<InetSocketAddress> members;
+		private final int self;
+		private final int size;
+		private final char[] phis;
+		private final char[] anomalies;
+		// milli seconds of the origin when a row was taken, 0 if none yet
+		private final long[] versions;
+		// milli seconds of this agent
+		private final long[] heard;
+
+		Matrix(List<InetSocketAddress> members, int self, char[] phis, char[] anomalies, long[] versions, long[] heard) {
+			this.members = members;
+			this.self = self;
+			this.size = members.size();
+			this.phis = phis;
+			this.anomalies = anomalies;
+			this.versions = versions;
+			this.heard = heard;
+		}
+
+		public int size() {
+			return this.size;
+		}
+
+		public int getSelf() {
+			return this.self;
+		}
+
+		public InetSocketAddress getMember(int index) {
+			return this.members.get(index);
+		}
+
+		/**
+		 * @return PHI of target as origin sees it, NaN if not known
+		 */
+		public double getPhi(int origin, int target) {
+			return dequantize(this.phis[origin * this.size + target], PHI_SCALE);
+		}
+
+		/**
+		 * @return the anomaly score of target as origin sees it, NaN if not known
+		 */
+		public double getAnomaly(int origin, int target) {
+			return dequantize(this.anomalies[origin * this.size + target], ANOMALY_SCALE);
+		}
+
+		/**
+		 * @return the time in milli seconds of origin when its row was taken, 0 if none yet
+		 */
+		public long getVersion(int origin) {
+			return this.versions[origin];
+		}
+
+		/**
+		 * @return the time in milli seconds of this agent when a newer row of origin arrived last,
+		 * or when this agent started if none has
+		 */
+		public long getHeard(int origin) {
+			return this.heard[origin];
+		}
+
+		/**
+		 * @return a line of "origin, target, phi, anomaly, needs-attention|ok" per known cell
+		 */
+		byte[] toText(HealthTable verdict) {
+
+			StringBuilder text = new StringBuilder();
+			text.append("# ").append(this.size).append(" members, seen from ").append(name(this.members.get(this.self))).append('\n')
+				.append("# origin, target, phi, anomaly, verdict\n");
+
+			for (int origin = 0; origin < this.size; origin++) {
+				for (int target = 0; target < this.size; target++) {
+
+					double phi = this.getPhi(origin, target);
+					double anomaly = this.getAnomaly(origin, target);
+					if (Double.isNaN(phi) && Double.isNaN(anomaly)) {
+						continue;
+					}
+
+					text.append(name(this.members.get(origin))).append(", ")
+						.append(name(this.members.get(target))).append(", ")
+						.append(phi).append(", ")
+						.append(anomaly).append(", ")
+						.append(verdict.needsAttention(phi, anomaly) ? "needs-attention" : "ok").append('\n');
+
+				}
+			}
+
+			return text.toString().getBytes(StandardCharsets.UTF_8);
+
+		}
+
+		private static String name(InetSocketAddress member) {
+			return member.getHostString() + ":" + member.getPort();
+		}
+
+	}
+
+}
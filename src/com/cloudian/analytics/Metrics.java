@@ -0,0 +1,331 @@
+package com.cloudian.analytics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Metrics is a registry of counters, histograms and gauges of the tool itself, e.g. probes started or schedule lag.
+ *
+ * A metric is looked up once by whoever updates it, and then updated without a lock,
+ * so that a hot path pays no more than an increment or a few of them.
+ * 1. a Counter is a LongAdder, which does not contend among threads
+ * 2. a Histogram has the buckets of a LatencyHistogram in an AtomicLongArray
+ * 3. a gauge is read from its owner only when metrics are read
+ *
+ * Metrics are read as a flat map of names to values, which is exposed as the attributes of a DynamicMBean,
+ * and by a MetricsServer as plain text. A histogram is flattened to its count, percentiles and max.
+ * Counters and histograms are cumulative since the start.
+ *
+ */
+public class Metrics implements DynamicMBean {
+
+	private static final Logger logger = LogManager.getLogger(Metrics.class);
+
+	static final String OBJECT_NAME = "com.cloudian.analytics:type=Metrics";
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+	private static Metrics defaultMetrics;
+
+	private final ConcurrentNavigableMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+	private final ConcurrentNavigableMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+	private final ConcurrentNavigableMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+
+	static synchronized Metrics getDefault() {
+
+		if (defaultMetrics == null) {
+			defaultMetrics = new Metrics();
+		}
+
+		return defaultMetrics;
+
+	}
+
+	/**
+	 * @return the counter of a name, which is created if new
+	 */
+	public Counter counter(String name) {
+
+		Counter counter = this.counters.get(name);
+		if (counter == null) {
+			this.counters.putIfAbsent(name, new Counter());
+			counter = this.counters.get(name);
+		}
+
+		return counter;
+
+	}
+
+	/**
+	 * @return the histogram of a name, which is created if new
+	 */
+	public Histogram histogram(String name) {
+
+		Histogram histogram = this.histograms.get(name);
+		if (histogram == null) {
+			this.histograms.putIfAbsent(name, new Histogram());
+			histogram = this.histograms.get(name);
+		}
+
+		return histogram;
+
+	}
+
+	/**
+	 * Reads a value from a given supplier whenever metrics are read.
+	 * A gauge of the same name is replaced, e.g. by a new instance of its owner.
+	 */
+	public void gauge(String name, LongSupplier supplier) {
+		this.gauges.put(name, supplier);
+	}
+
+	/**
+	 * @return all the current values by name in the order of names
+	 */
+	public Map<String, Long> values() {
+
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+
+		for (Map.Entry<String, Counter> entry : this.counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+
+		for (Map.Entry<String, LongSupplier> entry : this.gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getAsLong());
+		}
+
+		for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+			Histogram histogram = entry.getValue();
+			long[] snapshot = histogram.snapshot();
+			values.put(entry.getKey() + ".count", sum(snapshot));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				values.put(entry.getKey() + "." + PERCENTILE_NAMES[i], histogram.valueAtPercentile(snapshot, PERCENTILES[i]));
+			}
+			values.put(entry.getKey() + ".max", histogram.getMax());
+		}
+
+		return values;
+
+	}
+
+	/**
+	 * @return a line of "cloudsonar_name value" per value, in which dots of a name are underscores
+	 */
+	public String toText() {
+
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Long> entry : this.values().entrySet()) {
+			text.append("cloudsonar_").append(entry.getKey().replace('.', '_')).append(' ').append(entry.getValue()).append('\n');
+		}
+
+		return text.toString();
+
+	}
+
+	/**
+	 * Registers this to the platform MBeanServer as OBJECT_NAME, unless already registered.
+	 */
+	public void registerMBean() {
+
+		try {
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+
+		} catch (JMException e) {
+			logger.warn("failed to register metrics to JMX", e);
+		}
+
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+		Long value = this.values().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		return value;
+
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+
+		Map<String, Long> values = this.values();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+
+		return list;
+
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	/**
+	 * Metrics can be added at any time, so the attributes are those of the current values.
+	 */
+	@Override
+	public MBeanInfo getMBeanInfo() {
+
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : this.values().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		}
+
+		return new MBeanInfo(this.getClass().getName(), "CloudSonar metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+
+	}
+
+	private static long sum(long[] counts) {
+
+		long sum = 0;
+		for (long count : counts) {
+			sum += count;
+		}
+
+		return sum;
+
+	}
+
+	/**
+	 * A monotonic counter.
+	 */
+	public static final class Counter {
+
+		private final LongAdder adder = new LongAdder();
+
+		public void increment() {
+			this.adder.increment();
+		}
+
+		public void add(long delta) {
+			this.adder.add(delta);
+		}
+
+		public long get() {
+			return this.adder.sum();
+		}
+
+	}
+
+	/**
+	 * A thread-safe version of LatencyHistogram, with the same buckets and the same precision.
+	 * Recording is two atomic increments, and a CAS only when the max grows.
+	 * A reader sees the counts of buckets one by one, so they can be off by updates in the meantime.
+	 */
+	public static final class Histogram {
+
+		private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+
+			long clamped = Math.max(0, Math.min(LatencyHistogram.MAX_VALUE, value));
+			this.counts.incrementAndGet(LatencyHistogram.bucketOf(clamped));
+
+			long current = this.max.get();
+			while (clamped > current && !this.max.compareAndSet(current, clamped)) {
+				current = this.max.get();
+			}
+
+		}
+
+		public long getCount() {
+			return sum(this.snapshot());
+		}
+
+		/**
+		 * @return the exact maximum, 0 if empty
+		 */
+		public long getMax() {
+			return this.max.get();
+		}
+
+		/**
+		 * @param percentile e.g. 99.9
+		 * @return the highest value that is equivalent to the value at a percentile, 0 if empty
+		 */
+		public long getValueAtPercentile(double percentile) {
+			return this.valueAtPercentile(this.snapshot(), percentile);
+		}
+
+		long[] snapshot() {
+
+			long[] snapshot = new long[this.counts.length()];
+			for (int i = 0; i < snapshot.length; i++) {
+				snapshot[i] = this.counts.get(i);
+			}
+
+			return snapshot;
+
+		}
+
+		long valueAtPercentile(long[] snapshot, double percentile) {
+
+			long count = sum(snapshot);
+			if (count == 0) {
+				return 0;
+			}
+
+			long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < snapshot.length; i++) {
+				seen += snapshot[i];
+				if (seen >= target) {
+					return Math.min(LatencyHistogram.highestEquivalentValue(i), this.max.get());
+				}
+			}
+
+			return this.max.get();
+
+		}
+
+	}
+
+}
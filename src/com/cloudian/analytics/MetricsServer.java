@@ -0,0 +1,95 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MetricsServer serves Metrics as plain text at /metrics over HTTP on the loopback address only,
+ * so that a local agent can scrape them without JMX. Other texts can be served at other paths,
+ * e.g. the health of hosts.
+ *
+ * Requests are served one at a time on a daemon thread, which never touches a probe or a handler thread.
+ *
+ */
+public class MetricsServer {
+
+	private static final Logger logger = LogManager.getLogger(MetricsServer.class);
+
+	static final String METRICS_PATH = "/metrics";
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ProbeEngine.DaemonThreadFactory("sonar-metrics"));
+
+	/**
+	 * @param port 0 for any free port
+	 */
+	public MetricsServer(int port, final Metrics metrics) throws IOException {
+
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.setExecutor(this.executor);
+		this.serve(METRICS_PATH, () -> metrics.toText().getBytes(StandardCharsets.UTF_8));
+
+	}
+
+	/**
+	 * Serves a plain text in UTF-8 at a path, which is given on every GET.
+	 */
+	void serve(String path, final Supplier<byte[]> text) {
+
+		this.server.createContext(path, exchange -> {
+			try {
+				respond(exchange, text);
+			} catch (IOException | RuntimeException e) {
+				logger.warn("failed to serve " + exchange.getRequestURI(), e);
+			} finally {
+				exchange.close();
+			}
+		});
+
+	}
+
+	private static void respond(HttpExchange exchange, Supplier<byte[]> text) throws IOException {
+
+		if (!"GET".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+
+		byte[] body = text.get();
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+
+	}
+
+	public void start() {
+
+		this.server.start();
+		logger.info("serving metrics at http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + this.getPort() + METRICS_PATH);
+
+	}
+
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdown();
+	}
+
+}
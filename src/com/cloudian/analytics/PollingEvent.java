@@ -0,0 +1,21 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+
+/**
+ * A PollingEvent is what a PollingUpdateHandler is given when the status of a job changes.
+ * It is the job itself when a handler is called by a PollingStrategy, or a PollingSnapshot of it,
+ * so a handler can only read it, and must not keep a reference to it.
+ */
+public interface PollingEvent {
+
+	InetAddress host();
+
+	/**
+	 * @return the id of the host in a HostRegistry, -1 if not assigned
+	 */
+	int hostId();
+
+	PollingStatus pollingStatus();
+
+}
@@ -1,13 +1,22 @@
 package com.cloudian.analytics;
 
 import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
 
 import com.cloudian.analytics.PollingStatus.Status;
 
-public abstract class PollingJob extends Thread{
+/**
+ * A PollingJob is a task that is run once by a ProbeEngine.
+ * Its completion is completed as soon as it is finished or failed,
+ * on the thread that finished or failed it.
+ */
+public abstract class PollingJob implements Runnable, PollingEvent {
 	
 	final PollingStatus pollingStatus = new PollingStatus();
 	final InetAddress host;
+	// the id of the host in a HostRegistry, assigned by a PollingStrategy, -1 if not assigned
+	int hostId = -1;
+	final CompletableFuture<PollingJob> completion = new CompletableFuture<PollingJob>();
 	
 	/*
 	 * disable to call the default constructor
@@ -39,6 +48,8 @@ public abstract class PollingJob extends Thread{
 		// update status object
 		this.pollingStatus.updateStatus(Status.FINISHED, null);
 		
+		this.completion.complete(this);
+		
 	}
 	
 	protected void failed(String error) {
@@ -46,12 +57,72 @@ public abstract class PollingJob extends Thread{
 		// update status object
 		this.pollingStatus.updateStatus(Status.ERROR, error);
 		
+		this.completion.complete(this);
+		
+	}
+	
+	/**
+	 * Finishes at a given System#nanoTime, for a job that knows when it stopped better than when it is called.
+	 */
+	protected void finished(long stoppedAt) {
+		
+		this.pollingStatus.updateStatus(Status.FINISHED, null, stoppedAt);
+		
+		this.completion.complete(this);
+		
+	}
+	
+	protected void failed(String error, long stoppedAt) {
+		
+		this.pollingStatus.updateStatus(Status.ERROR, error, stoppedAt);
+		
+		this.completion.complete(this);
+		
+	}
+
+	@Override
+	public InetAddress host() {
+		return this.host;
+	}
+
+	@Override
+	public int hostId() {
+		return this.hostId;
+	}
+
+	@Override
+	public PollingStatus pollingStatus() {
+		return this.pollingStatus;
+	}
+
+	/**
+	 * @return the cached name of the host in the HostRegistry, which never waits for DNS
+	 */
+	String name() {
+		HostRegistry registry = HostRegistry.getDefault();
+		return registry.name(registry.id(this));
+	}
+
+	/**
+	 * @return the name or the address the host was given as
+	 */
+	String key() {
+		HostRegistry registry = HostRegistry.getDefault();
+		return registry.key(registry.id(this));
+	}
+
+	/**
+	 * @return a future that is completed with this job when it stops
+	 */
+	public CompletableFuture<PollingJob> completion() {
+		return this.completion;
 	}
 
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		sb.append("jobTarget: " + this.host.getHostName());
+		// toString of InetAddress never looks up a name
+		sb.append("jobTarget: " + this.host);
 		sb.append(", ");
 		sb.append(this.pollingStatus.toString());
 		return sb.toString();
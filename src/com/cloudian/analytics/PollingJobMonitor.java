@@ -1,47 +1,97 @@
 package com.cloudian.analytics;
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-public class PollingJobMonitor extends Thread {
-	
+import com.cloudian.analytics.HashedWheelTimer.Timeout;
+import com.cloudian.analytics.HashedWheelTimer.TimerTask;
+
+/**
+ * A PollingJobMonitor updates the status of a job as soon as the job completes.
+ * While the job is in flight, the monitor updates its status at a given interval
+ * on a timer shared by all the jobs, so that handlers can see how long it has been waiting.
+ */
+public class PollingJobMonitor implements TimerTask, BiConsumer<PollingJob, Throwable> {
+
 	private static final Logger logger = LogManager.getLogger(PollingJobMonitor.class);
-	
+	// how late monitors are run by the timer, which is shared by all the jobs
+	private static final Metrics.Histogram lateness = Metrics.getDefault().histogram("monitor.lateness");
+
 	private final PollingStrategy strategy;
 	private final PollingJob job;
 	private final long monitoringInterval;
-	
+	private HashedWheelTimer timer;
+	private volatile Timeout timeout;
+
 	public PollingJobMonitor(PollingStrategy strategy, PollingJob job, long monitoringInterval) {
 		this.strategy = strategy;
 		this.job = job;
 		this.monitoringInterval = monitoringInterval;
 	}
 
+	/**
+	 * This can be called after the job is handed to an engine, even once the job has completed.
+	 * The timer is armed first, and the completion of a job that is already completed is handled
+	 * right away on the calling thread, which cancels the timer, so a job is never missed.
+	 */
+	void start(HashedWheelTimer timer) {
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("monitor got started for " + this.job.toString() + " at an interval of " + this.monitoringInterval);
+		}
+
+		this.timer = timer;
+		this.timeout = timer.newTimeout(this, this.monitoringInterval, TimeUnit.MILLISECONDS);
+		this.job.completion().whenComplete(this);
+
+	}
+
+	/**
+	 * the job is still in flight
+	 */
 	@Override
-	public void run() {
-		
-		logger.debug("monitor got started for " + this.job.toString() + " at an interval of " + this.monitoringInterval);
-		
-		this.job.start();
-		
-		while(true) {
-			
-			try {
-				Thread.sleep(monitoringInterval);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	public void run(Timeout timeout) {
+
+		lateness.record(this.timer.lateness(timeout));
+
+		// the lock makes sure that handlers never see an in-flight update after the final one
+		synchronized (this.job) {
+
+			if (this.job.pollingStatus.isStopped()) {
+				return;
 			}
-			
-			// update status
+
 			logger.trace("updating status of " + this.job.toString());
-			if (this.strategy.updateStatus(this.job)) {
-				break;
-			}
-			
+			this.strategy.updateStatus(this.job);
+
+		}
+
+		this.timeout = this.timer.newTimeout(this, this.monitoringInterval, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * the job is completed
+	 */
+	@Override
+	public void accept(PollingJob job, Throwable error) {
+
+		Timeout timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
+		synchronized (this.job) {
+			this.strategy.updateStatus(this.job);
 		}
-		
-		logger.debug("monotor finished for " + this.job.toString());
-		
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("monitor finished for " + this.job.toString());
+		}
+
 	}
 
 }
@@ -0,0 +1,268 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.cloudian.analytics.HashedWheelTimer.Timeout;
+import com.cloudian.analytics.HashedWheelTimer.TimerTask;
+
+/**
+ * PollingScheduler polls each host on its own interval on a HashedWheelTimer.
+ *
+ * Hosts are not polled all at once. Each host gets a phase offset within its interval
+ * from a golden ratio sequence, which spreads any number of hosts evenly over the period,
+ * and gives the same offsets for the same order of hosts.
+ *
+ * A next poll is scheduled at an absolute deadline, start + phase + n * interval,
+ * so the schedule does not drift by the time each poll takes.
+ * If the timer falls behind by more than an interval, missed polls are skipped, not bunched up.
+ *
+ * A host keeps the interval it is scheduled with as its base, while its current interval can be adjusted,
+ * e.g. by an AdaptiveRateController, without scheduling it again.
+ *
+ */
+public class PollingScheduler {
+
+	private static final Logger logger = LogManager.getLogger(PollingScheduler.class);
+
+	static final long TICK_IN_MILLIS = 1;
+	static final int WHEEL_SIZE = 1024;
+	private static final double GOLDEN_RATIO_CONJUGATE = 0.6180339887498949;
+
+	private final PollingStrategy strategy;
+	private final HostRegistry registry = HostRegistry.getDefault();
+	private final HashedWheelTimer timer;
+	private final Map<InetAddress, ScheduledHost> hosts = new ConcurrentHashMap<InetAddress, ScheduledHost>();
+	private final AtomicInteger sequence = new AtomicInteger();
+	private final long startTime = System.nanoTime();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	final AtomicLong skipped = new AtomicLong();
+	// how late polls are run after their deadlines
+	private final Metrics.Histogram lag;
+
+	public PollingScheduler(PollingStrategy strategy) {
+		this(strategy, new HashedWheelTimer("sonar-scheduler", TICK_IN_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE));
+	}
+
+	PollingScheduler(PollingStrategy strategy, HashedWheelTimer timer) {
+		this.strategy = strategy;
+		this.timer = timer;
+
+		Metrics metrics = Metrics.getDefault();
+		this.lag = metrics.histogram("schedule.lag");
+		metrics.gauge("schedule.skipped", this.skipped::get);
+	}
+
+	/**
+	 * Starts polling a host, or changes its interval if it is already scheduled.
+	 * The phase of a host is kept when its interval changes.
+	 */
+	public void schedule(InetAddress host, long intervalInMillis) {
+
+		long interval = TimeUnit.MILLISECONDS.toNanos(intervalInMillis);
+
+		ScheduledHost scheduled = this.hosts.get(host);
+		if (scheduled != null) {
+			scheduled.base = interval;
+			scheduled.reschedule(interval);
+			return;
+		}
+
+		double fraction = (this.sequence.getAndIncrement() * GOLDEN_RATIO_CONJUGATE) % 1.0;
+		scheduled = new ScheduledHost(this.registry.register(host), fraction, interval);
+		if (this.hosts.putIfAbsent(host, scheduled) != null) {
+			this.schedule(host, intervalInMillis);
+			return;
+		}
+
+		logger.debug("scheduled " + this.registry.name(scheduled.hostId) + " every " + intervalInMillis + " ms at a phase of " + fraction);
+		scheduled.start();
+
+	}
+
+	/**
+	 * Changes the current interval of a host, but not its base, only if it is scheduled.
+	 * @return false if the host is not scheduled
+	 */
+	public boolean adjust(InetAddress host, long intervalInMillis) {
+
+		ScheduledHost scheduled = this.hosts.get(host);
+		if (scheduled == null) {
+			return false;
+		}
+
+		scheduled.reschedule(TimeUnit.MILLISECONDS.toNanos(intervalInMillis));
+		return true;
+
+	}
+
+	public void unschedule(InetAddress host) {
+
+		ScheduledHost scheduled = this.hosts.remove(host);
+		if (scheduled != null) {
+			scheduled.cancel();
+		}
+
+	}
+
+	/**
+	 * @return the interval in milli seconds, or -1 if the host is not scheduled
+	 */
+	public long getInterval(InetAddress host) {
+
+		ScheduledHost scheduled = this.hosts.get(host);
+		return scheduled == null ? -1 : TimeUnit.NANOSECONDS.toMillis(scheduled.interval);
+
+	}
+
+	/**
+	 * @return the interval in milli seconds a host is scheduled with, or -1 if the host is not scheduled
+	 */
+	public long getBaseInterval(InetAddress host) {
+
+		ScheduledHost scheduled = this.hosts.get(host);
+		return scheduled == null ? -1 : TimeUnit.NANOSECONDS.toMillis(scheduled.base);
+
+	}
+
+	/**
+	 * @return a live view of the hosts scheduled
+	 */
+	public Set<InetAddress> getHosts() {
+		return Collections.unmodifiableSet(this.hosts.keySet());
+	}
+
+	public int size() {
+		return this.hosts.size();
+	}
+
+	/**
+	 * @return the number of polls skipped because the timer fell behind
+	 */
+	public long getSkipped() {
+		return this.skipped.get();
+	}
+
+	public void stop() {
+
+		for (ScheduledHost scheduled : this.hosts.values()) {
+			scheduled.cancel();
+		}
+		this.hosts.clear();
+		this.timer.stop();
+		this.stopped.countDown();
+
+	}
+
+	/**
+	 * Blocks until this scheduler is stopped.
+	 */
+	public void awaitStop() throws InterruptedException {
+		this.stopped.await();
+	}
+
+	private class ScheduledHost implements TimerTask {
+
+		private final int hostId;
+		private final double phase;
+		private volatile long interval;
+		private volatile long base;
+		// guarded by this
+		private long deadline;
+		private volatile Timeout timeout;
+		private volatile boolean cancelled = false;
+
+		ScheduledHost(int hostId, double phase, long interval) {
+			this.hostId = hostId;
+			this.phase = phase;
+			this.interval = interval;
+			this.base = interval;
+		}
+
+		synchronized void start() {
+
+			// the first deadline after now on the grid of this host
+			long offset = (long) (this.phase * this.interval);
+			long now = System.nanoTime();
+			long periods = Math.max(0, (now - startTime - offset + this.interval - 1) / this.interval);
+			this.deadline = startTime + offset + periods * this.interval;
+
+			this.timeout = timer.newTimeoutAt(this, this.deadline);
+
+		}
+
+		synchronized void reschedule(long interval) {
+
+			if (interval == this.interval) {
+				return;
+			}
+
+			this.interval = interval;
+			Timeout current = this.timeout;
+			if (current != null) {
+				current.cancel();
+			}
+			this.start();
+
+		}
+
+		void cancel() {
+
+			this.cancelled = true;
+			Timeout current = this.timeout;
+			if (current != null) {
+				current.cancel();
+			}
+
+		}
+
+		@Override
+		public void run(Timeout timeout) {
+
+			if (this.cancelled || timeout.isCancelled()) {
+				return;
+			}
+
+			long polled = System.nanoTime();
+			strategy.poll(this.hostId);
+
+			synchronized (this) {
+
+				if (this.timeout != timeout || this.cancelled) {
+					// rescheduled while polling
+					return;
+				}
+
+				lag.record(polled - this.deadline);
+
+				long interval = this.interval;
+				this.deadline += interval;
+
+				long now = System.nanoTime();
+				if (now - this.deadline >= 0) {
+					long missed = (now - this.deadline) / interval + 1;
+					skipped.addAndGet(missed);
+					this.deadline += missed * interval;
+					logger.debug("skipped " + missed + " polls of " + registry.name(this.hostId));
+				}
+
+				this.timeout = timer.newTimeoutAt(this, this.deadline);
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+
+/**
+ * A PollingSnapshot is a copy of a job, which has nothing to run.
+ * It is preallocated, and overwritten for the next update by whoever owns it.
+ */
+final class PollingSnapshot implements PollingEvent {
+
+	InetAddress host;
+	int hostId = -1;
+	final PollingStatus pollingStatus = new PollingStatus();
+
+	@Override
+	public InetAddress host() {
+		return this.host;
+	}
+
+	@Override
+	public int hostId() {
+		return this.hostId;
+	}
+
+	@Override
+	public PollingStatus pollingStatus() {
+		return this.pollingStatus;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("jobTarget: " + this.host);
+		sb.append(", ");
+		sb.append(this.pollingStatus.toString());
+		return sb.toString();
+	}
+
+}
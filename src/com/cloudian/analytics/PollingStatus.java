@@ -6,28 +6,70 @@ public class PollingStatus {
 		NOT_STARTED, STARTED, FINISHED, ERROR
 	};
 	
-	long started, stopped = -1;
-	Status status = Status.NOT_STARTED;
+	// updated by a job thread, and read by a monitor thread
+	volatile long started, stopped = -1;
+	volatile Status status = Status.NOT_STARTED;
 	
-	String error = "-";
+	volatile String error = "-";
+	
+	// optional, when the first byte of a response arrived
+	volatile long firstByte = -1;
 	
 	public void updateStatus(Status changed, String error) {
+		this.updateStatus(changed, error, System.nanoTime());
+	}
+	
+	/**
+	 * @param now System#nanoTime when the status changed
+	 */
+	void updateStatus(Status changed, String error, long now) {
 		switch (changed) {
 		case STARTED:
-			started = System.nanoTime();
-			break;
-		case FINISHED:
-			stopped = System.nanoTime();
+			started = now;
 			break;
 		case ERROR:
-			stopped = System.nanoTime();
 			if (error != null) {
 				this.error = error;
 			}
 			break;
+		default:
+			break;
 		};
 		
 		this.status = changed;
+		
+		// stopped is written last so that a reader who sees isStopped() also sees the final status
+		if (changed == Status.FINISHED || changed == Status.ERROR) {
+			stopped = now;
+		}
+	}
+	
+	/**
+	 * Copies a status that may be being updated by another thread.
+	 * A copy that is not stopped never has a final status.
+	 */
+	void copy(PollingStatus from) {
+		// stopped is written last, so once it is seen, the others are final
+		long stopped = from.stopped;
+		Status status = from.status;
+		
+		if (stopped < 0 && (status == Status.FINISHED || status == Status.ERROR)) {
+			// caught in the middle of stopping
+			status = Status.STARTED;
+		}
+		
+		this.started = from.started;
+		this.error = from.error;
+		this.firstByte = from.firstByte;
+		this.status = status;
+		this.stopped = stopped;
+	}
+	
+	/**
+	 * Records when the first byte of a response arrived, for a polling method that has a response.
+	 */
+	public void firstByteReceived() {
+		this.firstByte = System.nanoTime();
 	}
 	
 	public boolean isStopped() {
@@ -41,6 +83,17 @@ public class PollingStatus {
 		
 		return this.stopped - this.started;
 	}
+	
+	/**
+	 * @return -1 unless the first byte of a response was recorded
+	 */
+	public long timeToFirstByte() {
+		if (this.firstByte < 0) {
+			return -1;
+		}
+		
+		return this.firstByte - this.started;
+	}
 
 	@Override
 	public String toString() {
@@ -49,6 +102,9 @@ public class PollingStatus {
 		sb.append(", STARTED_AT: " + started);
 		sb.append(", STOPPED_AT: " + stopped);
 		sb.append(", DURATION: " + this.duration());
+		if (this.firstByte > -1) {
+			sb.append(", TTFB: " + this.timeToFirstByte());
+		}
 		sb.append(", ERROR: " + error);
 		return sb.toString();
 	}
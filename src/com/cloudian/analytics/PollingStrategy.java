@@ -1,8 +1,7 @@
 package com.cloudian.analytics;
 
 import java.net.InetAddress;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,14 +11,32 @@ public abstract class PollingStrategy {
 	private static final Logger logger = LogManager.getLogger(PollingStrategy.class);
 	private static final long MINIMUM_MONITORING_INTERVAL = 100;
 	
-	final Map<InetAddress, PollingJob> pollingJobMap = new HashMap<InetAddress, PollingJob>(); 
+	// a job in flight by host id, touched by the caller of poll and by monitors
+	private final HostTable<PollingJob> pollingJobs = new HostTable<PollingJob>();
+	private final AtomicInteger inFlight = new AtomicInteger();
 	
+	private final Metrics.Counter started, skipped, rejected, completed, failed;
+	
+	private final HostRegistry registry = HostRegistry.getDefault();
 	private PollingUpdateHandler[] handlers;
 	private final FailureDetectorUpdateHandler fdUpdateHandler;
+	private final ProbeEngine engine;
 	
 	public PollingStrategy(PollingUpdateHandler[] handlers) {
+		this(handlers, ProbeEngine.getDefault());
+	}
+	
+	public PollingStrategy(PollingUpdateHandler[] handlers, ProbeEngine engine) {
 		this.handlers = handlers;
+		this.engine = engine;
 		
+		Metrics metrics = Metrics.getDefault();
+		this.started = metrics.counter("probes.started");
+		this.skipped = metrics.counter("probes.skipped");
+		this.rejected = metrics.counter("probes.rejected");
+		this.completed = metrics.counter("probes.completed");
+		this.failed = metrics.counter("probes.failed");
+		metrics.gauge("probes.inflight", this.inFlight::get);
 		
 		if (this.handlers != null) {
 			for (PollingUpdateHandler handler : this.handlers) {
@@ -29,6 +46,14 @@ public abstract class PollingStrategy {
 					return;
 				}
 				
+				if (handler instanceof HandlerDispatcher) {
+					FailureDetectorUpdateHandler dispatched = ((HandlerDispatcher) handler).find(FailureDetectorUpdateHandler.class);
+					if (dispatched != null) {
+						this.fdUpdateHandler = dispatched;
+						return;
+					}
+				}
+				
 			}
 		}
 		this.fdUpdateHandler = null;
@@ -41,33 +66,90 @@ public abstract class PollingStrategy {
 	 * @param handler
 	 */
 	void poll(InetAddress host) {
+		this.poll(this.registry.register(host));
+	}
+	
+	/**
+	 * Polls the current address of a host registered in the HostRegistry.
+	 */
+	void poll(int hostId) {
 		
-		logger.debug("polling " + host.getHostName());
+		if (this.pollingJobs.get(hostId) != null) {
+			this.skipped.increment();
+			logger.debug("attemted to poll, but skipped " + hostId);
+			return;
+		}
 		
-		if (pollingJobMap.get(host) != null) {
-			logger.debug("attemted to poll, but skipped " + host.getHostName());
+		PollingJob job = this.createPollingJob(hostId, this.registry.address(hostId));
+		job.hostId = hostId;
+		if (!this.pollingJobs.compareAndSet(hostId, null, job)) {
+			this.skipped.increment();
+			logger.debug("attemted to poll, but skipped " + hostId);
 			return;
 		}
+		this.inFlight.incrementAndGet();
 		
-		PollingJob job = this.createPollingJob(host);
-		pollingJobMap.put(host, job);
+		long mean = this.fdUpdateHandler == null ? 0 : this.fdUpdateHandler.getMean(hostId);
+		PollingJobMonitor monitor = new PollingJobMonitor(this, job, Math.max(MINIMUM_MONITORING_INTERVAL, mean));
 		
-		PollingJobMonitor monitor = new PollingJobMonitor(this, job, Math.max(MINIMUM_MONITORING_INTERVAL, this.fdUpdateHandler.getMean(host)));
-		monitor.start();
+		if (!this.engine.execute(job)) {
+			this.remove(job);
+			this.rejected.increment();
+			logger.warn("attemted to poll, but the probe engine is full " + this.registry.name(hostId));
+			return;
+		}
+		this.started.increment();
+		
+		// a job that is already completed is handled right away
+		monitor.start(this.engine.getTimer());
 		
 	};
 	
+	private boolean remove(PollingJob job) {
+		if (this.pollingJobs.compareAndSet(job.hostId, job, null)) {
+			this.inFlight.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the number of jobs in flight
+	 */
+	int getInFlight() {
+		return this.inFlight.get();
+	}
+	
+	ProbeEngine getEngine() {
+		return this.engine;
+	}
+	
 	abstract PollingJob createPollingJob(InetAddress host);
 	
+	/**
+	 * @param host the current address of a host registered as hostId
+	 */
+	PollingJob createPollingJob(int hostId, InetAddress host) {
+		return this.createPollingJob(host);
+	}
+	
 	boolean updateStatus(PollingJob job) {
 		
-		logger.debug("updating status: " + job);
+		if (logger.isDebugEnabled()) {
+			logger.debug("updating status: " + job);
+		}
 		
 		boolean stopped = false;
 		
 		if (job.pollingStatus.isStopped()) {
-			// remove from the map
-			this.pollingJobMap.remove(job.host);
+			// no longer in flight
+			if (!this.remove(job)) {
+				// already counted
+			} else if (job.pollingStatus.status == PollingStatus.Status.ERROR) {
+				this.failed.increment();
+			} else {
+				this.completed.increment();
+			}
 			stopped = true;
 		}
 		
@@ -4,8 +4,8 @@ public interface PollingUpdateHandler {
 	
 	/**
 	 * This is called when a major status change occured
-	 * @param status
+	 * @param event a job, or a snapshot of it, which must not be kept
 	 */
-	void updateStatus(PollingJob job);
+	void updateStatus(PollingEvent event);
 
 }
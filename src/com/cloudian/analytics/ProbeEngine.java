@@ -0,0 +1,186 @@
+package com.cloudian.analytics;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * ProbeEngine executes PollingJobs as tasks on a bounded executor
+ * instead of starting a new thread per job.
+ *
+ * Two flavors are available.
+ * 1. platform: a fixed number of threads with a bounded task queue
+ * 2. virtual: a virtual thread per job, bounded by a number of concurrent jobs.
+ *    This requires Java 21 or later, otherwise a platform engine is used instead.
+ *
+ * Monitors of jobs in flight share a HashedWheelTimer that belongs to the same engine.
+ *
+ */
+public class ProbeEngine {
+
+	private static final Logger logger = LogManager.getLogger(ProbeEngine.class);
+
+	static final int DEFAULT_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 4);
+	static final int DEFAULT_QUEUE_SIZE = 100000;
+	static final int DEFAULT_MAX_CONCURRENCY = 100000;
+
+	private static ProbeEngine defaultEngine;
+
+	private final ExecutorService executor;
+	private final HashedWheelTimer timer;
+	// limits the number of concurrent jobs for a virtual engine, null for a platform engine
+	private final Semaphore permits;
+	private final boolean virtual;
+	private final int size;
+
+	private ProbeEngine(ExecutorService executor, Semaphore permits, boolean virtual, int size) {
+		this.executor = executor;
+		this.permits = permits;
+		this.virtual = virtual;
+		this.size = size;
+		this.timer = new HashedWheelTimer("sonar-monitor");
+	}
+
+	/**
+	 * @param poolSize the number of threads that run jobs
+	 * @param queueSize the number of jobs that can wait for a thread
+	 * @return a new engine backed by platform threads
+	 */
+	public static ProbeEngine createPlatformEngine(int poolSize, int queueSize) {
+
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("sonar-probe"));
+		tpe.prestartAllCoreThreads();
+
+		logger.debug("created a platform engine with " + poolSize + " threads");
+
+		return new ProbeEngine(tpe, null, false, poolSize);
+	}
+
+	/**
+	 * @param maxConcurrency the maximum number of jobs that run at the same time
+	 * @return a new engine backed by virtual threads if available, otherwise a platform engine
+	 */
+	public static ProbeEngine createVirtualEngine(int maxConcurrency) {
+
+		try {
+
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService) method.invoke(null);
+
+			logger.debug("created a virtual engine with " + maxConcurrency + " concurrent jobs");
+
+			return new ProbeEngine(executor, new Semaphore(maxConcurrency), true, maxConcurrency);
+
+		} catch (ReflectiveOperationException e) {
+
+			logger.warn("virtual threads are not available on this JVM, falling back to platform threads");
+
+			return createPlatformEngine(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE);
+
+		}
+
+	}
+
+	static synchronized ProbeEngine getDefault() {
+
+		if (defaultEngine == null) {
+			defaultEngine = createPlatformEngine(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE);
+		}
+
+		return defaultEngine;
+
+	}
+
+	/**
+	 * This method does not block.
+	 * @param job
+	 * @return false if the engine has no room for the job
+	 */
+	boolean execute(final PollingJob job) {
+
+		if (this.permits == null) {
+
+			try {
+				this.executor.execute(job);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+
+		}
+
+		if (!this.permits.tryAcquire()) {
+			return false;
+		}
+
+		try {
+
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						job.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+			return true;
+
+		} catch (RejectedExecutionException e) {
+			this.permits.release();
+			return false;
+		}
+
+	}
+
+	HashedWheelTimer getTimer() {
+		return this.timer;
+	}
+
+	public boolean isVirtual() {
+		return this.virtual;
+	}
+
+	/**
+	 * @return the number of threads for a platform engine, or the maximum concurrency for a virtual engine
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	public void shutdown() {
+		this.timer.stop();
+		this.executor.shutdownNow();
+	}
+
+	static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, this.prefix + "-" + this.count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.cloudian.analytics;
+
+import java.util.function.Supplier;
+
+/**
+ * A reduction of durations in a window, e.g. the max of them, which is kept in primitive fields
+ * so that it is reused across windows without allocation.
+ *
+ * Reducers of the same kind can be merged, so a sliding window is computed from the panes it is made of.
+ *
+ */
+public interface Reducer {
+
+	void add(long value);
+
+	/**
+	 * Adds all the values of another reducer of the same kind.
+	 */
+	void merge(Reducer other);
+
+	void reset();
+
+	/**
+	 * @return the reduced value, undefined if nothing is added
+	 */
+	double result();
+
+	/**
+	 * @param name max, mean, or p followed by a percentile, e.g. p99
+	 */
+	static Supplier<Reducer> of(String name) {
+
+		if ("max".equals(name)) {
+			return Max::new;
+		}
+
+		if ("mean".equals(name)) {
+			return Mean::new;
+		}
+
+		if (name.startsWith("p")) {
+			final double percentile = Double.parseDouble(name.substring(1));
+			return () -> new Percentile(percentile);
+		}
+
+		throw new IllegalArgumentException("unknown reducer " + name);
+
+	}
+
+	static class Max implements Reducer {
+
+		private long max = Long.MIN_VALUE;
+
+		@Override
+		public void add(long value) {
+			this.max = Math.max(this.max, value);
+		}
+
+		@Override
+		public void merge(Reducer other) {
+			this.add(((Max) other).max);
+		}
+
+		@Override
+		public void reset() {
+			this.max = Long.MIN_VALUE;
+		}
+
+		@Override
+		public double result() {
+			return this.max;
+		}
+
+	}
+
+	static class Mean implements Reducer {
+
+		private long sum = 0;
+		private long count = 0;
+
+		@Override
+		public void add(long value) {
+			this.sum += value;
+			this.count++;
+		}
+
+		@Override
+		public void merge(Reducer other) {
+			this.sum += ((Mean) other).sum;
+			this.count += ((Mean) other).count;
+		}
+
+		@Override
+		public void reset() {
+			this.sum = 0;
+			this.count = 0;
+		}
+
+		@Override
+		public double result() {
+			return ((double) this.sum) / this.count;
+		}
+
+	}
+
+	/**
+	 * A percentile in a LatencyHistogram, so within its relative error.
+	 */
+	static class Percentile implements Reducer {
+
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final double percentile;
+
+		Percentile(double percentile) {
+			this.percentile = percentile;
+		}
+
+		@Override
+		public void add(long value) {
+			this.histogram.record(value);
+		}
+
+		@Override
+		public void merge(Reducer other) {
+			this.histogram.add(((Percentile) other).histogram);
+		}
+
+		@Override
+		public void reset() {
+			this.histogram.reset();
+		}
+
+		@Override
+		public double result() {
+			return this.histogram.getValueAtPercentile(this.percentile);
+		}
+
+	}
+
+}
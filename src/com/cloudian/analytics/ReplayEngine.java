@@ -0,0 +1,436 @@
+package com.cloudian.analytics;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * ReplayEngine replays the responses recorded by a previous run through the same FailureDetectorUpdateHandler,
+ * WindowedAggregator and HTMAnomalyDetector as a live run, on a virtual clock as fast as the CPUs can,
+ * and writes fd.csv and htm.csv as the live run would have, so thresholds and parameters can be tuned offline.
+ *
+ * Inputs are sonar.csv and its rolled over .csv or .csv.gz files, or files like resources/sample/sample.csv,
+ * each of which is of a host named after the file. The records of all the files are merged in time order.
+ * Errors are skipped, as the detectors do.
+ *
+ * Records are replayed in slices, each of which is within a minute.
+ * 1. the records of a slice are given to the failure detector and the aggregator in time order on a single thread,
+ *    which only queues inputs of HTM networks
+ * 2. then the networks with inputs are computed in parallel on a ForkJoinPool, a host on a single thread at a time
+ * So htm.csv is in time order for each host, but not across hosts within a minute.
+ *
+ * java -cp .:./*:./htm/* com.cloudian.analytics.ReplayEngine file|directory...
+ * The sonar files in a directory are read recursively, and the output is written to -Dcloudsonar.logs (default: replay).
+ *
+ */
+public class ReplayEngine implements Closeable {
+
+	private static final Logger logger = LogManager.getLogger(ReplayEngine.class);
+
+	static final String DEFAULT_DIRECTORY = "replay";
+	static final String SONAR_PREFIX = "sonar";
+	// inputs of HTM networks in a slice, which is also the queue size of a host, so no input is dropped
+	static final int MAX_SLICE_INPUTS = 1024;
+
+	private final HostRegistry registry = HostRegistry.getDefault();
+	private final CSVSink fdSink;
+	private final CSVSink htmSink;
+	private final FailureDetectorUpdateHandler failureDetector;
+	private final WindowedAggregator aggregator;
+	private final HTMAnomalyDetector anomalyDetector;
+	private final HTMComputePool pool;
+	private final ForkJoinPool forkJoinPool;
+	// networks with inputs queued in a slice
+	private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+	// by a host as recorded
+	private final Map<String, InetAddress> addresses = new HashMap<String, InetAddress>();
+	// a recorded response, reused for the next one
+	private final PollingSnapshot event = new PollingSnapshot();
+
+	// the virtual clock in milli seconds, read by the sinks on any thread
+	private volatile long now = 0;
+	private long sliceMinute = -1;
+	private int sliceInputs = 0;
+
+	/**
+	 * @param directory where fd.csv and htm.csv are written
+	 * @param threads the parallelism of HTM networks
+	 * @param aggregator gives a WindowedAggregator on a given clock
+	 */
+	public ReplayEngine(File directory, int threads, HTMModelManager models, Function<LongSupplier, WindowedAggregator> aggregator) {
+
+		LongSupplier clock = this::now;
+		this.fdSink = new CSVSink(directory, "fd", CSVSink.MAX_FILE_SIZE, clock);
+		this.htmSink = new CSVSink(directory, "htm", CSVSink.MAX_FILE_SIZE, clock);
+		this.failureDetector = new FailureDetectorUpdateHandler(this.fdSink);
+		this.pool = new HTMComputePool(this.pending::add, MAX_SLICE_INPUTS, clock);
+		this.anomalyDetector = new HTMAnomalyDetector(this.htmSink, HTMAnomalyDetector.DEFAULT_HISTORY_SIZE, models, this.pool);
+		this.aggregator = aggregator.apply(clock);
+		this.aggregator.subscribe(this.anomalyDetector);
+		this.aggregator.subscribe((hostId, host, end, value) -> this.sliceInputs++);
+		this.forkJoinPool = new ForkJoinPool(threads);
+
+	}
+
+	long now() {
+		return this.now;
+	}
+
+	public FailureDetectorUpdateHandler getFailureDetector() {
+		return this.failureDetector;
+	}
+
+	public HTMAnomalyDetector getAnomalyDetector() {
+		return this.anomalyDetector;
+	}
+
+	/**
+	 * Replays the records of files merged in time order.
+	 * @return the number of responses replayed
+	 */
+	public long replay(List<File> files) throws IOException {
+
+		PriorityQueue<LogReader> readers = new PriorityQueue<LogReader>(Math.max(1, files.size()), Comparator.comparingLong(reader -> reader.time));
+		long records = 0;
+
+		try {
+
+			for (File file : files) {
+				LogReader reader = new LogReader(file);
+				if (reader.next()) {
+					readers.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+
+			LogReader reader;
+			while ((reader = readers.poll()) != null) {
+
+				this.replay(reader.time, reader.host, reader.duration);
+				records++;
+
+				if (reader.next()) {
+					readers.add(reader);
+				} else {
+					reader.close();
+				}
+
+			}
+
+			this.compute();
+
+		} finally {
+			for (LogReader reader : readers) {
+				reader.close();
+			}
+		}
+
+		return records;
+
+	}
+
+	/**
+	 * @param time when a response was recorded in milli seconds
+	 * @param duration in nano seconds
+	 */
+	void replay(long time, String host, long duration) throws UnknownHostException {
+
+		// a slice never crosses a day, which a sink rolls over at
+		long minute = TimeUnit.MILLISECONDS.toMinutes(time);
+		if (minute != this.sliceMinute || this.sliceInputs >= MAX_SLICE_INPUTS) {
+			this.compute();
+			this.sliceMinute = minute;
+		}
+
+		this.now = time;
+
+		InetAddress address = this.address(host);
+		this.event.host = address;
+		this.event.hostId = this.registry.register(address);
+		this.event.pollingStatus.stopped = TimeUnit.MILLISECONDS.toNanos(time);
+		this.event.pollingStatus.started = this.event.pollingStatus.stopped - duration;
+		this.event.pollingStatus.status = Status.FINISHED;
+
+		this.failureDetector.updateStatus(this.event);
+		this.aggregator.updateStatus(this.event);
+
+	}
+
+	/**
+	 * Computes the inputs queued in a slice in parallel, until no network has any left.
+	 */
+	private void compute() {
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		while (true) {
+
+			Runnable htm;
+			while ((htm = this.pending.poll()) != null) {
+				tasks.add(Executors.callable(htm));
+			}
+
+			if (tasks.isEmpty()) {
+				break;
+			}
+
+			// a network catches its own errors
+			this.forkJoinPool.invokeAll(tasks);
+			tasks.clear();
+
+		}
+
+		this.sliceInputs = 0;
+
+	}
+
+	private InetAddress address(String host) throws UnknownHostException {
+
+		InetAddress address = this.addresses.get(host);
+		if (address == null) {
+			address = HostRegistry.localAddress(host);
+			this.addresses.put(host, address);
+		}
+
+		return address;
+
+	}
+
+	@Override
+	public void close() {
+
+		this.compute();
+		if (this.pool.getDropped() > 0) {
+			logger.warn(this.pool.getDropped() + " HTM inputs were dropped");
+		}
+		this.fdSink.close();
+		this.htmSink.close();
+		this.forkJoinPool.shutdown();
+
+	}
+
+	/**
+	 * Reads responses from a file, which is one of the following.
+	 * 1. yyyy-MM-ddTHH:mm:ss,SSS, host, duration in nano seconds[, time to first byte] by CSVUpdateHandler, or an error instead of the duration
+	 * 2. yyyy-MM-dd HH:mm:ss,duration in micro seconds,log10 of it, of a host named after the file, like resources/sample/sample.csv
+	 * Other lines like headers are skipped.
+	 */
+	static class LogReader implements Closeable {
+
+		private final BufferedReader reader;
+		// the host of a sample file
+		private final String fileHost;
+		private final Calendar calendar = Calendar.getInstance();
+
+		// the last response read
+		long time;
+		String host;
+		long duration;
+
+		LogReader(File file) throws IOException {
+
+			InputStream in = new FileInputStream(file);
+			if (file.getName().endsWith(".gz")) {
+				in = new GZIPInputStream(in, CSVSink.BUFFER_SIZE);
+			}
+			this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), CSVSink.BUFFER_SIZE);
+
+			String name = file.getName();
+			this.fileHost = name.indexOf('.') > 0 ? name.substring(0, name.indexOf('.')) : name;
+
+		}
+
+		/**
+		 * @return false at the end, otherwise the next response is set to time, host and duration
+		 */
+		boolean next() throws IOException {
+
+			String line;
+			while ((line = this.reader.readLine()) != null) {
+				if (this.parse(line)) {
+					return true;
+				}
+			}
+
+			return false;
+
+		}
+
+		private boolean parse(String line) {
+
+			if (line.length() < 21 || !isDigit(line, 0, 4) || !isDigit(line, 17, 19)) {
+				return false;
+			}
+
+			this.calendar.clear();
+			this.calendar.set(digits(line, 0, 4), digits(line, 5, 7) - 1, digits(line, 8, 10),
+					digits(line, 11, 13), digits(line, 14, 16), digits(line, 17, 19));
+
+			if (line.charAt(10) == 'T') {
+
+				// milli seconds, a delimiter and a host
+				int hostStart = 23 + CSVUpdateHandler.DELIM.length();
+				int hostEnd = line.indexOf(CSVUpdateHandler.DELIM, hostStart);
+				if (line.charAt(19) != ',' || !isDigit(line, 20, 23) || hostEnd < 0) {
+					return false;
+				}
+
+				int durationStart = hostEnd + CSVUpdateHandler.DELIM.length();
+				int durationEnd = line.indexOf(CSVUpdateHandler.DELIM, durationStart);
+				if (durationEnd < 0) {
+					durationEnd = line.length();
+				}
+				if (!isDigit(line, durationStart, durationEnd)) {
+					// an error
+					return false;
+				}
+
+				this.time = this.calendar.getTimeInMillis() + digits(line, 20, 23);
+				this.host = line.substring(hostStart, hostEnd);
+				this.duration = longDigits(line, durationStart, durationEnd);
+
+			} else {
+
+				int durationEnd = line.indexOf(',', 20);
+				if (line.charAt(19) != ',' || durationEnd < 0 || !isDigit(line, 20, durationEnd)) {
+					return false;
+				}
+
+				this.time = this.calendar.getTimeInMillis();
+				this.host = this.fileHost;
+				this.duration = TimeUnit.MICROSECONDS.toNanos(longDigits(line, 20, durationEnd));
+
+			}
+
+			return true;
+
+		}
+
+		private static boolean isDigit(String line, int from, int to) {
+
+			if (from >= to || to - from > 18) {
+				return false;
+			}
+
+			for (int i = from; i < to; i++) {
+				char c = line.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
+			}
+
+			return true;
+
+		}
+
+		private static int digits(String line, int from, int to) {
+			return (int) longDigits(line, from, to);
+		}
+
+		private static long longDigits(String line, int from, int to) {
+
+			long value = 0;
+			for (int i = from; i < to; i++) {
+				value = value * 10 + line.charAt(i) - '0';
+			}
+
+			return value;
+
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.reader.close();
+		}
+
+	}
+
+	/**
+	 * Adds a file, or the sonar files in a directory and its sub directories.
+	 */
+	static void collect(File file, List<File> files) {
+
+		if (!file.isDirectory()) {
+			files.add(file);
+			return;
+		}
+
+		File[] children = file.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+
+		for (File child : children) {
+			if (child.isDirectory() || child.getName().startsWith(SONAR_PREFIX)) {
+				collect(child, files);
+			}
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length == 0) {
+			System.err.println("usage: ReplayEngine file|directory...");
+			System.exit(1);
+		}
+
+		// hosts keep the names as recorded, which are not looked up again
+		if (System.getProperty(CloudSonar.DNS_TTL_PROPERTY) == null) {
+			System.setProperty(CloudSonar.DNS_TTL_PROPERTY, Long.toString(Long.MAX_VALUE));
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			collect(new File(arg), files);
+		}
+
+		File directory = new File(System.getProperty(CSVSink.DIRECTORY_PROPERTY, DEFAULT_DIRECTORY));
+		HTMModelManager models = new HTMModelManager(new File(directory, HTMModelManager.DEFAULT_DIRECTORY), CloudSonar.htmBudget());
+		int threads = Integer.getInteger(CloudSonar.HTM_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+
+		long started = System.nanoTime();
+		long records;
+		ReplayEngine engine = new ReplayEngine(directory, threads, models, CloudSonar::createAggregator);
+		try {
+			records = engine.replay(files);
+		} finally {
+			engine.close();
+		}
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		System.out.println("replayed " + records + " responses of " + engine.addresses.size() + " hosts from " + files.size() + " files in " + elapsed + " ms");
+
+	}
+
+}
@@ -0,0 +1,422 @@
+package com.cloudian.analytics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * ShardCoordinator splits targets among the members of a mesh, so that each target is polled by replicas members
+ * instead of all of them.
+ *
+ * Targets are placed on a HashRing of the members that are alive, and a member polls the targets it owns.
+ * A member is alive while its MeshAgent hears of it within the timeout, so a ring changes
+ * only when a member joins or leaves, and only the targets next to it on the ring move.
+ *
+ * When a target moves, the first of its previous owners that is still alive hands its state over to each new owner,
+ * the samples of its FailureDetectorUpdateHandler window and the inputs given to its HTM network, as Checkpoint saves them,
+ * so the new owner resumes from what has been learned. It is sent over TCP to the port of the new owner in the mesh,
+ * as MAGIC(4) and a Checkpoint record per target, each of which follows true and the last of which is followed by false.
+ * The state of a target is lost only when all of its owners leave at once.
+ * A member releases the state of the targets it no longer owns once they are handed over.
+ * The state handed over replaces the one of a target under the locks of the detectors, as their handler threads update it.
+ *
+ * All the members are given the same list of targets, which are keyed by the names given.
+ *
+ */
+public class ShardCoordinator implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(ShardCoordinator.class);
+
+	static final int MAGIC = 0x534F4E48; // SONH
+	static final long DEFAULT_TIMEOUT_IN_MILLIS = 5000;
+	static final int CONNECT_TIMEOUT_IN_MILLIS = 1000;
+	static final int READ_TIMEOUT_IN_MILLIS = 10000;
+
+	private final MeshAgent mesh;
+	private final int self;
+	private final int size;
+	private final InetAddress[] targets;
+	private final String[] keys;
+	private final Map<String, Integer> byKey = new HashMap<String, Integer>();
+	private final long[] intervals;
+	private final int replicas;
+	private final long interval;
+	private final long timeout;
+	private final PollingScheduler scheduler;
+	private final HostRegistry registry;
+	private final FailureDetectorUpdateHandler failureDetector;
+	private final HTMAnomalyDetector anomalyDetector;
+	private final ServerSocket server;
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ProbeEngine.DaemonThreadFactory("sonar-shard"));
+	private final Thread receiver;
+
+	// only touched by the executor, null until assigned
+	private boolean[] alive;
+	// members that own each target, replaced on every assignment
+	private volatile int[][] owners;
+
+	private final Metrics.Counter moved;
+	private final Metrics.Counter handedOver;
+	private final Metrics.Counter received;
+
+	/**
+	 * Listens on the port of self in the mesh over TCP on all the addresses.
+	 * @param targets to be polled every interval in milli seconds by the members that own them
+	 */
+	public ShardCoordinator(MeshAgent mesh, InetAddress[] targets, long[] intervals, int replicas, long intervalInMillis, long timeoutInMillis,
+			PollingScheduler scheduler, FailureDetectorUpdateHandler failureDetector, HTMAnomalyDetector anomalyDetector) throws IOException {
+		this(new ServerSocket(mesh.getMatrix().getMember(mesh.getMatrix().getSelf()).getPort()), mesh, targets, intervals, replicas,
+				intervalInMillis, timeoutInMillis, scheduler, HostRegistry.getDefault(), failureDetector, anomalyDetector);
+	}
+
+	/**
+	 * @param server bound to the port of self in the mesh
+	 */
+	ShardCoordinator(ServerSocket server, MeshAgent mesh, InetAddress[] targets, long[] intervals, int replicas, long intervalInMillis, long timeoutInMillis,
+			PollingScheduler scheduler, HostRegistry registry, FailureDetectorUpdateHandler failureDetector, HTMAnomalyDetector anomalyDetector) {
+
+		this.server = server;
+		this.mesh = mesh;
+		this.self = mesh.getMatrix().getSelf();
+		this.size = mesh.getMatrix().size();
+		this.targets = targets.clone();
+		this.intervals = intervals.clone();
+		this.replicas = replicas;
+		this.interval = intervalInMillis;
+		this.timeout = timeoutInMillis;
+		this.scheduler = scheduler;
+		this.registry = registry;
+		this.failureDetector = failureDetector;
+		this.anomalyDetector = anomalyDetector;
+
+		this.keys = new String[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			this.keys[i] = registry.key(registry.register(targets[i]));
+			this.byKey.put(this.keys[i], i);
+		}
+
+		this.receiver = new Thread(this::receive, "sonar-handover");
+		this.receiver.setDaemon(true);
+
+		Metrics metrics = Metrics.getDefault();
+		this.moved = metrics.counter("shard.moved");
+		this.handedOver = metrics.counter("shard.handed_over");
+		this.received = metrics.counter("shard.received");
+		metrics.gauge("shard.owned", this::getOwnedCount);
+
+	}
+
+	/**
+	 * Polls the targets owned as all the members are alive, and checks the members every interval.
+	 */
+	public void start() {
+
+		this.receiver.start();
+		// a grace period from the start, in the same way as the mesh agent
+		boolean[] all = new boolean[this.size];
+		Arrays.fill(all, true);
+		this.executor.execute(() -> this.assign(all));
+		this.executor.scheduleWithFixedDelay(this, this.interval, this.interval, TimeUnit.MILLISECONDS);
+
+	}
+
+	public void shutdown() {
+
+		this.executor.shutdownNow();
+		try {
+			this.server.close();
+		} catch (IOException e) {
+			logger.warn("failed to close a server socket", e);
+		}
+
+	}
+
+	@Override
+	public void run() {
+
+		try {
+
+			MeshAgent.Matrix matrix = this.mesh.getMatrix();
+			long now = System.currentTimeMillis();
+			boolean[] alive = new boolean[this.size];
+			for (int member = 0; member < this.size; member++) {
+				alive[member] = member == this.self || now - matrix.getHeard(member) < this.timeout;
+			}
+
+			if (!Arrays.equals(alive, this.alive)) {
+				this.assign(alive);
+			}
+
+		} catch (RuntimeException e) {
+			// not to stop the schedule
+			logger.error("failed to assign targets", e);
+		}
+
+	}
+
+	/**
+	 * Places the targets on a ring of the members alive, polls the ones newly owned, stops the ones no longer owned,
+	 * hands over the ones moved to others from this member, and releases the state of the ones stopped.
+	 */
+	void assign(boolean[] alive) {
+
+		MeshAgent.Matrix matrix = this.mesh.getMatrix();
+		List<String> names = new ArrayList<String>();
+		List<Integer> members = new ArrayList<Integer>();
+		for (int member = 0; member < this.size; member++) {
+			if (alive[member]) {
+				names.add(name(matrix.getMember(member)));
+				members.add(member);
+			}
+		}
+		HashRing ring = new HashRing(names, HashRing.DEFAULT_VIRTUAL_NODES);
+
+		int[][] previous = this.owners;
+		int[][] owners = new int[this.targets.length][];
+		// targets to hand over by member
+		Map<Integer, List<Integer>> handovers = new TreeMap<Integer, List<Integer>>();
+		List<Integer> released = new ArrayList<Integer>();
+		int started = 0, stopped = 0;
+
+		for (int target = 0; target < this.targets.length; target++) {
+
+			int[] found = ring.owners(this.keys[target], this.replicas);
+			owners[target] = new int[found.length];
+			for (int i = 0; i < found.length; i++) {
+				owners[target][i] = members.get(found[i]);
+			}
+
+			boolean mine = contains(owners[target], this.self);
+			boolean mineBefore = previous != null && contains(previous[target], this.self);
+			if (mine && !mineBefore) {
+				this.scheduler.schedule(this.targets[target], this.intervals[target]);
+				started++;
+			} else if (!mine && mineBefore) {
+				this.scheduler.unschedule(this.targets[target]);
+				released.add(target);
+				stopped++;
+			}
+
+			if (previous == null || this.firstAlive(previous[target], alive) != this.self) {
+				continue;
+			}
+			for (int owner : owners[target]) {
+				if (owner != this.self && !contains(previous[target], owner)) {
+					handovers.computeIfAbsent(owner, member -> new ArrayList<Integer>()).add(target);
+				}
+			}
+
+		}
+
+		this.owners = owners;
+		this.alive = alive;
+		if (previous != null) {
+			this.moved.add(started + stopped);
+		}
+		logger.info(names.size() + " of " + this.size + " members alive, started " + started + " and stopped " + stopped
+				+ " of " + this.targets.length + " targets");
+
+		for (Map.Entry<Integer, List<Integer>> handover : handovers.entrySet()) {
+			this.handOver(matrix.getMember(handover.getKey()), handover.getValue());
+		}
+
+		for (int target : released) {
+			int hostId = this.registry.register(this.targets[target]);
+			this.failureDetector.remove(hostId);
+			this.anomalyDetector.remove(hostId);
+		}
+
+	}
+
+	/**
+	 * @return the first member alive in the order found on the ring, -1 if none is
+	 */
+	private int firstAlive(int[] owners, boolean[] alive) {
+
+		for (int owner : owners) {
+			if (alive[owner]) {
+				return owner;
+			}
+		}
+
+		return -1;
+
+	}
+
+	private static boolean contains(int[] members, int member) {
+
+		for (int m : members) {
+			if (m == member) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	private void handOver(InetSocketAddress member, List<Integer> targets) {
+
+		int sent = 0;
+		try (Socket socket = new Socket()) {
+
+			socket.connect(member, CONNECT_TIMEOUT_IN_MILLIS);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(MAGIC);
+
+			for (int target : targets) {
+
+				int hostId = this.registry.register(this.targets[target]);
+				long[] samples = this.failureDetector.getSamples(hostId);
+				HTMHistory history = this.anomalyDetector.getHistory(hostId);
+				if (samples == null && history == null) {
+					continue;
+				}
+
+				out.writeBoolean(true);
+				Checkpoint.write(out, this.keys[target], samples, history);
+				sent++;
+
+			}
+
+			out.writeBoolean(false);
+			out.flush();
+
+		} catch (IOException e) {
+			logger.warn("failed to hand over " + targets.size() + " targets to " + member, e);
+			return;
+		}
+
+		this.handedOver.add(sent);
+		logger.debug("handed over " + sent + " targets to " + member);
+
+	}
+
+	private void receive() {
+
+		while (!this.server.isClosed()) {
+
+			try (Socket socket = this.server.accept()) {
+				socket.setSoTimeout(READ_TIMEOUT_IN_MILLIS);
+				int restored = this.restore(socket.getInputStream());
+				logger.debug("restored " + restored + " targets handed over from " + socket.getRemoteSocketAddress());
+			} catch (IOException | RuntimeException e) {
+				if (!this.server.isClosed()) {
+					logger.warn("failed to receive targets handed over", e);
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * Restores the targets handed over, whether they are owned yet or not, since this member may learn of a change later.
+	 * @return the number of targets restored
+	 */
+	int restore(InputStream stream) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a handover");
+		}
+
+		int restored = 0;
+		while (in.readBoolean()) {
+
+			Checkpoint.HostState state = Checkpoint.read(in);
+			Integer target = this.byKey.get(state.key);
+			if (target == null) {
+				logger.debug("ignored " + state.key + ", which is not a target");
+				continue;
+			}
+
+			state.restore(this.registry.register(this.targets[target]), this.targets[target], this.failureDetector, this.anomalyDetector);
+			this.received.increment();
+			restored++;
+
+		}
+
+		return restored;
+
+	}
+
+	/**
+	 * @return true if this member polls a target
+	 */
+	boolean isOwned(InetAddress target) {
+
+		int[][] owners = this.owners;
+		for (int i = 0; owners != null && i < this.targets.length; i++) {
+			if (this.targets[i].equals(target)) {
+				return contains(owners[i], this.self);
+			}
+		}
+
+		return false;
+
+	}
+
+	int getOwnedCount() {
+
+		int[][] owners = this.owners;
+		int owned = 0;
+		for (int i = 0; owners != null && i < owners.length; i++) {
+			if (contains(owners[i], this.self)) {
+				owned++;
+			}
+		}
+
+		return owned;
+
+	}
+
+	/**
+	 * @return a line of "target, owner owner ..., owned|-" per target
+	 */
+	byte[] toText() {
+
+		MeshAgent.Matrix matrix = this.mesh.getMatrix();
+		int[][] owners = this.owners;
+		StringBuilder text = new StringBuilder();
+		text.append("# ").append(this.targets.length).append(" targets, ").append(this.getOwnedCount()).append(" owned by ")
+			.append(name(matrix.getMember(this.self))).append('\n')
+			.append("# target, owners, owned\n");
+
+		for (int i = 0; owners != null && i < this.targets.length; i++) {
+			text.append(this.keys[i]).append(',');
+			for (int owner : owners[i]) {
+				text.append(' ').append(name(matrix.getMember(owner)));
+			}
+			text.append(", ").append(contains(owners[i], this.self) ? "owned" : "-").append('\n');
+		}
+
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+
+	}
+
+	private static String name(InetSocketAddress member) {
+		return member.getHostString() + ":" + member.getPort();
+	}
+
+}
@@ -32,19 +32,17 @@ public class SimplePingPollingJob extends PollingJob {
 	@Override
 	public void run() {
 		
-		logger.debug("PingPolling to " + this.host.getHostName() + " is about to start");
-		
 		this.started();
 		
-		logger.debug("PingPolling to " + this.host.getHostName() + " started");
-		
 		try {
 			
 			if (!this.host.isReachable(TIMEOUT)) {
 				
 				this.failed("unreacheable");
 				
-				logger.debug("PingPolling to " + this.host.getHostName() + " failed");
+				if (logger.isDebugEnabled()) {
+					logger.debug("PingPolling to " + this.name() + " failed");
+				}
 				
 				return;
 				
@@ -54,7 +52,9 @@ public class SimplePingPollingJob extends PollingJob {
 			
 			this.failed(e.getMessage());
 			
-			logger.debug("PingPolling to " + this.host.getHostName() + " failed");
+			if (logger.isDebugEnabled()) {
+				logger.debug("PingPolling to " + this.name() + " failed");
+			}
 			
 			return;
 			
@@ -62,7 +62,9 @@ public class SimplePingPollingJob extends PollingJob {
 		
 		this.finished();
 		
-		logger.debug("PingPolling to " + this.host.getHostName() + " finished");
+		if (logger.isDebugEnabled()) {
+			logger.debug("PingPolling to " + this.name() + " finished");
+		}
 		
 	}
 
@@ -7,6 +7,10 @@ public class SimplePingPollingStrategy extends PollingStrategy {
 	public SimplePingPollingStrategy(PollingUpdateHandler[] handlers) {
 		super(handlers);
 	}
+	
+	public SimplePingPollingStrategy(PollingUpdateHandler[] handlers, ProbeEngine engine) {
+		super(handlers, engine);
+	}
 
 	@Override
 	PollingJob createPollingJob(InetAddress host) {
@@ -0,0 +1,232 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This strategy polls simulated targets in this process instead of hosts over a network,
+ * so that the scheduler, the handlers and the detectors can be load tested with tens of thousands of targets on a box.
+ *
+ * A response takes a latency drawn from the distribution of its host, or from the default one,
+ * e.g. exponential like the PING response times in README. A job never blocks a thread.
+ * It is completed by a timer, and its duration is exactly the latency drawn, not when the timer ran.
+ *
+ * Faults can be injected into a host in a time window.
+ * 1. slowdown multiplies latencies by a factor
+ * 2. timeouts lets responses time out at a probability
+ * 3. outage lets every response time out, as a host that is down
+ * A response that times out fails with "timeout" after the timeout, as the other strategies do.
+ *
+ */
+public class SimulatedPollingStrategy extends PollingStrategy {
+
+	static final long DEFAULT_TIMEOUT_IN_MILLIS = 10000;
+	// in micro seconds
+	static final long DEFAULT_MIN_LATENCY = 100;
+	static final long DEFAULT_MEAN_LATENCY = 350;
+
+	/**
+	 * A distribution of latencies, which is called by many threads at a time.
+	 */
+	public interface Latency {
+
+		/**
+		 * @return a latency in nano seconds
+		 */
+		long next(ThreadLocalRandom random);
+
+		static Latency constant(long nanos) {
+			return random -> nanos;
+		}
+
+		/**
+		 * @param min the shortest latency in nano seconds
+		 * @param mean the mean latency in nano seconds, which is longer than min
+		 */
+		static Latency exponential(long min, long mean) {
+			double scale = mean - min;
+			return random -> min + (long) (-scale * Math.log(1 - random.nextDouble()));
+		}
+
+	}
+
+	enum FaultType {
+		SLOWDOWN, TIMEOUTS, OUTAGE
+	}
+
+	static class Fault {
+
+		final FaultType type;
+		// a factor of latencies, or a probability of timeouts
+		final double value;
+		// in milli seconds, from inclusive to exclusive
+		final long from, to;
+
+		Fault(FaultType type, double value, long from, long to) {
+			this.type = type;
+			this.value = value;
+			this.from = from;
+			this.to = to;
+		}
+
+	}
+
+	static class Target {
+
+		volatile Latency latency;
+		// copied on write
+		volatile Fault[] faults = new Fault[0];
+
+		Target(Latency latency) {
+			this.latency = latency;
+		}
+
+	}
+
+	private final HostRegistry registry = HostRegistry.getDefault();
+	// by host id
+	private final HostTable<Target> targets = new HostTable<Target>();
+	private final Latency latency;
+	private final long timeoutInNanos;
+	private final HashedWheelTimer timer = new HashedWheelTimer("sonar-simulated", 1, TimeUnit.MILLISECONDS, 1024);
+
+	public SimulatedPollingStrategy(PollingUpdateHandler[] handlers, ProbeEngine engine, Latency latency, long timeoutInMillis) {
+		super(handlers, engine);
+		this.latency = latency;
+		this.timeoutInNanos = TimeUnit.MILLISECONDS.toNanos(timeoutInMillis);
+	}
+
+	@Override
+	PollingJob createPollingJob(InetAddress host) {
+		return new SimulatedPollingJob(host, this);
+	}
+
+	/**
+	 * Sets the distribution of latencies of a host instead of the default one.
+	 */
+	public void setLatency(InetAddress host, Latency latency) {
+		this.target(host).latency = latency;
+	}
+
+	/**
+	 * Multiplies latencies of a host by a factor from and to given times in milli seconds.
+	 */
+	public void slowdown(InetAddress host, double factor, long from, long to) {
+		this.inject(host, new Fault(FaultType.SLOWDOWN, factor, from, to));
+	}
+
+	/**
+	 * Lets responses of a host time out at a probability from and to given times in milli seconds.
+	 */
+	public void timeouts(InetAddress host, double probability, long from, long to) {
+		this.inject(host, new Fault(FaultType.TIMEOUTS, probability, from, to));
+	}
+
+	/**
+	 * Lets every response of a host time out from and to given times in milli seconds.
+	 */
+	public void outage(InetAddress host, long from, long to) {
+		this.inject(host, new Fault(FaultType.OUTAGE, 1, from, to));
+	}
+
+	private void inject(InetAddress host, Fault fault) {
+
+		Target target = this.target(host);
+		synchronized (target) {
+			Fault[] faults = Arrays.copyOf(target.faults, target.faults.length + 1);
+			faults[faults.length - 1] = fault;
+			target.faults = faults;
+		}
+
+	}
+
+	private Target target(InetAddress host) {
+
+		int hostId = this.registry.register(host);
+		Target target = this.targets.get(hostId);
+		if (target == null) {
+			this.targets.compareAndSet(hostId, null, new Target(this.latency));
+			target = this.targets.get(hostId);
+		}
+
+		return target;
+
+	}
+
+	/**
+	 * Responds to a job after a simulated latency, or lets it time out.
+	 */
+	void respond(final SimulatedPollingJob job) {
+
+		Target target = this.target(job.host);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long latency = target.latency.next(random);
+
+		long now = System.currentTimeMillis();
+		for (Fault fault : target.faults) {
+
+			if (now < fault.from || now >= fault.to) {
+				continue;
+			}
+
+			switch (fault.type) {
+			case SLOWDOWN:
+				latency = (long) (latency * fault.value);
+				break;
+			case TIMEOUTS:
+				if (random.nextDouble() < fault.value) {
+					latency = this.timeoutInNanos;
+				}
+				break;
+			case OUTAGE:
+				latency = this.timeoutInNanos;
+				break;
+			}
+
+		}
+
+		final long stoppedAt = job.pollingStatus.started + Math.min(latency, this.timeoutInNanos);
+		final boolean timedOut = latency >= this.timeoutInNanos;
+
+		this.timer.newTimeoutAt(new HashedWheelTimer.TimerTask() {
+			@Override
+			public void run(HashedWheelTimer.Timeout timeout) {
+				if (timedOut) {
+					job.failed("timeout", stoppedAt);
+				} else {
+					job.finished(stoppedAt);
+				}
+			}
+		}, stoppedAt);
+
+	}
+
+	public void shutdown() {
+		this.timer.stop();
+	}
+
+}
+
+/**
+ * A job of a simulated target, which is completed by its strategy.
+ */
+class SimulatedPollingJob extends PollingJob {
+
+	private final SimulatedPollingStrategy strategy;
+
+	SimulatedPollingJob(InetAddress host, SimulatedPollingStrategy strategy) {
+		super(host);
+		this.strategy = strategy;
+	}
+
+	@Override
+	public void run() {
+
+		this.started();
+		this.strategy.respond(this);
+
+	}
+
+}
@@ -0,0 +1,255 @@
+package com.cloudian.analytics;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A bounded ring buffer of primitive longs with a running sum and sum of squares,
+ * which replaces BoundedStatsDeque behind ArrivalWindow.
+ *
+ * Nothing is allocated by add, and mean and variance are O(1).
+ *
+ * There must be a single writer at a time. Readers never block the writer,
+ * they read optimistically, and retry if the writer changed the buffer in the meantime.
+ *
+ */
+class StatsRingBuffer implements Iterable<Long> {
+
+	private static final int MAX_OPTIMISTIC_READS = 8;
+
+	private final long[] values;
+	private final StampedLock lock = new StampedLock();
+
+	// the index to write a next value
+	private int head = 0;
+	private int size = 0;
+	private long sum = 0;
+	// a double to avoid overflow, recomputed every round to cancel out accumulated errors
+	private double sumOfSquares = 0;
+	private int writesSinceRecompute = 0;
+
+	StatsRingBuffer(int capacity) {
+		this.values = new long[capacity];
+	}
+
+	void add(long value) {
+
+		long stamp = this.lock.writeLock();
+		try {
+
+			if (this.size == this.values.length) {
+				long removed = this.values[this.head];
+				this.sum -= removed;
+				this.sumOfSquares -= (double) removed * removed;
+			} else {
+				this.size++;
+			}
+
+			this.values[this.head] = value;
+			this.sum += value;
+			this.sumOfSquares += (double) value * value;
+
+			this.head++;
+			if (this.head == this.values.length) {
+				this.head = 0;
+			}
+
+			if (++this.writesSinceRecompute == this.values.length) {
+				this.recomputeSumOfSquares();
+			}
+
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+
+	}
+
+	private void recomputeSumOfSquares() {
+
+		double recomputed = 0;
+		for (int i = 0; i < this.size; i++) {
+			recomputed += (double) this.values[i] * this.values[i];
+		}
+		this.sumOfSquares = recomputed;
+		this.writesSinceRecompute = 0;
+
+	}
+
+	int capacity() {
+		return this.values.length;
+	}
+
+	int size() {
+
+		long stamp = this.lock.tryOptimisticRead();
+		int size = this.size;
+		if (this.lock.validate(stamp)) {
+			return size;
+		}
+
+		stamp = this.lock.readLock();
+		try {
+			return this.size;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+
+	}
+
+	long sum() {
+
+		for (int i = 0; i < MAX_OPTIMISTIC_READS; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			long sum = this.sum;
+			if (this.lock.validate(stamp)) {
+				return sum;
+			}
+		}
+
+		long stamp = this.lock.readLock();
+		try {
+			return this.sum;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+
+	}
+
+	double mean() {
+
+		for (int i = 0; i < MAX_OPTIMISTIC_READS; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			long sum = this.sum;
+			int size = this.size;
+			if (this.lock.validate(stamp)) {
+				return size > 0 ? ((double) sum) / size : 0;
+			}
+		}
+
+		long stamp = this.lock.readLock();
+		try {
+			return this.size > 0 ? ((double) this.sum) / this.size : 0;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+
+	}
+
+	/**
+	 * @return the population variance of the values in the buffer
+	 */
+	double variance() {
+
+		long sum = 0;
+		double sumOfSquares = 0;
+		int size = 0;
+		boolean valid = false;
+
+		for (int i = 0; i < MAX_OPTIMISTIC_READS && !valid; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			sum = this.sum;
+			sumOfSquares = this.sumOfSquares;
+			size = this.size;
+			valid = this.lock.validate(stamp);
+		}
+
+		if (!valid) {
+			long stamp = this.lock.readLock();
+			try {
+				sum = this.sum;
+				sumOfSquares = this.sumOfSquares;
+				size = this.size;
+			} finally {
+				this.lock.unlockRead(stamp);
+			}
+		}
+
+		if (size == 0) {
+			return 0;
+		}
+
+		double mean = ((double) sum) / size;
+		return Math.max(0, sumOfSquares / size - mean * mean);
+
+	}
+
+	/**
+	 * Copies the values from the oldest to the newest.
+	 * @param dst an array at least as large as the capacity
+	 * @return the number of values copied
+	 */
+	int snapshot(long[] dst) {
+
+		for (int i = 0; i < MAX_OPTIMISTIC_READS; i++) {
+			long stamp = this.lock.tryOptimisticRead();
+			int size = this.copy(dst);
+			if (this.lock.validate(stamp)) {
+				return size;
+			}
+		}
+
+		long stamp = this.lock.readLock();
+		try {
+			return this.copy(dst);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+
+	}
+
+	private int copy(long[] dst) {
+
+		int size = this.size;
+		int head = this.head;
+		int capacity = this.values.length;
+		if (size > capacity || head >= capacity) {
+			// an inconsistent optimistic read, which fails to validate
+			return 0;
+		}
+
+		int start = size < capacity ? 0 : head;
+		int first = Math.min(size, capacity - start);
+		System.arraycopy(this.values, start, dst, 0, first);
+		System.arraycopy(this.values, 0, dst, first, size - first);
+
+		return size;
+
+	}
+
+	/**
+	 * Iterates over a snapshot, so it is not affected by following writes.
+	 */
+	@Override
+	public Iterator<Long> iterator() {
+
+		final long[] snapshot = new long[this.values.length];
+		final int size = this.snapshot(snapshot);
+
+		return new Iterator<Long>() {
+
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return this.index < size;
+			}
+
+			@Override
+			public Long next() {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return snapshot[this.index++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+
+	}
+
+}
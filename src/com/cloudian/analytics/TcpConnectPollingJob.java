@@ -0,0 +1,50 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This is a TCP connect job that measures the time to establish a connection to a given port.
+ * 
+ * The job itself does not block. It hands over the connection to a TcpConnectProbeLoop,
+ * and the loop completes it when the channel becomes ready for OP_CONNECT.
+ * 
+ */
+public class TcpConnectPollingJob extends PollingJob {
+	
+	private final TcpConnectProbeLoop loop;
+	final InetSocketAddress target;
+	
+	// only touched by the loop thread
+	SocketChannel channel;
+	long deadline;
+
+	public TcpConnectPollingJob(InetAddress host, int port, TcpConnectProbeLoop loop) {
+		super(host);
+		this.target = new InetSocketAddress(host, port);
+		this.loop = loop;
+	}
+
+	@Override
+	public void run() {
+		
+		this.loop.submit(this);
+		
+	}
+	
+	// the following methods are called by the loop
+	
+	void connecting() {
+		this.started();
+	}
+	
+	void connected() {
+		this.finished();
+	}
+	
+	void failedToConnect(String error) {
+		this.failed(error);
+	}
+
+}
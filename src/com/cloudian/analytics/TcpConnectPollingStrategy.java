@@ -0,0 +1,47 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * This strategy polls hosts by opening a TCP connection to a given port.
+ * Connections to all the hosts are multiplexed on a single Selector,
+ * so that a single thread can probe tens of thousands of hosts per second.
+ * 
+ * Unlike InetAddress#isReachable, this does not require any privilege,
+ * and the port can be chosen to reach the service you care about.
+ *
+ */
+public class TcpConnectPollingStrategy extends PollingStrategy {
+	
+	static final int DEFAULT_PORT = 7;
+	static final long DEFAULT_TIMEOUT_IN_MILLIS = 10000;
+	
+	private final int port;
+	private final TcpConnectProbeLoop loop;
+
+	public TcpConnectPollingStrategy(PollingUpdateHandler[] handlers, int port) throws IOException {
+		this(handlers, ProbeEngine.getDefault(), port, DEFAULT_TIMEOUT_IN_MILLIS);
+	}
+	
+	public TcpConnectPollingStrategy(PollingUpdateHandler[] handlers, ProbeEngine engine, int port, long timeoutInMillis) throws IOException {
+		super(handlers, engine);
+		this.port = port;
+		this.loop = new TcpConnectProbeLoop(timeoutInMillis);
+		this.loop.start();
+	}
+
+	@Override
+	PollingJob createPollingJob(InetAddress host) {
+		return new TcpConnectPollingJob(host, this.port, this.loop);
+	}
+	
+	TcpConnectProbeLoop getLoop() {
+		return this.loop;
+	}
+	
+	public void shutdown() {
+		this.loop.shutdown();
+	}
+
+}
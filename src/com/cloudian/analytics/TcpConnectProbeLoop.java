@@ -0,0 +1,224 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A single thread that opens non-blocking connections, and completes them from one Selector.
+ *
+ * A job is started when its connect is issued, and finished when its channel becomes ready for OP_CONNECT.
+ * As every job has the same timeout, jobs in flight are kept in the order of their deadlines,
+ * and expired ones are failed from the head.
+ *
+ */
+public class TcpConnectProbeLoop implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(TcpConnectProbeLoop.class);
+
+	private final Selector selector;
+	private final long timeoutInNano;
+	private final Queue<TcpConnectPollingJob> pending = new ConcurrentLinkedQueue<TcpConnectPollingJob>();
+	// only touched by the loop thread
+	private final ArrayDeque<TcpConnectPollingJob> inFlight = new ArrayDeque<TcpConnectPollingJob>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	public TcpConnectProbeLoop(long timeoutInMillis) throws IOException {
+		this.selector = Selector.open();
+		this.timeoutInNano = TimeUnit.NANOSECONDS.convert(timeoutInMillis, TimeUnit.MILLISECONDS);
+		this.thread = new Thread(this, "sonar-tcp-connect");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		this.thread.start();
+	}
+
+	/**
+	 * This method does not block, and can be called from any thread.
+	 * @param job
+	 */
+	void submit(TcpConnectPollingJob job) {
+		this.pending.offer(job);
+		this.selector.wakeup();
+	}
+
+	void shutdown() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+
+		logger.debug("tcp connect loop started");
+
+		while (this.running) {
+
+			try {
+
+				this.connectPending();
+
+				this.selector.select(this.nextWaitInMillis());
+
+				this.completeSelected();
+
+				this.expire();
+
+			} catch (IOException e) {
+				logger.error("tcp connect loop failed to select", e);
+			}
+
+		}
+
+		// fail whatever is left
+		for (TcpConnectPollingJob job : this.inFlight) {
+			this.fail(job, "shutdown");
+		}
+		this.inFlight.clear();
+
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			logger.warn("failed to close a selector", e);
+		}
+
+		logger.debug("tcp connect loop finished");
+
+	}
+
+	private void connectPending() {
+
+		TcpConnectPollingJob job;
+		while ((job = this.pending.poll()) != null) {
+
+			SocketChannel channel = null;
+			try {
+
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				// reset on close, so that no TIME_WAIT is left behind for every probe
+				channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+				job.channel = channel;
+				job.connecting();
+				job.deadline = job.pollingStatus.started + this.timeoutInNano;
+
+				if (channel.connect(job.target)) {
+					// connected immediately, e.g. loopback
+					job.connected();
+					close(channel);
+					continue;
+				}
+
+				channel.register(this.selector, SelectionKey.OP_CONNECT, job);
+				this.inFlight.add(job);
+
+			} catch (IOException e) {
+
+				if (job.pollingStatus.status == PollingStatus.Status.NOT_STARTED) {
+					job.connecting();
+				}
+				this.fail(job, e.getMessage());
+
+			}
+
+		}
+
+	}
+
+	private void completeSelected() {
+
+		Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			TcpConnectPollingJob job = (TcpConnectPollingJob) key.attachment();
+
+			try {
+
+				if (job.channel.finishConnect()) {
+					job.connected();
+					close(job.channel);
+				}
+
+			} catch (IOException e) {
+				this.fail(job, e.getMessage());
+			}
+
+		}
+
+	}
+
+	private void expire() {
+
+		long now = System.nanoTime();
+
+		TcpConnectPollingJob job;
+		while ((job = this.inFlight.peek()) != null) {
+
+			if (job.pollingStatus.isStopped()) {
+				this.inFlight.poll();
+				continue;
+			}
+
+			if (now - job.deadline < 0) {
+				break;
+			}
+
+			this.inFlight.poll();
+			this.fail(job, "timeout");
+
+		}
+
+	}
+
+	private long nextWaitInMillis() {
+
+		TcpConnectPollingJob head = this.inFlight.peek();
+		if (head == null) {
+			// nothing to expire, wait for a wakeup
+			return 0;
+		}
+
+		long wait = TimeUnit.MILLISECONDS.convert(head.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		return Math.max(1, wait);
+
+	}
+
+	private void fail(TcpConnectPollingJob job, String error) {
+
+		job.failedToConnect(error == null ? "unreachable" : error);
+		close(job.channel);
+
+	}
+
+	private static void close(SocketChannel channel) {
+
+		if (channel == null) {
+			return;
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.debug("failed to close a channel", e);
+		}
+
+	}
+
+}
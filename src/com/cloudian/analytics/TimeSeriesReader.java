@@ -0,0 +1,178 @@
+package com.cloudian.analytics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TimeSeriesReader queries the records of a host in a TimeSeriesStore directory by a time range.
+ *
+ * Only the segments of the days in a range are opened, and in each segment,
+ * a query seeks to the records of a host through the indexes instead of scanning the others.
+ *
+ * This can also be run to export records as CSV.
+ * java -cp .:./*:./htm/* com.cloudian.analytics.TimeSeriesReader directory host [from] [to]
+ * A time is given in milli seconds, or as yyyy/MM/dd HH:mm:ss in the local time zone.
+ *
+ */
+public class TimeSeriesReader {
+
+	static final String EXPORT_DATE = "yyyy/MM/dd HH:mm:ss.SSS";
+	static final String INPUT_DATE = "yyyy/MM/dd HH:mm:ss";
+
+	private final File directory;
+	private final Map<String, Integer> hostIds = new HashMap<String, Integer>();
+	private final Map<Integer, String> hostNames = new HashMap<Integer, String>();
+
+	public TimeSeriesReader(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param host a host name or an address
+	 * @return -1 if the host is not in the store
+	 */
+	public int hostId(String host) throws IOException {
+
+		Integer id = this.hostIds.get(host);
+		if (id == null) {
+			// a host may have been added since
+			this.loadHosts();
+			id = this.hostIds.get(host);
+		}
+
+		return id == null ? -1 : id;
+
+	}
+
+	public String hostName(int hostId) throws IOException {
+
+		String name = this.hostNames.get(hostId);
+		if (name == null) {
+			this.loadHosts();
+			name = this.hostNames.get(hostId);
+		}
+
+		return name;
+
+	}
+
+	private void loadHosts() throws IOException {
+
+		File file = new File(this.directory, TimeSeriesStore.HOSTS_FILE);
+		if (!file.exists()) {
+			return;
+		}
+
+		for (String[] host : TimeSeriesStore.readHosts(file)) {
+			Integer id = Integer.valueOf(host[0]);
+			this.hostIds.put(host[1], id);
+			this.hostIds.put(host[2], id);
+			this.hostNames.put(id, host[2]);
+		}
+
+	}
+
+	/**
+	 * @param host a host name or an address
+	 * @param from in milli seconds, inclusive
+	 * @param to in milli seconds, inclusive
+	 * @return the records of a host in the order they were appended
+	 */
+	public List<TimeSeriesRecord> query(String host, long from, long to) throws IOException {
+
+		List<TimeSeriesRecord> records = new ArrayList<TimeSeriesRecord>();
+
+		int id = this.hostId(host);
+		if (id < 0 || from > to) {
+			return records;
+		}
+
+		for (File file : TimeSeriesStore.segmentFiles(this.directory, from, to)) {
+
+			TimeSeriesSegment segment = TimeSeriesSegment.openReadOnly(file);
+			try {
+				segment.query(id, from, to, records);
+			} finally {
+				segment.close();
+			}
+
+		}
+
+		return records;
+
+	}
+
+	/**
+	 * Writes records of a host as CSV lines of timestamp, host name, status, duration in nano seconds, PHI score and anomaly score.
+	 */
+	public void export(String host, long from, long to, Writer writer) throws IOException {
+
+		DateFormat format = new SimpleDateFormat(EXPORT_DATE);
+		DecimalFormat decimal = new DecimalFormat("#.###");
+
+		for (TimeSeriesRecord record : this.query(host, from, to)) {
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(format.format(record.timestamp));
+			sb.append(CSVUpdateHandler.DELIM);
+			sb.append(this.hostName(record.hostId));
+			sb.append(CSVUpdateHandler.DELIM);
+			sb.append(record.status);
+			sb.append(CSVUpdateHandler.DELIM);
+			sb.append(record.duration);
+			sb.append(CSVUpdateHandler.DELIM);
+			sb.append(Float.isNaN(record.phi) ? "N/A" : decimal.format(record.phi));
+			sb.append(CSVUpdateHandler.DELIM);
+			sb.append(Float.isNaN(record.anomaly) ? "N/A" : decimal.format(record.anomaly));
+			sb.append('\n');
+			writer.write(sb.toString());
+
+		}
+
+		writer.flush();
+
+	}
+
+	static long parseTime(String time) throws ParseException {
+
+		try {
+			return Long.parseLong(time);
+		} catch (NumberFormatException e) {
+			return new SimpleDateFormat(INPUT_DATE).parse(time).getTime();
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 2) {
+			System.err.println("usage: TimeSeriesReader directory host [from] [to]");
+			System.exit(1);
+		}
+
+		long from = args.length > 2 ? parseTime(args[2]) : 0;
+		long to = args.length > 3 ? parseTime(args[3]) : System.currentTimeMillis();
+
+		TimeSeriesReader reader = new TimeSeriesReader(new File(args[0]));
+		if (reader.hostId(args[1]) < 0) {
+			System.err.println(args[1] + " is not in " + args[0]);
+			System.exit(1);
+		}
+
+		reader.export(args[1], from, to, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+
+	}
+
+}
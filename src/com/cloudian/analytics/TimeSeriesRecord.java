@@ -0,0 +1,33 @@
+package com.cloudian.analytics;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * A probe sample read from a TimeSeriesStore.
+ * phi and anomaly are NaN when they were not available.
+ */
+public class TimeSeriesRecord {
+	
+	public final long timestamp;
+	public final int hostId;
+	public final Status status;
+	public final long duration;
+	public final float phi;
+	public final float anomaly;
+	
+	TimeSeriesRecord(long timestamp, int hostId, Status status, long duration, float phi, float anomaly) {
+		this.timestamp = timestamp;
+		this.hostId = hostId;
+		this.status = status;
+		this.duration = duration;
+		this.phi = phi;
+		this.anomaly = anomaly;
+	}
+
+	@Override
+	public String toString() {
+		return "TIMESTAMP: " + this.timestamp + ", HOST: " + this.hostId + ", STATUS: " + this.status
+				+ ", DURATION: " + this.duration + ", PHI: " + this.phi + ", ANOMALY: " + this.anomaly;
+	}
+
+}
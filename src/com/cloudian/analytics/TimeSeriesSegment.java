@@ -0,0 +1,272 @@
+package com.cloudian.analytics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * A memory-mapped segment file of a TimeSeriesStore, which holds the records of a part of a day.
+ *
+ * A segment starts with a header, and fixed-width records follow.
+ *
+ * header:
+ * 0: magic, 4: version, 8: the first millisecond of the day, 16: the number of records
+ * 64: a minute index, the first record number + 1 of each minute of the day, 0 if not yet reached
+ * HOST_INDEX_OFFSET: the last record number + 1 of each host id, 0 if none
+ *
+ * record:
+ * 0: timestamp in milli seconds, 8: duration in nano seconds,
+ * 16: status << 24 | host id, 20: the previous record number of the same host or -1,
+ * 24: phi, 28: anomaly score
+ *
+ * The previous record links let a query for a host jump from record to record of that host
+ * instead of scanning the records of all the other hosts.
+ *
+ * A segment has a single writer. Readers map the same file read-only.
+ *
+ */
+final class TimeSeriesSegment implements Closeable {
+
+	static final int MAGIC = 0x534F4E53;
+	static final int VERSION = 1;
+	static final int MINUTES = 24 * 60;
+	static final int MAX_HOSTS = 1 << 16;
+	static final int RECORD_SIZE = 32;
+	static final int DEFAULT_INITIAL_CAPACITY = 1 << 16;
+	// about 1 GB of records per segment, a mapping can not exceed 2 GB
+	static final int DEFAULT_MAX_CAPACITY = 1 << 25;
+
+	private static final int DAY_OFFSET = 8;
+	private static final int COUNT_OFFSET = 16;
+	private static final int MINUTE_INDEX_OFFSET = 64;
+	private static final int HOST_INDEX_OFFSET = MINUTE_INDEX_OFFSET + MINUTES * 4;
+	static final int HEADER_SIZE = (HOST_INDEX_OFFSET + MAX_HOSTS * 4 + 4095) & ~4095;
+
+	private static final int TIMESTAMP = 0;
+	private static final int DURATION = 8;
+	private static final int HOST_AND_STATUS = 16;
+	private static final int PREVIOUS = 20;
+	private static final int PHI = 24;
+	private static final int ANOMALY = 28;
+
+	private static final Status[] STATUSES = Status.values();
+
+	private final FileChannel channel;
+	private final boolean writable;
+	private final int maxCapacity;
+	private final long day;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int count;
+	// the minute of the last record, -1 if none
+	private int lastMinute = -1;
+
+	private TimeSeriesSegment(FileChannel channel, boolean writable, int initialCapacity, int maxCapacity, long day) throws IOException {
+
+		this.channel = channel;
+		this.writable = writable;
+		this.maxCapacity = maxCapacity;
+
+		if (writable) {
+
+			boolean created = channel.size() == 0;
+			this.capacity = Math.max(initialCapacity, capacityOf(channel.size()));
+			this.buffer = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.capacity * RECORD_SIZE);
+
+			if (created) {
+				this.buffer.putInt(0, MAGIC);
+				this.buffer.putInt(4, VERSION);
+				this.buffer.putLong(DAY_OFFSET, day);
+			}
+
+		} else {
+
+			this.capacity = capacityOf(channel.size());
+			this.buffer = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE + (long) this.capacity * RECORD_SIZE);
+
+		}
+
+		if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+			channel.close();
+			throw new IOException("not a segment file of version " + VERSION);
+		}
+
+		this.day = this.buffer.getLong(DAY_OFFSET);
+		this.count = Math.min(this.buffer.getInt(COUNT_OFFSET), this.capacity);
+		if (this.count > 0) {
+			this.lastMinute = this.minuteOf(this.timestamp(this.count - 1));
+		}
+
+	}
+
+	static TimeSeriesSegment open(File file, long day, int initialCapacity, int maxCapacity) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new TimeSeriesSegment(channel, true, initialCapacity, maxCapacity, day);
+	}
+
+	static TimeSeriesSegment openReadOnly(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		return new TimeSeriesSegment(channel, false, 0, 0, 0);
+	}
+
+	private static int capacityOf(long fileSize) {
+		return (int) Math.max(0, (fileSize - HEADER_SIZE) / RECORD_SIZE);
+	}
+
+	long getDay() {
+		return this.day;
+	}
+
+	int size() {
+		return this.count;
+	}
+
+	boolean isFull() {
+		return this.count >= this.maxCapacity;
+	}
+
+	/**
+	 * Appends a record. The caller has to roll over to a next segment when this is full.
+	 */
+	void append(long timestamp, int hostId, Status status, long duration, float phi, float anomaly) throws IOException {
+
+		if (this.count == this.capacity) {
+			this.grow();
+		}
+
+		int number = this.count;
+		int position = HEADER_SIZE + number * RECORD_SIZE;
+		int hostSlot = HOST_INDEX_OFFSET + hostId * 4;
+
+		this.buffer.putLong(position + TIMESTAMP, timestamp);
+		this.buffer.putLong(position + DURATION, duration);
+		this.buffer.putInt(position + HOST_AND_STATUS, status.ordinal() << 24 | hostId);
+		this.buffer.putInt(position + PREVIOUS, this.buffer.getInt(hostSlot) - 1);
+		this.buffer.putFloat(position + PHI, phi);
+		this.buffer.putFloat(position + ANOMALY, anomaly);
+
+		this.buffer.putInt(hostSlot, number + 1);
+
+		int minute = this.minuteOf(timestamp);
+		while (this.lastMinute < minute) {
+			this.buffer.putInt(MINUTE_INDEX_OFFSET + ++this.lastMinute * 4, number + 1);
+		}
+
+		// the count is written last so that a reader never sees a partial record
+		this.count = number + 1;
+		this.buffer.putInt(COUNT_OFFSET, this.count);
+
+	}
+
+	private void grow() throws IOException {
+
+		if (!this.writable || this.capacity >= this.maxCapacity) {
+			throw new IOException("segment is full");
+		}
+
+		this.capacity = Math.min(this.capacity * 2, this.maxCapacity);
+		this.buffer = this.channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (long) this.capacity * RECORD_SIZE);
+
+	}
+
+	/**
+	 * Collects the records of a host between from and to inclusive, in the order they were appended.
+	 */
+	void query(int hostId, long from, long to, List<TimeSeriesRecord> records) {
+
+		if (hostId < 0 || hostId >= MAX_HOSTS) {
+			return;
+		}
+
+		// the end of the records that can be in range
+		int end = this.count;
+		int nextMinute = this.minuteOf(to) + 1;
+		if (nextMinute < MINUTES) {
+			int first = this.buffer.getInt(MINUTE_INDEX_OFFSET + nextMinute * 4);
+			if (first > 0) {
+				end = Math.min(end, first - 1);
+			}
+		}
+
+		// the last record of the host before the end
+		int number = this.buffer.getInt(HOST_INDEX_OFFSET + hostId * 4) - 1;
+		if (number >= end) {
+			number = end - 1;
+			while (number >= 0 && this.hostId(number) != hostId) {
+				number--;
+			}
+		}
+
+		List<TimeSeriesRecord> found = new ArrayList<TimeSeriesRecord>();
+		while (number >= 0) {
+
+			long timestamp = this.timestamp(number);
+			if (timestamp < from) {
+				break;
+			}
+			if (timestamp <= to) {
+				found.add(this.read(number));
+			}
+			number = this.buffer.getInt(HEADER_SIZE + number * RECORD_SIZE + PREVIOUS);
+
+		}
+
+		Collections.reverse(found);
+		records.addAll(found);
+
+	}
+
+	TimeSeriesRecord read(int number) {
+
+		int position = HEADER_SIZE + number * RECORD_SIZE;
+		int hostAndStatus = this.buffer.getInt(position + HOST_AND_STATUS);
+
+		return new TimeSeriesRecord(
+				this.buffer.getLong(position + TIMESTAMP),
+				hostAndStatus & 0xFFFFFF,
+				STATUSES[hostAndStatus >>> 24],
+				this.buffer.getLong(position + DURATION),
+				this.buffer.getFloat(position + PHI),
+				this.buffer.getFloat(position + ANOMALY));
+
+	}
+
+	private long timestamp(int number) {
+		return this.buffer.getLong(HEADER_SIZE + number * RECORD_SIZE + TIMESTAMP);
+	}
+
+	private int hostId(int number) {
+		return this.buffer.getInt(HEADER_SIZE + number * RECORD_SIZE + HOST_AND_STATUS) & 0xFFFFFF;
+	}
+
+	private int minuteOf(long timestamp) {
+		long minute = (timestamp - this.day) / 60000;
+		return (int) Math.max(-1, Math.min(MINUTES - 1, minute));
+	}
+
+	/**
+	 * Writes the mapped records through to the file.
+	 * The records are safe against a crash of this process without this, but not of the OS.
+	 */
+	void force() {
+		if (this.writable) {
+			this.buffer.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.force();
+		this.channel.close();
+	}
+
+}
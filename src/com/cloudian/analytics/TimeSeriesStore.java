@@ -0,0 +1,268 @@
+package com.cloudian.analytics;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * TimeSeriesStore appends probe samples as fixed-width binary records
+ * to memory-mapped segment files in a directory.
+ *
+ * A segment covers a day in UTC, and is named yyyyMMdd-part.seg. A day has more than one part
+ * only when a segment reaches its maximum capacity.
+ * Host ids are assigned in the order hosts are first seen, and kept in a hosts file
+ * of lines "id, address, host name" so that they stay the same across restarts.
+ *
+ * There must be a single writer of a directory. TimeSeriesReader reads it at the same time.
+ *
+ */
+public class TimeSeriesStore implements Closeable {
+
+	private static final Logger logger = LogManager.getLogger(TimeSeriesStore.class);
+
+	static final String HOSTS_FILE = "hosts";
+	static final String SEGMENT_SUFFIX = ".seg";
+	static final String PART_DELIM = "-";
+	static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+	private final File directory;
+	private final int initialCapacity;
+	private final int maxCapacity;
+	private final Map<InetAddress, Integer> hostIds = new HashMap<InetAddress, Integer>();
+	private final Writer hostsWriter;
+
+	private TimeSeriesSegment current;
+	private int currentPart;
+
+	public TimeSeriesStore(File directory) throws IOException {
+		this(directory, TimeSeriesSegment.DEFAULT_INITIAL_CAPACITY, TimeSeriesSegment.DEFAULT_MAX_CAPACITY);
+	}
+
+	TimeSeriesStore(File directory, int initialCapacity, int maxCapacity) throws IOException {
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("failed to create " + directory);
+		}
+
+		this.directory = directory;
+		this.initialCapacity = initialCapacity;
+		this.maxCapacity = maxCapacity;
+
+		File hosts = new File(directory, HOSTS_FILE);
+		if (hosts.exists()) {
+			for (String[] host : readHosts(hosts)) {
+				this.hostIds.put(InetAddress.getByAddress(host[2], InetAddress.getByName(host[1]).getAddress()), Integer.valueOf(host[0]));
+			}
+		}
+		this.hostsWriter = new OutputStreamWriter(new FileOutputStream(hosts, true), StandardCharsets.UTF_8);
+
+	}
+
+	/**
+	 * @return the id of a host, which is assigned if this is the first time the host is seen
+	 */
+	int hostId(InetAddress host) throws IOException {
+
+		HostRegistry registry = HostRegistry.getDefault();
+
+		return this.hostId(host, registry.name(registry.register(host)));
+
+	}
+
+	/**
+	 * @param name the cached name of the host, which is not looked up
+	 */
+	int hostId(InetAddress host, String name) throws IOException {
+
+		Integer id = this.hostIds.get(host);
+		if (id != null) {
+			return id;
+		}
+
+		if (this.hostIds.size() == TimeSeriesSegment.MAX_HOSTS) {
+			throw new IOException("no more than " + TimeSeriesSegment.MAX_HOSTS + " hosts can be stored");
+		}
+
+		id = this.hostIds.size();
+		this.hostsWriter.write(id + CSVUpdateHandler.DELIM + host.getHostAddress() + CSVUpdateHandler.DELIM + name + "\n");
+		this.hostsWriter.flush();
+		this.hostIds.put(host, id);
+
+		logger.debug("assigned " + id + " to " + host);
+
+		return id;
+
+	}
+
+	/**
+	 * @param timestamp in milli seconds
+	 * @param duration in nano seconds
+	 * @param phi NaN if not available
+	 * @param anomaly NaN if not available
+	 */
+	public void append(long timestamp, InetAddress host, Status status, long duration, double phi, double anomaly) throws IOException {
+		this.append(timestamp, this.hostId(host), status, duration, phi, anomaly);
+	}
+
+	/**
+	 * @param id an id given by hostId
+	 */
+	void append(long timestamp, int id, Status status, long duration, double phi, double anomaly) throws IOException {
+
+		long day = Math.floorDiv(timestamp, DAY_IN_MILLIS) * DAY_IN_MILLIS;
+
+		if (this.current == null || this.current.getDay() != day) {
+			this.roll(day);
+		} else if (this.current.isFull()) {
+			this.current.close();
+			this.current = TimeSeriesSegment.open(segmentFile(this.directory, day, ++this.currentPart), day, this.initialCapacity, this.maxCapacity);
+		}
+
+		this.current.append(timestamp, id, status, duration, (float) phi, (float) anomaly);
+
+	}
+
+	/**
+	 * Opens the last part of a day, or a next one if it is full.
+	 */
+	private void roll(long day) throws IOException {
+
+		if (this.current != null) {
+			this.current.close();
+			this.current = null;
+		}
+
+		int part = 0;
+		while (segmentFile(this.directory, day, part + 1).exists()) {
+			part++;
+		}
+
+		TimeSeriesSegment segment = TimeSeriesSegment.open(segmentFile(this.directory, day, part), day, this.initialCapacity, this.maxCapacity);
+		if (segment.isFull()) {
+			segment.close();
+			segment = TimeSeriesSegment.open(segmentFile(this.directory, day, ++part), day, this.initialCapacity, this.maxCapacity);
+		}
+
+		logger.debug("appending to " + segmentFile(this.directory, day, part));
+
+		this.current = segment;
+		this.currentPart = part;
+
+	}
+
+	/**
+	 * Writes appended records through to the disk.
+	 */
+	public void flush() {
+		if (this.current != null) {
+			this.current.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (this.current != null) {
+			this.current.close();
+			this.current = null;
+		}
+		this.hostsWriter.close();
+
+	}
+
+	static File segmentFile(File directory, long day, int part) {
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		return new File(directory, format.format(new Date(day)) + PART_DELIM + part + SEGMENT_SUFFIX);
+
+	}
+
+	/**
+	 * @return the segment files of the days between from and to, in the order they were written
+	 */
+	static List<File> segmentFiles(File directory, long from, long to) {
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		long firstDay = Math.floorDiv(from, DAY_IN_MILLIS) * DAY_IN_MILLIS;
+		// day and part of each segment file in range
+		TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+		String[] names = directory.list();
+		if (names == null) {
+			return new ArrayList<File>();
+		}
+
+		for (String name : names) {
+
+			int delim = name.indexOf(PART_DELIM);
+			if (delim < 0 || !name.endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+
+			try {
+				long day = format.parse(name.substring(0, delim)).getTime();
+				long part = Long.parseLong(name.substring(delim + 1, name.length() - SEGMENT_SUFFIX.length()));
+				if (day >= firstDay && day <= to) {
+					segments.put(day + part, new File(directory, name));
+				}
+			} catch (ParseException | NumberFormatException e) {
+				logger.warn("ignoring an unknown file " + name);
+			}
+
+		}
+
+		return new ArrayList<File>(segments.values());
+
+	}
+
+	/**
+	 * @return id, address and host name of each line
+	 */
+	static List<String[]> readHosts(File file) throws IOException {
+
+		List<String[]> hosts = new ArrayList<String[]>();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(CSVUpdateHandler.DELIM);
+				if (fields.length == 3) {
+					hosts.add(fields);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return hosts;
+
+	}
+
+}
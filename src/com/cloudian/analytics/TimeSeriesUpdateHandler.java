@@ -0,0 +1,68 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * TimeSeriesUpdateHandler stores every completed job in a TimeSeriesStore
+ * with the PHI score and the last anomaly score of its host.
+ * 
+ * PHI is computed for the duration of a job against the current samples of FailureDetectorUpdateHandler,
+ * and an anomaly score is the last one HTMAnomalyDetector produced, since it is produced once every window of WindowedAggregator.
+ * Either is stored as NaN if not available.
+ */
+public class TimeSeriesUpdateHandler implements PollingUpdateHandler {
+	
+	private static final Logger logger = LogManager.getLogger(TimeSeriesUpdateHandler.class);
+	
+	private final TimeSeriesStore store;
+	private final FailureDetectorUpdateHandler failureDetector;
+	private final HTMAnomalyDetector anomalyDetector;
+	private final HostRegistry registry = HostRegistry.getDefault();
+	// store ids by registry id
+	private final HostTable<Integer> storeIds = new HostTable<Integer>();
+	
+	/**
+	 * @param failureDetector null if not available
+	 * @param anomalyDetector null if not available
+	 */
+	public TimeSeriesUpdateHandler(TimeSeriesStore store, FailureDetectorUpdateHandler failureDetector, HTMAnomalyDetector anomalyDetector) {
+		this.store = store;
+		this.failureDetector = failureDetector;
+		this.anomalyDetector = anomalyDetector;
+	}
+
+	@Override
+	public void updateStatus(PollingEvent event) {
+		
+		PollingStatus pollingStatus = event.pollingStatus();
+		
+		if (!pollingStatus.isStopped()) {
+			return;
+		}
+		
+		int hostId = this.registry.id(event);
+		long duration = pollingStatus.duration();
+		double phi = this.failureDetector == null ? Double.NaN : this.failureDetector.getPhi(hostId, duration);
+		double anomaly = this.anomalyDetector == null ? Double.NaN : this.anomalyDetector.getAnomalyScore(hostId);
+		
+		try {
+			
+			// ids in a store are kept across restarts, so they are not the same as the ones in the registry
+			Integer storeId = this.storeIds.get(hostId);
+			if (storeId == null) {
+				storeId = this.store.hostId(event.host(), this.registry.name(hostId));
+				this.storeIds.set(hostId, storeId);
+			}
+			
+			this.store.append(System.currentTimeMillis(), storeId, pollingStatus.status, duration, phi, anomaly);
+			
+		} catch (IOException e) {
+			logger.error("failed to store " + event.toString(), e);
+		}
+		
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * This is a UDP echo job that measures the round trip time of a small sequence-numbered datagram.
+ * 
+ * The job itself does not block. It hands over the datagram to a UdpEchoProbeLoop,
+ * which sends it with the other pending ones in one pass, and matches its reply by the sequence number.
+ * 
+ */
+public class UdpEchoPollingJob extends PollingJob {
+	
+	private final UdpEchoProbeLoop loop;
+	final InetSocketAddress target;
+	
+	// only touched by the loop thread
+	long sequence = -1;
+	long deadline;
+
+	public UdpEchoPollingJob(InetAddress host, int port, UdpEchoProbeLoop loop) {
+		super(host);
+		this.target = new InetSocketAddress(host, port);
+		this.loop = loop;
+	}
+
+	@Override
+	public void run() {
+		
+		this.loop.submit(this);
+		
+	}
+	
+	// the following methods are called by the loop
+	
+	void sent() {
+		this.started();
+	}
+	
+	void received() {
+		this.finished();
+	}
+	
+	void lost(String error) {
+		this.failed(error);
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * This strategy polls hosts by sending a small datagram to a UDP echo service,
+ * and waiting for the same datagram to come back.
+ * Datagrams to all the hosts are sent from a single DatagramChannel,
+ * and replies are matched by their sequence numbers.
+ * 
+ * A datagram that does not come back within the timeout is counted as lost.
+ * UdpEchoResponder can be run on a host that has no echo service.
+ *
+ */
+public class UdpEchoPollingStrategy extends PollingStrategy {
+	
+	static final int DEFAULT_PORT = 7;
+	// the same as ArrivalWindow.MAX_INTERVAL_IN_NANO, a longer one is not recorded anyway
+	static final long DEFAULT_TIMEOUT_IN_MILLIS = 2000;
+	
+	private final int port;
+	private final UdpEchoProbeLoop loop;
+
+	public UdpEchoPollingStrategy(PollingUpdateHandler[] handlers, int port) throws IOException {
+		this(handlers, ProbeEngine.getDefault(), port, DEFAULT_TIMEOUT_IN_MILLIS);
+	}
+	
+	public UdpEchoPollingStrategy(PollingUpdateHandler[] handlers, ProbeEngine engine, int port, long timeoutInMillis) throws IOException {
+		super(handlers, engine);
+		this.port = port;
+		this.loop = new UdpEchoProbeLoop(timeoutInMillis);
+		this.loop.start();
+	}
+
+	@Override
+	PollingJob createPollingJob(InetAddress host) {
+		return new UdpEchoPollingJob(host, this.port, this.loop);
+	}
+	
+	public long getSent() {
+		return this.loop.sent;
+	}
+	
+	public long getReceived() {
+		return this.loop.received;
+	}
+	
+	public long getLost() {
+		return this.loop.lost;
+	}
+	
+	/**
+	 * @return replies that arrived after their timeout, duplicated, or not sent by this strategy
+	 */
+	public long getUnmatched() {
+		return this.loop.unmatched;
+	}
+	
+	public void shutdown() {
+		this.loop.shutdown();
+	}
+
+}
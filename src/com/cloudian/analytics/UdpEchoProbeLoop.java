@@ -0,0 +1,256 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A single thread that sends sequence-numbered datagrams from one DatagramChannel,
+ * and matches echoed ones by their sequence numbers.
+ *
+ * A datagram is MAGIC(4 bytes) + SEQUENCE(8 bytes).
+ * Jobs in flight are kept in a ring indexed by their sequence numbers,
+ * so a reply is matched without a lookup, and nothing is allocated per datagram to send.
+ *
+ */
+public class UdpEchoProbeLoop implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(UdpEchoProbeLoop.class);
+
+	static final int MAGIC = 0x534F4E52; // SONR
+	static final int PACKET_SIZE = 12;
+	// the maximum number of datagrams in flight
+	private static final int RING_SIZE = 1 << 16;
+	private static final int RING_MASK = RING_SIZE - 1;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final long timeoutInNano;
+	private final Queue<UdpEchoPollingJob> pending = new ConcurrentLinkedQueue<UdpEchoPollingJob>();
+	// only touched by the loop thread
+	private final UdpEchoPollingJob[] ring = new UdpEchoPollingJob[RING_SIZE];
+	private final ArrayDeque<UdpEchoPollingJob> inFlight = new ArrayDeque<UdpEchoPollingJob>();
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+	// larger than a packet to detect a foreign one
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(512);
+	private long nextSequence = 0;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	// written only by the loop thread
+	volatile long sent, received, lost, unmatched;
+
+	public UdpEchoProbeLoop(long timeoutInMillis) throws IOException {
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking(false);
+		this.channel.bind(null);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+		this.timeoutInNano = TimeUnit.NANOSECONDS.convert(timeoutInMillis, TimeUnit.MILLISECONDS);
+		this.thread = new Thread(this, "sonar-udp-echo");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		this.thread.start();
+	}
+
+	/**
+	 * This method does not block, and can be called from any thread.
+	 * @param job
+	 */
+	void submit(UdpEchoPollingJob job) {
+		this.pending.offer(job);
+		this.selector.wakeup();
+	}
+
+	void shutdown() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+
+		logger.debug("udp echo loop started");
+
+		while (this.running) {
+
+			try {
+
+				this.sendPending();
+
+				this.selector.select(this.nextWaitInMillis());
+				this.selector.selectedKeys().clear();
+
+				this.receive();
+
+				this.expire();
+
+			} catch (IOException e) {
+				logger.error("udp echo loop failed", e);
+			}
+
+		}
+
+		for (UdpEchoPollingJob job : this.inFlight) {
+			if (!job.pollingStatus.isStopped()) {
+				job.lost("shutdown");
+			}
+		}
+		this.inFlight.clear();
+
+		try {
+			this.selector.close();
+			this.channel.close();
+		} catch (IOException e) {
+			logger.warn("failed to close a channel", e);
+		}
+
+		logger.debug("udp echo loop finished");
+
+	}
+
+	/**
+	 * sends every pending datagram in one pass
+	 */
+	private void sendPending() {
+
+		UdpEchoPollingJob job;
+		while ((job = this.pending.poll()) != null) {
+
+			long sequence = this.nextSequence++;
+			int slot = (int) (sequence & RING_MASK);
+
+			UdpEchoPollingJob overrun = this.ring[slot];
+			if (overrun != null && !overrun.pollingStatus.isStopped()) {
+				// more than RING_SIZE in flight, its reply can no longer be matched
+				this.lose(overrun, "overrun");
+			}
+
+			this.sendBuffer.clear();
+			this.sendBuffer.putInt(MAGIC);
+			this.sendBuffer.putLong(sequence);
+			this.sendBuffer.flip();
+
+			job.sequence = sequence;
+			job.sent();
+			job.deadline = job.pollingStatus.started + this.timeoutInNano;
+
+			try {
+
+				if (this.channel.send(this.sendBuffer, job.target) == 0) {
+					// the socket buffer is full
+					job.lost("send buffer full");
+					this.lost++;
+					continue;
+				}
+
+			} catch (IOException e) {
+				job.lost(e.getMessage() == null ? "unreachable" : e.getMessage());
+				this.lost++;
+				continue;
+			}
+
+			this.ring[slot] = job;
+			this.inFlight.add(job);
+			this.sent++;
+
+		}
+
+	}
+
+	private void receive() throws IOException {
+
+		while (true) {
+
+			this.receiveBuffer.clear();
+			SocketAddress from = this.channel.receive(this.receiveBuffer);
+			if (from == null) {
+				return;
+			}
+			this.receiveBuffer.flip();
+
+			if (this.receiveBuffer.remaining() != PACKET_SIZE || this.receiveBuffer.getInt() != MAGIC) {
+				this.unmatched++;
+				continue;
+			}
+
+			long sequence = this.receiveBuffer.getLong();
+			int slot = (int) (sequence & RING_MASK);
+			UdpEchoPollingJob job = this.ring[slot];
+
+			if (job == null || job.sequence != sequence || job.pollingStatus.isStopped()
+					|| !((InetSocketAddress) from).getAddress().equals(job.target.getAddress())) {
+				// late, duplicated, or not ours
+				this.unmatched++;
+				continue;
+			}
+
+			job.received();
+			this.ring[slot] = null;
+			this.received++;
+
+		}
+
+	}
+
+	private void expire() {
+
+		long now = System.nanoTime();
+
+		UdpEchoPollingJob job;
+		while ((job = this.inFlight.peek()) != null) {
+
+			if (job.pollingStatus.isStopped()) {
+				this.inFlight.poll();
+				continue;
+			}
+
+			if (now - job.deadline < 0) {
+				break;
+			}
+
+			this.inFlight.poll();
+			this.lose(job, "timeout");
+
+		}
+
+	}
+
+	private void lose(UdpEchoPollingJob job, String error) {
+
+		int slot = (int) (job.sequence & RING_MASK);
+		if (this.ring[slot] == job) {
+			this.ring[slot] = null;
+		}
+
+		job.lost(error);
+		this.lost++;
+
+	}
+
+	private long nextWaitInMillis() {
+
+		UdpEchoPollingJob head = this.inFlight.peek();
+		if (head == null) {
+			return 0;
+		}
+
+		long wait = TimeUnit.MILLISECONDS.convert(head.deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		return Math.max(1, wait);
+
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.cloudian.analytics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A minimal UDP echo service for UdpEchoPollingStrategy.
+ * This can be run on a target host that has no echo service, and is also used in tests on a loopback.
+ *
+ * java -cp .:./*:./htm/* com.cloudian.analytics.UdpEchoResponder [port]
+ *
+ */
+public class UdpEchoResponder implements Runnable {
+
+	private static final Logger logger = LogManager.getLogger(UdpEchoResponder.class);
+
+	private final DatagramChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+	private volatile boolean dropping = false;
+
+	public UdpEchoResponder(InetSocketAddress address) throws IOException {
+		this.channel = DatagramChannel.open();
+		this.channel.bind(address);
+	}
+
+	public int getPort() {
+		return this.channel.socket().getLocalPort();
+	}
+
+	/**
+	 * @param dropping if true, received datagrams are not echoed back
+	 */
+	void setDropping(boolean dropping) {
+		this.dropping = dropping;
+	}
+
+	Thread start() {
+		Thread thread = new Thread(this, "sonar-udp-echo-responder");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	@Override
+	public void run() {
+
+		logger.debug("echo responder started on " + this.getPort());
+
+		try {
+
+			while (true) {
+
+				this.buffer.clear();
+				SocketAddress from = this.channel.receive(this.buffer);
+				if (this.dropping) {
+					continue;
+				}
+				this.buffer.flip();
+				this.channel.send(this.buffer, from);
+
+			}
+
+		} catch (ClosedChannelException e) {
+			logger.debug("echo responder closed");
+		} catch (IOException e) {
+			logger.error("echo responder failed", e);
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : UdpEchoPollingStrategy.DEFAULT_PORT;
+		new UdpEchoResponder(new InetSocketAddress(port)).run();
+
+	}
+
+}
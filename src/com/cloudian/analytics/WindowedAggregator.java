@@ -0,0 +1,199 @@
+package com.cloudian.analytics;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+/**
+ * WindowedAggregator reduces the durations of finished jobs of each host over windows,
+ * and gives the result of every window to its listeners, so a window is computed once however many consume it.
+ *
+ * A window is either of a number of jobs, or of a time span in milli seconds aligned to the epoch.
+ * A window slides by slide, which is the same as size for tumbling windows, and size must be a multiple of slide.
+ * A sliding window is kept as size / slide panes of reducers, which are merged at the end of each slide.
+ * 1. a window of jobs ends at the last job of a slide, and is timestamped by it
+ * 2. a window of time is timestamped by its end, and ends at the first job after that. A window without jobs is skipped
+ *
+ * The state of a host is allocated once, and updated without allocation.
+ * This is not thread-safe, and is called by a single handler thread.
+ *
+ */
+public class WindowedAggregator implements PollingUpdateHandler {
+
+	public enum Unit {
+		COUNT, MILLIS
+	}
+
+	public interface WindowListener {
+
+		/**
+		 * @param end the end of a window in milli seconds
+		 * @param value the reduced duration in nano seconds
+		 */
+		void onWindow(int hostId, InetAddress host, long end, double value);
+
+	}
+
+	static final long DEFAULT_SIZE = 30;
+	static final String DEFAULT_REDUCER = "max";
+
+	private final Unit unit;
+	private final long slide;
+	private final int panes;
+	private final Supplier<Reducer> reducer;
+	// the current time in milli seconds
+	private final LongSupplier clock;
+	private final HostRegistry registry = HostRegistry.getDefault();
+	// by host id
+	private final HostTable<HostWindow> windows = new HostTable<HostWindow>();
+	private volatile WindowListener[] listeners = new WindowListener[0];
+
+	public WindowedAggregator(Unit unit, long size, long slide, Supplier<Reducer> reducer) {
+		this(unit, size, slide, reducer, System::currentTimeMillis);
+	}
+
+	WindowedAggregator(Unit unit, long size, long slide, Supplier<Reducer> reducer, LongSupplier clock) {
+
+		if (slide <= 0 || size % slide != 0) {
+			throw new IllegalArgumentException("size " + size + " is not a multiple of slide " + slide);
+		}
+
+		this.unit = unit;
+		this.slide = slide;
+		this.panes = (int) (size / slide);
+		this.reducer = reducer;
+		this.clock = clock;
+
+	}
+
+	/**
+	 * Adds a listener, which must be done before updates.
+	 */
+	public synchronized void subscribe(WindowListener listener) {
+
+		WindowListener[] listeners = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		this.listeners = listeners;
+
+	}
+
+	@Override
+	public void updateStatus(PollingEvent event) {
+
+		PollingStatus pollingStatus = event.pollingStatus();
+
+		if (!pollingStatus.status.equals(Status.FINISHED)) {
+			return;
+		}
+
+		int hostId = this.registry.id(event);
+		HostWindow window = this.windows.get(hostId);
+		if (window == null) {
+			window = new HostWindow(this.panes, this.reducer);
+			this.windows.set(hostId, window);
+		}
+
+		long now = this.clock.getAsLong();
+		long duration = pollingStatus.duration();
+
+		if (this.unit == Unit.MILLIS) {
+
+			if (window.paneEnd == 0) {
+				window.paneEnd = (now / this.slide + 1) * this.slide;
+			}
+
+			// every slide elapsed ends a window, but no more than the panes are emptied
+			for (int i = 0; now >= window.paneEnd && i < this.panes; i++) {
+				this.emit(hostId, event.host(), window, window.paneEnd);
+				window.advance();
+				window.paneEnd += this.slide;
+			}
+			if (now >= window.paneEnd) {
+				window.paneEnd = (now / this.slide + 1) * this.slide;
+			}
+
+			window.add(duration);
+
+		} else {
+
+			window.add(duration);
+
+			if (window.counts[window.current] == this.slide) {
+				this.emit(hostId, event.host(), window, now);
+				window.advance();
+			}
+
+		}
+
+	}
+
+	private void emit(int hostId, InetAddress host, HostWindow window, long end) {
+
+		if (!window.merge()) {
+			return;
+		}
+
+		double value = window.merged.result();
+		for (WindowListener listener : this.listeners) {
+			listener.onWindow(hostId, host, end, value);
+		}
+
+	}
+
+	static class HostWindow {
+
+		final Reducer[] panes;
+		final long[] counts;
+		final Reducer merged;
+		int current = 0;
+		// the end of the current pane in milli seconds, for windows of time
+		long paneEnd = 0;
+
+		HostWindow(int panes, Supplier<Reducer> reducer) {
+
+			this.panes = new Reducer[panes];
+			for (int i = 0; i < panes; i++) {
+				this.panes[i] = reducer.get();
+			}
+			this.counts = new long[panes];
+			this.merged = reducer.get();
+
+		}
+
+		void add(long value) {
+			this.panes[this.current].add(value);
+			this.counts[this.current]++;
+		}
+
+		/**
+		 * @return false if there is nothing in the window
+		 */
+		boolean merge() {
+
+			this.merged.reset();
+			long count = 0;
+			for (int i = 0; i < this.panes.length; i++) {
+				if (this.counts[i] > 0) {
+					this.merged.merge(this.panes[i]);
+					count += this.counts[i];
+				}
+			}
+			return count > 0;
+
+		}
+
+		/**
+		 * Starts a next pane in place of the oldest one.
+		 */
+		void advance() {
+			this.current = (this.current + 1) % this.panes.length;
+			this.panes[this.current].reset();
+			this.counts[this.current] = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class AdaptiveRateControllerTest {
+
+	private File directory;
+	private ProbeEngine engine;
+	private SimulatedPollingStrategy strategy;
+	private PollingScheduler scheduler;
+	private FailureDetectorUpdateHandler failureDetector;
+	private HealthTable health;
+	private HostRegistry registry = HostRegistry.getDefault();
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = Files.createTempDirectory("sonar-adaptive").toFile();
+		this.engine = ProbeEngine.createPlatformEngine(2, 1000);
+		// polls go nowhere, and the scores are given by tests
+		this.strategy = new SimulatedPollingStrategy(new PollingUpdateHandler[0], this.engine,
+				SimulatedPollingStrategy.Latency.constant(TimeUnit.MILLISECONDS.toNanos(1)), 100);
+		this.scheduler = new PollingScheduler(this.strategy);
+		this.failureDetector = new FailureDetectorUpdateHandler(new CSVSink(this.directory, "fd", CSVSink.MAX_FILE_SIZE));
+		this.health = new HealthTable(8, 0.5, 0);
+	}
+
+	@After
+	public void tearDown() {
+		this.scheduler.stop();
+		this.strategy.shutdown();
+		this.engine.shutdown();
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+
+	@Test
+	public void testBackoffAndAlert() throws Exception {
+
+		InetAddress host = this.host("adaptive-single");
+		int hostId = this.registry.register(host);
+		AdaptiveRateController controller = new AdaptiveRateController(this.scheduler, this.registry, this.failureDetector, this.health, 1000, 8);
+
+		// slowed down gradually while quiet
+		this.sample(hostId, 1000000, 0.3, 0.1);
+		controller.adjust();
+		long interval = controller.getInterval(host);
+		assertTrue(String.valueOf(interval), interval > 100 && interval < 200);
+		for (int i = 0; i < 20; i++) {
+			this.sample(hostId, 1000000, 0.3, 0.1);
+			controller.adjust();
+		}
+		assertEquals(800, controller.getInterval(host));
+		assertEquals(800, this.scheduler.getInterval(host));
+		assertEquals(100, this.scheduler.getBaseInterval(host));
+
+		// at once on a high PHI
+		this.sample(hostId, 1000000, 5, 0.1);
+		controller.adjust();
+		assertEquals(100, this.scheduler.getInterval(host));
+
+		// kept between quiet and alerted
+		for (int i = 0; i < 5; i++) {
+			this.sample(hostId, 1000000, 1.5, 0.1);
+			controller.adjust();
+		}
+		assertEquals(100, this.scheduler.getInterval(host));
+
+		// at once on a high anomaly score
+		for (int i = 0; i < 10; i++) {
+			this.sample(hostId, 1000000, 0.3, 0.1);
+			controller.adjust();
+		}
+		assertTrue(this.scheduler.getInterval(host) > 100);
+		this.sample(hostId, 1000000, 0.3, 0.9);
+		controller.adjust();
+		assertEquals(100, this.scheduler.getInterval(host));
+
+		// at once on latencies 10 standard deviations away, even with a low PHI
+		for (int i = 0; i < 10; i++) {
+			this.sample(hostId, 1000000, 0.3, 0.1);
+			controller.adjust();
+		}
+		assertTrue(this.scheduler.getInterval(host) > 100);
+		this.sample(hostId, 2000000, 0.3, 0.1);
+		controller.adjust();
+		assertEquals(100, this.scheduler.getInterval(host));
+
+		String text = new String(controller.toText(), StandardCharsets.UTF_8);
+		assertTrue(text, text.contains("adaptive-single, 100, 100, 10.0, 0.3, 0.1, "));
+		assertTrue(text, text.contains(", alerted\n"));
+
+	}
+
+	@Test
+	public void testBudget() throws Exception {
+
+		InetAddress[] hosts = new InetAddress[50];
+		for (int i = 0; i < hosts.length; i++) {
+			hosts[i] = this.host("adaptive-" + i);
+		}
+		// 500 probes per second on their base intervals
+		AdaptiveRateController controller = new AdaptiveRateController(this.scheduler, this.registry, this.failureDetector, this.health, 100, 8);
+
+		this.sample(this.registry.register(hosts[0]), 1000000, 5, 0.9);
+		for (int i = 1; i < hosts.length; i++) {
+			this.sample(this.registry.register(hosts[i]), 1000000, 1.5, 0.1);
+		}
+		controller.adjust();
+
+		// the alerted one first, and the others in proportion
+		assertEquals(100, this.scheduler.getInterval(hosts[0]));
+		long others = Math.round(100 / (90.0 / 490));
+		for (int i = 1; i < hosts.length; i++) {
+			assertEquals(others, this.scheduler.getInterval(hosts[i]), 1);
+		}
+		assertEquals(100, controller.getTotalRate(), 1);
+
+		// never scheduled again once unscheduled
+		this.scheduler.unschedule(hosts[1]);
+		controller.adjust();
+		assertEquals(-1, this.scheduler.getInterval(hosts[1]));
+		assertEquals(-1, controller.getInterval(hosts[1]));
+
+	}
+
+	private InetAddress host(String name) throws Exception {
+
+		InetAddress host = HostRegistry.localAddress(name);
+		this.scheduler.schedule(host, 100);
+		// a mean of 1 ms with a standard deviation of 0.1 ms
+		long[] samples = new long[100];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = i % 2 == 0 ? 900000 : 1100000;
+		}
+		this.failureDetector.restore(this.registry.register(host), samples);
+
+		return host;
+
+	}
+
+	/**
+	 * A new sample of a host as the detectors write it.
+	 */
+	private void sample(int hostId, long duration, double phi, double anomaly) throws InterruptedException {
+
+		// a different time from the last
+		Thread.sleep(2);
+		this.health.updatePhi(hostId, Status.FINISHED, duration, phi);
+		this.health.updateAnomaly(hostId, anomaly);
+
+	}
+
+}
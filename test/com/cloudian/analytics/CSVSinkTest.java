@@ -0,0 +1,136 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CSVSinkTest {
+	
+	private File directory;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.directory = Files.createTempDirectory("sonar-csv").toFile();
+	}
+	
+	@After
+	public void tearDown() {
+		delete(this.directory);
+	}
+	
+	@Test
+	public void testSameAsDecimalFormat() throws Exception {
+		
+		CSVSink sink = new CSVSink(this.directory, "test", CSVSink.MAX_FILE_SIZE);
+		DecimalFormat two = new DecimalFormat("#.##");
+		DecimalFormat three = new DecimalFormat("#.###");
+		Random random = new Random(1);
+		
+		StringBuilder expected = new StringBuilder();
+		synchronized (sink) {
+			for (int i = 0; i < 1000; i++) {
+				double value = (random.nextDouble() - 0.2) * Math.pow(10, random.nextInt(6));
+				sink.begin().append(value, 2).delim().append(value, 3).end();
+				expected.append(two.format(value)).append(CSVUpdateHandler.DELIM).append(three.format(value)).append('\n');
+			}
+		}
+		sink.close();
+		
+		StringBuilder actual = new StringBuilder();
+		for (String line : Files.readAllLines(new File(this.directory, "test.csv").toPath(), StandardCharsets.UTF_8)) {
+			// the same timestamp as %d{ISO8601} of log4j
+			assertTrue(line, line.matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2},\\d{3}, .*"));
+			actual.append(line.substring(25)).append('\n');
+		}
+		
+		assertEquals(expected.toString().replace("-0,", "0,").replace("-0\n", "0\n"), actual.toString());
+		
+	}
+	
+	@Test
+	public void testRollOverBySize() throws Exception {
+		
+		CSVSink sink = new CSVSink(this.directory, "test", 10000);
+		for (int i = 0; i < 2000; i++) {
+			synchronized (sink) {
+				sink.begin().append("host").delim().append(i).end();
+			}
+			if (i % 100 == 0) {
+				sink.flush();
+			}
+		}
+		sink.close();
+		
+		File[] months = this.directory.listFiles(File::isDirectory);
+		assertEquals(1, months.length);
+		
+		// wait for compression in the background
+		long deadline = System.currentTimeMillis() + 5000;
+		while (months[0].list((dir, name) -> name.endsWith(CSVSink.SUFFIX)).length > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+		String[] archives = months[0].list();
+		assertTrue(archives.length > 2);
+		for (String archive : archives) {
+			assertTrue(archive, archive.matches("test-\\d{2}-\\d{2}-\\d{4}-\\d+\\.csv\\.gz"));
+		}
+		
+		// nothing is lost in the current file
+		List<String> lines = Files.readAllLines(new File(this.directory, "test.csv").toPath(), StandardCharsets.UTF_8);
+		assertTrue(lines.get(lines.size() - 1).endsWith("host, 1999"));
+		
+	}
+	
+	@Test
+	public void testNoAllocationPerRecord() throws Exception {
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		CSVSink sink = new CSVSink(this.directory, "test", CSVSink.MAX_FILE_SIZE);
+		String host = "cloudian-node1";
+		
+		for (int round = 0; round < 2; round++) {
+			
+			long allocated = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < 100000; i++) {
+				synchronized (sink) {
+					sink.begin().append(host).delim().append("FINISHED").delim().append(123456789L + i).delim().append(i / 1000.0, 2).end();
+				}
+			}
+			allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+			
+			if (round > 0) {
+				// only once a minute, not per record
+				assertTrue(allocated + " bytes allocated", allocated < 100000);
+			}
+			
+		}
+		
+		sink.close();
+		
+	}
+	
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
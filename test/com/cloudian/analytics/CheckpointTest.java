@@ -0,0 +1,106 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CheckpointTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = Files.createTempDirectory("sonar-checkpoint").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+
+	@Test
+	public void testSaveAndRestore() throws Exception {
+
+		HostRegistry registry = HostRegistry.getDefault();
+		InetAddress named = InetAddress.getByAddress("checkpoint-test", new byte[]{10, 0, 0, 1});
+		InetAddress unnamed = InetAddress.getByAddress(new byte[]{10, 0, 0, 2});
+		int first = registry.register(named);
+		int second = registry.register(unnamed);
+
+		CSVSink sink = new CSVSink(this.directory, "htm", CSVSink.MAX_FILE_SIZE);
+		FailureDetectorUpdateHandler failureDetector = new FailureDetectorUpdateHandler(sink);
+		HTMAnomalyDetector anomalyDetector = new HTMAnomalyDetector(sink, 100, new HTMModelManager(this.directory, Long.MAX_VALUE), new HTMComputePool(1, HTMComputePool.DEFAULT_QUEUE_SIZE));
+
+		long[] samples = {1000000, 2000000, 3000000};
+		failureDetector.restore(first, samples);
+		failureDetector.restore(second, new long[]{4000000});
+
+		HTMHistory history = new HTMHistory(100);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 40; i++) {
+			history.add(now - (40 - i) * 30000L, 2.0f + (i % 4) * 0.1f);
+		}
+		anomalyDetector.restore(first, named, history);
+
+		File file = new File(this.directory, "checkpoint");
+		assertEquals(2, new Checkpoint(file, failureDetector, anomalyDetector).save());
+		assertFalse(new File(this.directory, "checkpoint.tmp").exists());
+
+		FailureDetectorUpdateHandler restoredDetector = new FailureDetectorUpdateHandler(sink);
+		HTMAnomalyDetector restoredAnomalyDetector = new HTMAnomalyDetector(sink, 100, new HTMModelManager(this.directory, Long.MAX_VALUE), new HTMComputePool(1, HTMComputePool.DEFAULT_QUEUE_SIZE));
+		assertEquals(2, new Checkpoint(file, restoredDetector, restoredAnomalyDetector).restore());
+
+		assertArrayEquals(samples, restoredDetector.getSamples(first));
+		assertArrayEquals(new long[]{4000000}, restoredDetector.getSamples(second));
+		assertEquals(2, restoredDetector.getMean(first));
+
+		HTMHistory restored = restoredAnomalyDetector.getHistory(first);
+		assertEquals(history.size(), restored.size());
+		for (int i = 0; i < history.size(); i++) {
+			assertEquals(history.getTime(i), restored.getTime(i));
+			assertEquals(history.getValue(i), restored.getValue(i), 0);
+		}
+		assertNull(restoredAnomalyDetector.getHistory(second));
+
+		// replayed inputs are learned, but not written again
+		long deadline = System.currentTimeMillis() + 30000;
+		while (Double.isNaN(restoredAnomalyDetector.getAnomalyScore(first)) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(Double.isNaN(restoredAnomalyDetector.getAnomalyScore(first)));
+		sink.close();
+		File csv = new File(this.directory, "htm.csv");
+		assertEquals(0, csv.exists() ? csv.length() : 0);
+
+	}
+
+	@Test
+	public void testHistoryKeepsTheLatest() {
+
+		HTMHistory history = new HTMHistory(3);
+		for (int i = 0; i < 5; i++) {
+			history.add(i, i);
+		}
+
+		assertEquals(3, history.size());
+		HTMHistory copy = history.copy();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i + 2, copy.getTime(i));
+			assertEquals(i + 2, copy.getValue(i), 0);
+		}
+
+	}
+
+}
@@ -11,11 +11,13 @@ public class HTMAnomalyDetectorTest {
 	public void testSimple() throws UnknownHostException {
 		
 		HTMAnomalyDetector detector = new HTMAnomalyDetector();
+		WindowedAggregator aggregator = new WindowedAggregator(WindowedAggregator.Unit.COUNT, 30, 30, Reducer.of("max"));
+		aggregator.subscribe(detector);
 		InetAddress local = InetAddress.getLocalHost();
 		
 		for (int i=0; i<100; i++) {
 			PollingJob job = new SimplePingPollingJob(local);
-			job.start();
+			new Thread(job).start();
 			
 			while(!job.pollingStatus.isStopped()) {
 				try {
@@ -26,7 +28,7 @@ public class HTMAnomalyDetectorTest {
 				}
 			}
 			
-			detector.updateStatus(job);
+			aggregator.updateStatus(job);
 		}
 		
 	}
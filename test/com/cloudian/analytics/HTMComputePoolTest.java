@@ -0,0 +1,98 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HTMComputePoolTest {
+
+	@Test
+	public void testLatestWins() {
+
+		HTMComputePool.InputQueue queue = new HTMComputePool.InputQueue(3);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.offer(i, i));
+		}
+		// the oldest two are dropped
+		assertFalse(queue.offer(3, 3));
+		assertFalse(queue.offer(4, 4));
+		assertEquals(3, queue.size());
+
+		for (int i = 2; i < 5; i++) {
+			assertTrue(queue.poll());
+			assertEquals(i, queue.time);
+			assertEquals(i, queue.value, 0);
+			assertTrue(queue.queuedAt <= System.nanoTime());
+		}
+		assertFalse(queue.poll());
+
+		assertTrue(queue.offer(5, 5));
+		assertTrue(queue.poll());
+		assertEquals(5, queue.time);
+
+	}
+
+	@Test
+	public void testReplayInChunks() throws Exception {
+
+		File directory = Files.createTempDirectory("sonar-pool").toFile();
+		InetAddress address = HostRegistry.localAddress("pool-replay");
+		int hostId = HostRegistry.getDefault().register(address);
+
+		// networks are run only when the test runs them
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		HTMComputePool pool = new HTMComputePool(tasks::add, 16, System::currentTimeMillis);
+		CSVSink sink = new CSVSink(directory, "htm", CSVSink.MAX_FILE_SIZE);
+		HTMAnomalyDetector detector = new HTMAnomalyDetector(sink, 100, new HTMModelManager(directory, Long.MAX_VALUE), pool);
+
+		try {
+
+			HTMHistory history = new HTMHistory(100);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < 40; i++) {
+				history.add(now - (40 - i) * 30000L, 2.0f + (i % 4) * 0.1f);
+			}
+			detector.restore(hostId, address, history);
+			detector.onWindow(hostId, address, now, 1000000);
+			assertEquals(1, tasks.size());
+
+			// 16, 16 and the last 8 of the replay before the input queued
+			for (int run = 0; run < 2; run++) {
+				run(tasks);
+				assertEquals(1, tasks.size());
+				assertEquals(-1, detector.getInferenceLag(hostId));
+			}
+			run(tasks);
+			assertEquals(0, tasks.size());
+			assertEquals(41, detector.getHistory(hostId).size());
+			assertTrue(detector.getInferenceLag(hostId) >= 0);
+
+		} finally {
+			sink.close();
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+
+	}
+
+	private static void run(List<Runnable> tasks) {
+
+		List<Runnable> queued = new ArrayList<Runnable>(tasks);
+		tasks.clear();
+		for (Runnable task : queued) {
+			task.run();
+		}
+
+	}
+
+}
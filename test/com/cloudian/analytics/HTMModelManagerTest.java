@@ -0,0 +1,195 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HTMModelManagerTest {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = Files.createTempDirectory("sonar-hibernate").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+
+	@Test
+	public void testHibernateLeastRecentlyUpdated() throws Exception {
+
+		HostRegistry registry = HostRegistry.getDefault();
+		InetAddress[] addresses = new InetAddress[3];
+		int[] ids = new int[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = InetAddress.getByAddress("hibernate-test-" + i, new byte[]{10, 0, 1, (byte) i});
+			ids[i] = registry.register(addresses[i]);
+		}
+
+		// room for two new networks
+		HTMModelManager manager = new HTMModelManager(this.directory, HTMModelManager.NETWORK_BASE_BYTES * 5 / 2);
+		CSVSink sink = new CSVSink(this.directory, "htm", CSVSink.MAX_FILE_SIZE);
+		HTMAnomalyDetector detector = new HTMAnomalyDetector(sink, 100, manager, new HTMComputePool(1, HTMComputePool.DEFAULT_QUEUE_SIZE));
+
+		for (int i = 0; i < addresses.length; i++) {
+			HTMHistory history = new HTMHistory(10);
+			history.add(System.currentTimeMillis(), i);
+			detector.restore(ids[i], addresses[i], history);
+			// a network replaying is not hibernated
+			awaitIdle(manager.get(ids[i]));
+		}
+
+		assertEquals(2, manager.getResidentCount());
+		assertEquals(1, manager.getHibernatedCount());
+		assertTrue(manager.isHibernated(ids[0]));
+		assertNull(manager.get(ids[0]));
+		assertTrue(Double.isNaN(detector.getAnomalyScore(ids[0])));
+		assertTrue(manager.getFootprint() >= HTMModelManager.NETWORK_BASE_BYTES * 2);
+
+		// still saved while hibernated
+		HTMHistory hibernated = detector.getHistory(ids[0]);
+		assertEquals(1, hibernated.size());
+		assertEquals(0, hibernated.getValue(0), 0);
+
+		// woken up by an update, which hibernates the least recently updated one
+		detector.onWindow(ids[0], addresses[0], System.currentTimeMillis(), 1000000);
+
+		assertFalse(manager.isHibernated(ids[0]));
+		assertNotNull(manager.get(ids[0]));
+		// the new input is computed on the pool, and its lag set after it is added to the history
+		long deadline = System.currentTimeMillis() + 30000;
+		while ((detector.getHistory(ids[0]).size() < 2 || detector.getInferenceLag(ids[0]) < 0) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, detector.getHistory(ids[0]).size());
+		assertTrue(detector.getInferenceLag(ids[0]) >= 0);
+		assertTrue(manager.isHibernated(ids[1]));
+		assertEquals(2, manager.getResidentCount());
+		assertEquals(1, manager.getHibernatedCount());
+
+		sink.close();
+
+	}
+
+	@Test
+	public void testNotHibernatedWhileQueued() throws Exception {
+
+		HostRegistry registry = HostRegistry.getDefault();
+		InetAddress[] addresses = new InetAddress[4];
+		int[] ids = new int[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = HostRegistry.localAddress("hibernate-queued-" + i);
+			ids[i] = registry.register(addresses[i]);
+		}
+
+		// networks are run only when the test runs them
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		HTMComputePool pool = new HTMComputePool(tasks::add, HTMComputePool.DEFAULT_QUEUE_SIZE, System::currentTimeMillis);
+		HTMModelManager manager = new HTMModelManager(this.directory, HTMModelManager.NETWORK_BASE_BYTES * 5 / 2);
+		CSVSink sink = new CSVSink(this.directory, "htm", CSVSink.MAX_FILE_SIZE);
+		HTMAnomalyDetector detector = new HTMAnomalyDetector(sink, 100, manager, pool);
+
+		// over the budget with the first two queued
+		for (int i = 0; i < 3; i++) {
+			detector.onWindow(ids[i], addresses[i], System.currentTimeMillis(), 1000000);
+		}
+		assertEquals(3, manager.getResidentCount());
+		assertEquals(0, manager.getHibernatedCount());
+		assertEquals(3, tasks.size());
+
+		for (Runnable task : tasks) {
+			task.run();
+		}
+		tasks.clear();
+
+		// idle now, and hibernated with the input computed
+		detector.onWindow(ids[3], addresses[3], System.currentTimeMillis(), 1000000);
+		assertTrue(manager.isHibernated(ids[0]));
+		assertTrue(manager.isHibernated(ids[1]));
+		assertEquals(2, manager.getResidentCount());
+		assertEquals(1, detector.getHistory(ids[0]).size());
+		assertEquals(1, tasks.size());
+
+		sink.close();
+
+	}
+
+	@Test
+	public void testReplaceAndRemove() throws Exception {
+
+		InetAddress address = HostRegistry.localAddress("hibernate-replaced");
+		int hostId = HostRegistry.getDefault().register(address);
+
+		HTMModelManager manager = new HTMModelManager(this.directory, Long.MAX_VALUE);
+		CSVSink sink = new CSVSink(this.directory, "htm", CSVSink.MAX_FILE_SIZE);
+		HTMComputePool pool = new HTMComputePool(1, HTMComputePool.DEFAULT_QUEUE_SIZE);
+		HTMAnomalyDetector detector = new HTMAnomalyDetector(sink, 100, manager, pool);
+
+		try {
+
+			for (int i = 0; i < 5; i++) {
+				detector.onWindow(hostId, address, System.currentTimeMillis(), 1000000);
+			}
+			HTM replaced = manager.get(hostId);
+
+			// e.g. handed over while inputs are queued
+			HTMHistory history = new HTMHistory(100);
+			for (int i = 0; i < 10; i++) {
+				history.add(System.currentTimeMillis() - (10 - i) * 30000L, 2.0f);
+			}
+			HTM restored = detector.restore(hostId, address, history);
+
+			// the one replaced is off the pool for good
+			assertTrue(replaced != restored);
+			assertTrue(restored == manager.get(hostId));
+			assertTrue(replaced.scheduled.get());
+			assertEquals(1, manager.getResidentCount());
+			// an update of the host goes to the new one
+			detector.onWindow(hostId, address, System.currentTimeMillis(), 1000000);
+			assertTrue(restored == manager.get(hostId));
+			long deadline = System.currentTimeMillis() + 30000;
+			while (restored.lag < 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(11, detector.getHistory(hostId).size());
+
+			detector.remove(hostId);
+			assertNull(manager.get(hostId));
+			assertNull(detector.getHistory(hostId));
+			assertEquals(0, manager.getResidentCount());
+
+		} finally {
+			sink.close();
+			pool.shutdown();
+		}
+
+	}
+
+	private static void awaitIdle(HTM htm) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + 30000;
+		while (htm.scheduled.get() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+	}
+
+}
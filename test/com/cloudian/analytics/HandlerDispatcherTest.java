@@ -0,0 +1,187 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.cloudian.analytics.HandlerDispatcher.OverflowPolicy;
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class HandlerDispatcherTest {
+	
+	@Test
+	public void testBlock() throws Exception {
+		
+		final int perProducer = 50000;
+		CountingHandler handler = new CountingHandler();
+		final HandlerDispatcher dispatcher = new HandlerDispatcher(new PollingUpdateHandler[]{handler}, new OverflowPolicy[]{OverflowPolicy.BLOCK}, 64);
+		
+		try {
+			
+			Thread[] producers = new Thread[2];
+			for (int p = 0; p < producers.length; p++) {
+				final PollingJob job = stoppedJob(p);
+				producers[p] = new Thread() {
+					@Override
+					public void run() {
+						for (int i = 0; i < perProducer; i++) {
+							dispatcher.updateStatus(job);
+						}
+					}
+				};
+				producers[p].start();
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			
+			awaitProcessed(dispatcher, 0, perProducer * producers.length);
+			
+			// nothing is lost
+			assertEquals(perProducer * producers.length, handler.count.get());
+			assertEquals(0, dispatcher.getDropped(0));
+			assertEquals(0, dispatcher.getLag(0));
+			
+		} finally {
+			dispatcher.stop();
+		}
+		
+	}
+	
+	@Test
+	public void testSlowHandlerDoesNotBlockProbes() throws Exception {
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		PollingUpdateHandler slow = new PollingUpdateHandler() {
+			@Override
+			public void updateStatus(PollingEvent event) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		};
+		CountingHandler fast = new CountingHandler();
+		
+		HandlerDispatcher dispatcher = new HandlerDispatcher(new PollingUpdateHandler[]{slow, fast},
+				new OverflowPolicy[]{OverflowPolicy.DROP_OLDEST, OverflowPolicy.DROP_OLDEST}, 16);
+		
+		try {
+			
+			PollingJob job = stoppedJob(1);
+			long started = System.nanoTime();
+			for (int i = 0; i < 1000; i++) {
+				dispatcher.updateStatus(job);
+			}
+			long elapsed = System.nanoTime() - started;
+			
+			// publishing does not wait for the slow handler
+			assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(500));
+			assertTrue(dispatcher.getLag(0) > 16);
+			
+			release.countDown();
+			awaitProcessed(dispatcher, 0, 1);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (dispatcher.getLag(0) > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			
+			assertTrue(dispatcher.getDropped(0) > 0);
+			assertEquals(1000, dispatcher.getProcessed(0) + dispatcher.getDropped(0));
+			
+		} finally {
+			dispatcher.stop();
+		}
+		
+	}
+	
+	@Test
+	public void testSnapshot() throws Exception {
+		
+		final PollingEvent[] seen = new PollingEvent[1];
+		final long[] durations = new long[2];
+		final CountDownLatch latch = new CountDownLatch(2);
+		PollingUpdateHandler handler = new PollingUpdateHandler() {
+			int index = 0;
+			@Override
+			public void updateStatus(PollingEvent event) {
+				seen[0] = event;
+				durations[this.index++] = event.pollingStatus().isStopped() ? event.pollingStatus().duration() : -2;
+				latch.countDown();
+			}
+		};
+		
+		HandlerDispatcher dispatcher = new HandlerDispatcher(new PollingUpdateHandler[]{handler}, new OverflowPolicy[]{OverflowPolicy.BLOCK}, 16);
+		
+		try {
+			
+			PollingJob job = new PollingJob(InetAddress.getByAddress("host", new byte[]{10, 0, 0, 1})) {
+				@Override
+				public void run() {
+					this.started();
+				}
+			};
+			job.run();
+			dispatcher.updateStatus(job);
+			Thread.sleep(5);
+			job.finished();
+			dispatcher.updateStatus(job);
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			
+			// an in-flight update, then the final one
+			assertEquals(-2, durations[0]);
+			assertEquals(job.pollingStatus.duration(), durations[1]);
+			assertEquals(job.host, seen[0].host());
+			assertEquals(Status.FINISHED, seen[0].pollingStatus().status);
+			// a snapshot, which is not the job
+			assertTrue(seen[0] instanceof PollingSnapshot);
+			
+		} finally {
+			dispatcher.stop();
+		}
+		
+	}
+	
+	private static void awaitProcessed(HandlerDispatcher dispatcher, int index, long count) throws InterruptedException {
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dispatcher.getProcessed(index) < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+	}
+	
+	private static PollingJob stoppedJob(int index) throws Exception {
+		
+		PollingJob job = new PollingJob(InetAddress.getByAddress("host" + index, new byte[]{10, 0, 0, (byte) index})) {
+			@Override
+			public void run() {
+				this.started();
+				this.finished();
+			}
+		};
+		job.run();
+		return job;
+		
+	}
+	
+	static class CountingHandler implements PollingUpdateHandler {
+		
+		final AtomicLong count = new AtomicLong();
+		
+		@Override
+		public void updateStatus(PollingEvent event) {
+			this.count.incrementAndGet();
+		}
+		
+	}
+
+}
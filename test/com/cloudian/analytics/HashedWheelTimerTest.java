@@ -0,0 +1,65 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.cloudian.analytics.HashedWheelTimer.Timeout;
+import com.cloudian.analytics.HashedWheelTimer.TimerTask;
+
+public class HashedWheelTimerTest {
+	
+	@Test
+	public void testTimeouts() throws Exception {
+		
+		// 8 buckets of 10 milli sec, so 300 milli sec takes several rounds
+		HashedWheelTimer timer = new HashedWheelTimer("test", 10, TimeUnit.MILLISECONDS, 8);
+		
+		try {
+			
+			final CountDownLatch latch = new CountDownLatch(3);
+			final long[] fired = new long[3];
+			final long started = System.nanoTime();
+			long[] delays = {0, 50, 300};
+			
+			for (int i = 0; i < delays.length; i++) {
+				final int index = i;
+				timer.newTimeout(new TimerTask() {
+					@Override
+					public void run(Timeout timeout) {
+						fired[index] = System.nanoTime() - started;
+						latch.countDown();
+					}
+				}, delays[i], TimeUnit.MILLISECONDS);
+			}
+			
+			final AtomicInteger cancelled = new AtomicInteger();
+			timer.newTimeout(new TimerTask() {
+				@Override
+				public void run(Timeout timeout) {
+					cancelled.incrementAndGet();
+				}
+			}, 100, TimeUnit.MILLISECONDS).cancel();
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			
+			for (int i = 0; i < delays.length; i++) {
+				long delay = TimeUnit.MILLISECONDS.toNanos(delays[i]);
+				// never early, and late by a tick or so
+				assertTrue(fired[i] >= delay);
+				assertTrue(fired[i] < delay + TimeUnit.MILLISECONDS.toNanos(100));
+			}
+			assertEquals(0, cancelled.get());
+			
+		} finally {
+			timer.stop();
+		}
+		
+	}
+
+}
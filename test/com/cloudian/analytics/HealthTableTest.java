@@ -0,0 +1,141 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class HealthTableTest {
+
+	@Test
+	public void testVerdictAndSnapshots() throws Exception {
+
+		HostRegistry registry = HostRegistry.getDefault();
+		int both = registry.register(HostRegistry.localAddress("health-both"));
+		int phiOnly = registry.register(HostRegistry.localAddress("health-phi"));
+		int anomalyOnly = registry.register(HostRegistry.localAddress("health-anomaly"));
+
+		HealthTable table = new HealthTable(8, 0.5, 0);
+		table.updatePhi(both, Status.FINISHED, 5000000, 9.5);
+		table.updateAnomaly(both, 0.8);
+		table.updatePhi(phiOnly, Status.FINISHED, 5000000, 12);
+		table.updateAnomaly(phiOnly, 0.1);
+		table.updatePhi(anomalyOnly, Status.FINISHED, 300000, 0.4);
+		table.updateAnomaly(anomalyOnly, 1);
+
+		HealthTable.Snapshot snapshot = table.snapshot();
+		assertEquals(3, snapshot.size());
+		assertEquals(1, snapshot.getAttentionCount());
+		assertTrue(snapshot.get(both).needsAttention);
+		assertFalse(snapshot.get("health-phi").needsAttention);
+		assertFalse(snapshot.get(anomalyOnly).needsAttention);
+		assertEquals(9.5, snapshot.get(both).phi, 0);
+
+		String text = new String(snapshot.toText(), StandardCharsets.UTF_8);
+		assertTrue(text, text.contains("health-both, FINISHED, 5000000, 9.5, 0.8, needs-attention\n"));
+		assertTrue(text, text.contains("health-phi, FINISHED, 5000000, 12.0, 0.1, ok\n"));
+		String attention = new String(snapshot.toAttentionText(), StandardCharsets.UTF_8);
+		assertTrue(attention, attention.contains("health-both"));
+		assertFalse(attention, attention.contains("health-phi"));
+
+		// the same one until something changes
+		assertSame(snapshot, table.snapshot());
+
+		// a published snapshot never changes
+		table.updatePhi(both, Status.FINISHED, 300000, 0.2);
+		assertTrue(snapshot.get(both).needsAttention);
+		HealthTable.Snapshot next = table.snapshot();
+		assertFalse(next.get(both).needsAttention);
+		assertEquals(0, next.getAttentionCount());
+
+		// no more often than the publish interval
+		HealthTable slow = new HealthTable(8, 0.5, 60000);
+		slow.updatePhi(both, Status.FINISHED, 5000000, 9.5);
+		HealthTable.Snapshot first = slow.snapshot();
+		assertEquals(1, first.size());
+		slow.updatePhi(phiOnly, Status.FINISHED, 5000000, 9.5);
+		assertSame(first, slow.snapshot());
+		assertNull(slow.snapshot().get(phiOnly));
+
+	}
+
+	@Test
+	public void testFromDetectorsOverHttp() throws Exception {
+
+		File directory = Files.createTempDirectory("sonar-health").toFile();
+		InetAddress host = HostRegistry.localAddress("health-http");
+		int hostId = HostRegistry.getDefault().register(host);
+
+		FailureDetectorUpdateHandler failureDetector = new FailureDetectorUpdateHandler(new CSVSink(directory, "fd", CSVSink.MAX_FILE_SIZE));
+		for (int i = 0; i < 10; i++) {
+			failureDetector.updateStatus(job(host, 1000000));
+		}
+		// far longer than the others
+		failureDetector.updateStatus(job(host, 100000000));
+		HealthTable.getDefault().updateAnomaly(hostId, 0.9);
+
+		MetricsServer server = new MetricsServer(0, new Metrics());
+		server.serve(CloudSonar.HEALTH_PATH, () -> HealthTable.getDefault().snapshot().toText());
+		server.start();
+		try {
+			// published no more often than the default interval
+			Thread.sleep(HealthTable.DEFAULT_PUBLISH_INTERVAL_IN_MILLIS);
+			String text = get(new URL("http://127.0.0.1:" + server.getPort() + CloudSonar.HEALTH_PATH));
+			HealthTable.Health health = HealthTable.getDefault().snapshot().get(hostId);
+			assertEquals(100000000, health.duration);
+			assertTrue(String.valueOf(health.phi), health.phi > HealthTable.DEFAULT_PHI_THRESHOLD);
+			assertTrue(text, text.contains("health-http, FINISHED, 100000000, "));
+			assertTrue(text, text.contains(", 0.9, needs-attention\n"));
+		} finally {
+			server.stop();
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+
+	}
+
+	private static PollingJob job(InetAddress host, long duration) {
+
+		PollingJob job = new PollingJob(host) {
+			@Override
+			public void run() {
+			}
+		};
+		job.pollingStatus.started = 1;
+		job.pollingStatus.status = Status.FINISHED;
+		job.pollingStatus.stopped = 1 + duration;
+
+		return job;
+
+	}
+
+	private static String get(URL url) throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = url.openStream()) {
+			byte[] buffer = new byte[4096];
+			for (int read; (read = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, read);
+			}
+		}
+
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HostRegistryTest {
+	
+	@Test
+	public void testDenseIds() throws Exception {
+		
+		final HostRegistry registry = new HostRegistry(HostRegistry.DEFAULT_TTL_IN_SECONDS);
+		final InetAddress[] hosts = ProbeEngineScaleTest.hosts(5000);
+		final int[][] ids = new int[4][hosts.length];
+		
+		// registered concurrently, in different orders
+		Thread[] threads = new Thread[ids.length];
+		final CountDownLatch start = new CountDownLatch(1);
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < hosts.length; i++) {
+						int index = thread % 2 == 0 ? i : hosts.length - 1 - i;
+						ids[thread][index] = registry.register(hosts[index]);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(hosts.length, registry.size());
+		
+		BitSet seen = new BitSet();
+		for (int i = 0; i < hosts.length; i++) {
+			for (int t = 1; t < ids.length; t++) {
+				assertEquals(ids[0][i], ids[t][i]);
+			}
+			seen.set(ids[0][i]);
+			assertSame(hosts[i], registry.address(ids[0][i]));
+			// given by name
+			assertEquals("host" + i, registry.name(ids[0][i]));
+		}
+		
+		// from 0 without a gap
+		assertEquals(hosts.length, seen.cardinality());
+		assertEquals(hosts.length, seen.nextClearBit(0));
+		
+		registry.shutdown();
+		
+	}
+	
+	@Test
+	public void testNameIsNotLookedUpByCaller() throws Exception {
+		
+		HostRegistry registry = new HostRegistry(0);
+		
+		// no name is given
+		InetAddress address = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+		int id = registry.register(address);
+		
+		// the address until a reverse lookup is done in the background
+		String name = registry.name(id);
+		assertTrue(name, name.equals("127.0.0.1") || name.equals("localhost"));
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (registry.name(id).equals("127.0.0.1") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}).getHostName(), registry.name(id));
+		
+		registry.shutdown();
+		
+	}
+	
+	@Test
+	public void testHostTable() throws Exception {
+		
+		final HostTable<AtomicInteger> table = new HostTable<AtomicInteger>();
+		assertNull(table.get(0));
+		assertNull(table.get(HostTable.CHUNK_SIZE * 10));
+		
+		// grown by many threads at once, and nothing is lost
+		final int size = HostTable.CHUNK_SIZE * 8;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < size; i++) {
+						table.compareAndSet(i, null, new AtomicInteger());
+						table.get(i).incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(size, table.capacity());
+		for (int i = 0; i < size; i++) {
+			assertEquals(threads.length, table.get(i).get());
+		}
+		
+	}
+
+}
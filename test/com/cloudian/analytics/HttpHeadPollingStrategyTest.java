@@ -0,0 +1,182 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpHeadPollingStrategyTest {
+	
+	private HttpServer server;
+	private ProbeEngine engine;
+	private InetAddress host;
+	private final List<Integer> remotePorts = new CopyOnWriteArrayList<Integer>();
+	private final List<String> hostHeaders = new CopyOnWriteArrayList<String>();
+	
+	@Before
+	public void setUp() throws IOException {
+		
+		this.host = InetAddress.getByAddress("localhost", new byte[]{127, 0, 0, 1});
+		this.server = HttpServer.create(new InetSocketAddress(this.host, 0), 0);
+		this.server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// the server keeps a connection alive only when a request is fully read
+				exchange.getRequestBody().close();
+				remotePorts.add(exchange.getRemoteAddress().getPort());
+				hostHeaders.add(exchange.getRequestHeaders().getFirst("Host"));
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		this.server.createContext("/broken", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getRequestBody().close();
+				exchange.sendResponseHeaders(503, -1);
+				exchange.close();
+			}
+		});
+		this.server.start();
+		
+		this.engine = ProbeEngine.createPlatformEngine(2, 1000);
+		
+	}
+	
+	@After
+	public void tearDown() {
+		
+		this.server.stop(0);
+		this.engine.shutdown();
+		
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		HttpHeadPollingStrategy strategy = new HttpHeadPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine,
+				this.server.getAddress().getPort(), false, "/", 5000);
+		
+		try {
+			
+			for (int i = 1; i <= 5; i++) {
+				strategy.poll(this.host);
+				handler.await(i, 5000);
+				while (strategy.getInFlight() > 0) {
+					Thread.sleep(10);
+				}
+			}
+			
+			assertEquals(5, handler.stopped.size());
+			for (PollingEvent job : handler.stopped) {
+				assertEquals(job.toString(), Status.FINISHED, job.pollingStatus().status);
+				long ttfb = job.pollingStatus().timeToFirstByte();
+				assertTrue(ttfb > 0);
+				assertTrue(ttfb <= job.pollingStatus().duration());
+			}
+			
+			// every request came on the same connection
+			assertEquals(1, strategy.getOpenedConnections());
+			assertEquals(4, strategy.getReusedConnections());
+			assertEquals(5, this.remotePorts.size());
+			for (Integer port : this.remotePorts) {
+				assertEquals(this.remotePorts.get(0), port);
+			}
+			
+			// as the host is given, not looked up
+			HostRegistry registry = HostRegistry.getDefault();
+			String hostHeader = registry.key(registry.register(this.host)) + ":" + this.server.getAddress().getPort();
+			for (String header : this.hostHeaders) {
+				assertEquals(hostHeader, header);
+			}
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testServerError() throws Exception {
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		HttpHeadPollingStrategy strategy = new HttpHeadPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine,
+				this.server.getAddress().getPort(), false, "/broken", 5000);
+		
+		try {
+			
+			strategy.poll(this.host);
+			handler.await(1, 5000);
+			
+			assertEquals(1, handler.stopped.size());
+			assertEquals(Status.ERROR, handler.stopped.get(0).pollingStatus().status);
+			assertTrue(handler.stopped.get(0).pollingStatus().error.contains("503"));
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testStaleConnection() throws Exception {
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		int port = this.server.getAddress().getPort();
+		HttpHeadPollingStrategy strategy = new HttpHeadPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine,
+				port, false, "/", 5000);
+		
+		try {
+			
+			strategy.poll(this.host);
+			handler.await(1, 5000);
+			while (strategy.getInFlight() > 0) {
+				Thread.sleep(10);
+			}
+			
+			// the server goes away with the idle connection, and comes back
+			this.server.stop(0);
+			this.setUpServerOn(port);
+			
+			strategy.poll(this.host);
+			handler.await(2, 5000);
+			
+			assertEquals(Status.FINISHED, handler.stopped.get(1).pollingStatus().status);
+			assertEquals(2, strategy.getOpenedConnections());
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+	
+	private void setUpServerOn(int port) throws IOException {
+		
+		this.server = HttpServer.create(new InetSocketAddress(this.host, port), 0);
+		this.server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getRequestBody().close();
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+			}
+		});
+		this.server.start();
+		
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	
+	@Test
+	public void testBuckets() {
+		
+		for (long value = 0; value < 1 << 20; value++) {
+			int bucket = LatencyHistogram.bucketOf(value);
+			assertTrue(value + " in " + bucket, LatencyHistogram.lowestEquivalentValue(bucket) <= value);
+			assertTrue(value + " in " + bucket, LatencyHistogram.highestEquivalentValue(bucket) >= value);
+		}
+		
+		// contiguous up to the max
+		for (int bucket = 1; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+			assertEquals(LatencyHistogram.highestEquivalentValue(bucket - 1) + 1, LatencyHistogram.lowestEquivalentValue(bucket));
+		}
+		assertEquals(LatencyHistogram.MAX_VALUE, LatencyHistogram.highestEquivalentValue(LatencyHistogram.BUCKET_COUNT - 1));
+		// 128 buckets below SUB_BUCKET_COUNT, and 64 for each of the 29 powers of two up to MAX_VALUE
+		assertEquals(1984, LatencyHistogram.BUCKET_COUNT);
+		
+	}
+	
+	@Test
+	public void testPercentiles() {
+		
+		Random random = new Random(1);
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] values = new long[100000];
+		for (int i = 0; i < values.length; i++) {
+			// mostly around 200 micro sec, with a long tail
+			values[i] = (long) (200000 * Math.exp(random.nextGaussian()));
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		
+		for (double percentile : new double[]{50, 90, 99, 99.9}) {
+			long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long estimated = histogram.getValueAtPercentile(percentile);
+			assertTrue(percentile + ": " + exact + " vs " + estimated, estimated >= exact && estimated - exact <= exact / 64);
+		}
+		
+	}
+	
+	@Test
+	public void testMerge() {
+		
+		Random random = new Random(2);
+		LatencyHistogram all = new LatencyHistogram();
+		LatencyHistogram merged = new LatencyHistogram();
+		for (int h = 0; h < 10; h++) {
+			LatencyHistogram host = new LatencyHistogram();
+			for (int i = 0; i < 1000; i++) {
+				long value = random.nextInt(1000000) * (h + 1L);
+				host.record(value);
+				all.record(value);
+			}
+			merged.add(host);
+		}
+		
+		assertEquals(all.getCount(), merged.getCount());
+		assertEquals(all.getMax(), merged.getMax());
+		for (double percentile = 0; percentile <= 100; percentile += 0.5) {
+			assertEquals(all.getValueAtPercentile(percentile), merged.getValueAtPercentile(percentile));
+		}
+		
+	}
+	
+	@Test
+	public void testSlidingWindow() throws Exception {
+		
+		File directory = Files.createTempDirectory("sonar-latency").toFile();
+		CSVSink sink = new CSVSink(directory, "latency", CSVSink.MAX_FILE_SIZE);
+		LatencyHistogramHandler handler = new LatencyHistogramHandler(sink, 60000, 2);
+		
+		PollingJob job = new PollingJob(ProbeEngineScaleTest.hosts(1)[0]) {
+			@Override
+			public void run() {
+				// a fixed duration
+				this.pollingStatus.started = 0;
+				this.pollingStatus.stopped = 1000;
+				this.pollingStatus.status = PollingStatus.Status.FINISHED;
+			}
+		};
+		job.run();
+		
+		for (int i = 0; i < 10; i++) {
+			handler.updateStatus(job);
+		}
+		handler.roll();
+		job.pollingStatus.stopped = 5000;
+		handler.updateStatus(job);
+		handler.roll();
+		handler.roll();
+		
+		int id = HostRegistry.getDefault().id(job);
+		// the first interval went out of the window
+		LatencyHistogram window = handler.getWindow(id);
+		assertEquals(1, window.getCount());
+		assertEquals(5000, window.getMax());
+		
+		sink.close();
+		List<String> lines = Files.readAllLines(new File(directory, "latency.csv").toPath(), StandardCharsets.UTF_8);
+		assertEquals(6, lines.size());
+		assertTrue(lines.get(0), lines.get(0).endsWith("host0, 10, 1000, 1000, 1000, 1000, 1000"));
+		assertTrue(lines.get(1), lines.get(1).endsWith("*, 10, 1000, 1000, 1000, 1000, 1000"));
+		// the highest value equivalent to 1000 unless it is the max
+		assertTrue(lines.get(2), lines.get(2).endsWith("host0, 11, 1007, 1007, 5000, 5000, 5000"));
+		assertTrue(lines.get(4), lines.get(4).endsWith("host0, 1, 5000, 5000, 5000, 5000, 5000"));
+		
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+		
+	}
+
+}
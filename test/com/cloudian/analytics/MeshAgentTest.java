@@ -0,0 +1,202 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class MeshAgentTest {
+
+	@Test
+	public void testFullMatrix() throws Exception {
+
+		List<MeshAgent> agents = this.startMesh("mesh", 6, MeshAgent.DEFAULT_MAX_BYTES);
+		try {
+
+			assertTrue(awaitConverged(agents, 5000));
+
+			MeshAgent.Matrix matrix = agents.get(2).getMatrix();
+			assertEquals(1.4, matrix.getPhi(1, 4), 0);
+			assertEquals(0.14, matrix.getAnomaly(1, 4), 0);
+			assertTrue(Double.isNaN(matrix.getPhi(3, 3)));
+			assertTrue(matrix.getVersion(5) > 0);
+
+			// 1 datagram of 12 + 6 rows of 14 + 6 * 4 at most to 3 members a round, and a round may be in progress
+			for (MeshAgent agent : agents) {
+				long sentBytes = agent.sentBytes;
+				assertTrue(sentBytes <= (agent.rounds + 1) * 3 * (12 + 6 * (14 + 6 * 4)));
+				assertEquals(0, agent.rejected);
+			}
+
+		} finally {
+			for (MeshAgent agent : agents) {
+				agent.shutdown();
+			}
+		}
+
+	}
+
+	@Test
+	public void testBoundedDatagrams() throws Exception {
+
+		// only 9 cells fit in a datagram, so rows are sent in chunks over rounds
+		int maxBytes = MeshAgent.HEADER_SIZE + MeshAgent.CHUNK_HEADER_SIZE + 9 * MeshAgent.CELL_SIZE;
+		List<MeshAgent> agents = this.startMesh("bounded", 12, maxBytes);
+		try {
+
+			assertTrue(awaitConverged(agents, 10000));
+			// a round may be in progress
+			for (MeshAgent agent : agents) {
+				long sentBytes = agent.sentBytes;
+				assertTrue(sentBytes <= (agent.rounds + 1) * 3 * maxBytes);
+			}
+
+		} finally {
+			for (MeshAgent agent : agents) {
+				agent.shutdown();
+			}
+		}
+
+	}
+
+	@Test
+	public void testMerge() throws Exception {
+
+		List<InetSocketAddress> members = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < 3; i++) {
+			members.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), 10000 + i));
+		}
+		DatagramChannel channel = DatagramChannel.open();
+		MeshAgent agent = new MeshAgent(channel, members, 0, new HealthTable(8, 0.5, 0), new int[]{-1, -1, -1}, 1000, 3, 1400);
+		try {
+
+			assertTrue(agent.merge(datagram(members, 1, 1, 100, 0, 1000, 5000)));
+			// older, or of the own row
+			assertTrue(agent.merge(datagram(members, 1, 1, 99, 0, 2000, 6000)));
+			assertTrue(agent.merge(datagram(members, 2, 0, 200, 1, 3000, 7000)));
+			// of another mesh
+			members.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), 10003));
+			assertFalse(agent.merge(datagram(members, 1, 1, 300, 0, 4000, 8000)));
+
+			// published on the next round
+			agent.start();
+			Thread.sleep(100);
+			MeshAgent.Matrix matrix = agent.getMatrix();
+			assertEquals(10, matrix.getPhi(1, 0), 0);
+			assertEquals(0.5, matrix.getAnomaly(1, 0), 0);
+			assertEquals(100, matrix.getVersion(1));
+			assertTrue(Double.isNaN(matrix.getPhi(0, 1)));
+
+		} finally {
+			agent.shutdown();
+		}
+
+	}
+
+	/**
+	 * Agent i sees member j with a PHI of i.j and an anomaly score of 0.ij
+	 */
+	private List<MeshAgent> startMesh(String name, int size, int maxBytes) throws Exception {
+
+		List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+		List<InetSocketAddress> members = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < size; i++) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			channels.add(channel);
+			members.add((InetSocketAddress) channel.getLocalAddress());
+		}
+
+		List<MeshAgent> agents = new ArrayList<MeshAgent>();
+		HostRegistry registry = HostRegistry.getDefault();
+		for (int i = 0; i < size; i++) {
+
+			HealthTable health = new HealthTable(8, 0.5, 0);
+			int[] hostIds = new int[size];
+			for (int j = 0; j < size; j++) {
+				if (i == j) {
+					hostIds[j] = -1;
+					continue;
+				}
+				// as the agent of i polls j
+				hostIds[j] = registry.register(HostRegistry.localAddress(name + "-" + i + "-" + j));
+				health.updatePhi(hostIds[j], Status.FINISHED, 1000000, i + j / 10.0);
+				health.updateAnomaly(hostIds[j], (i * 10 + j) / 100.0);
+			}
+
+			MeshAgent agent = new MeshAgent(channels.get(i), members, i, health, hostIds, 20, 3, maxBytes);
+			agent.start();
+			agents.add(agent);
+
+		}
+
+		return agents;
+
+	}
+
+	private static boolean awaitConverged(List<MeshAgent> agents, long timeoutInMillis) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutInMillis;
+		while (System.currentTimeMillis() < deadline) {
+			if (converged(agents)) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+
+		return false;
+
+	}
+
+	private static boolean converged(List<MeshAgent> agents) {
+
+		int size = agents.size();
+		for (MeshAgent agent : agents) {
+			MeshAgent.Matrix matrix = agent.getMatrix();
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					// NaN until known
+					if (i != j && !(Math.abs(matrix.getPhi(i, j) - (i + j / 10.0)) < 1e-9 && Math.abs(matrix.getAnomaly(i, j) - (i * 10 + j) / 100.0) < 1e-9)) {
+						return false;
+					}
+				}
+			}
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * A datagram of a chunk of a row from the first cell
+	 */
+	private static ByteBuffer datagram(List<InetSocketAddress> members, int sender, int origin, long version, int first, int phi, int anomaly) {
+
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		buffer.putInt(MeshAgent.MAGIC);
+		buffer.putInt(MeshAgent.hash(members));
+		buffer.putShort((short) sender);
+		buffer.putShort((short) 1);
+		buffer.putShort((short) origin);
+		buffer.putLong(version);
+		buffer.putShort((short) first);
+		buffer.putShort((short) 1);
+		buffer.putChar((char) phi);
+		buffer.putChar((char) anomaly);
+		buffer.flip();
+
+		return buffer;
+
+	}
+
+}
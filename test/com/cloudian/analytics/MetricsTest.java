@@ -0,0 +1,152 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testConcurrentHistogram() throws Exception {
+
+		final Metrics.Histogram histogram = new Metrics().histogram("test");
+		final int threads = 4;
+		final int values = 100000;
+		final long[][] recorded = new long[threads][values];
+
+		List<Thread> recorders = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final long[] mine = recorded[t];
+			recorders.add(new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < values; i++) {
+					mine[i] = (long) (-300000 * Math.log(1 - random.nextDouble()));
+					histogram.record(mine[i]);
+				}
+			}));
+		}
+		for (Thread recorder : recorders) {
+			recorder.start();
+		}
+		for (Thread recorder : recorders) {
+			recorder.join();
+		}
+
+		// nothing is lost, and the same as recorded by a single thread
+		LatencyHistogram expected = new LatencyHistogram();
+		for (long[] mine : recorded) {
+			for (long value : mine) {
+				expected.record(value);
+			}
+		}
+		assertEquals(threads * values, histogram.getCount());
+		assertEquals(expected.getMax(), histogram.getMax());
+		for (double percentile : new double[]{50, 90, 99, 99.9, 100}) {
+			assertEquals(expected.getValueAtPercentile(percentile), histogram.getValueAtPercentile(percentile));
+		}
+
+	}
+
+	@Test
+	public void testScrapeAndJmx() throws Exception {
+
+		Metrics metrics = new Metrics();
+		metrics.counter("probes.started").add(3);
+		metrics.gauge("probes.inflight", () -> 2);
+		Metrics.Histogram histogram = metrics.histogram("schedule.lag");
+		histogram.record(1000);
+		histogram.record(2000);
+
+		Map<String, Long> values = metrics.values();
+		assertEquals(3, (long) values.get("probes.started"));
+		assertEquals(2, (long) values.get("probes.inflight"));
+		assertEquals(2, (long) values.get("schedule.lag.count"));
+		assertEquals(2000, (long) values.get("schedule.lag.max"));
+
+		MetricsServer server = new MetricsServer(0, metrics);
+		server.start();
+		try {
+			String text = get(new URL("http://127.0.0.1:" + server.getPort() + MetricsServer.METRICS_PATH));
+			assertTrue(text, text.contains("cloudsonar_probes_started 3\n"));
+			assertTrue(text, text.contains("cloudsonar_probes_inflight 2\n"));
+			assertTrue(text, text.contains("cloudsonar_schedule_lag_p999 2000\n"));
+		} finally {
+			server.stop();
+		}
+
+		ObjectName name = new ObjectName("com.cloudian.analytics:type=MetricsTest");
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+		try {
+			assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "probes.started"));
+			assertEquals(histogram.getValueAtPercentile(50), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "schedule.lag.p50"));
+		} finally {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+
+	}
+
+	@Test
+	public void testProbes() throws Exception {
+
+		Metrics metrics = Metrics.getDefault();
+		long started = metrics.counter("probes.started").get();
+		long completed = metrics.counter("probes.completed").get();
+		long lags = metrics.histogram("schedule.lag").getCount();
+
+		ProbeEngine engine = ProbeEngine.createPlatformEngine(2, 1000);
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		SimulatedPollingStrategy strategy = new SimulatedPollingStrategy(new PollingUpdateHandler[]{handler}, engine,
+				SimulatedPollingStrategy.Latency.constant(TimeUnit.MILLISECONDS.toNanos(1)), 100);
+		PollingScheduler scheduler = new PollingScheduler(strategy);
+
+		try {
+			for (int i = 0; i < 10; i++) {
+				scheduler.schedule(HostRegistry.localAddress("metrics-" + i), 50);
+			}
+			handler.await(30, 5000);
+		} finally {
+			scheduler.stop();
+			strategy.shutdown();
+			engine.shutdown();
+		}
+
+		assertTrue(metrics.counter("probes.started").get() - started >= 30);
+		assertTrue(metrics.counter("probes.completed").get() - completed >= 30);
+		assertTrue(metrics.histogram("schedule.lag").getCount() - lags >= 30);
+
+	}
+
+	private static String get(URL url) throws Exception {
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		assertEquals(200, connection.getResponseCode());
+		assertTrue(connection.getContentType().startsWith("text/plain"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = connection.getInputStream()) {
+			byte[] buffer = new byte[4096];
+			for (int read; (read = in.read(buffer)) > 0;) {
+				out.write(buffer, 0, read);
+			}
+		}
+
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+	}
+
+}
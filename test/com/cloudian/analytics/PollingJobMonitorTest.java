@@ -0,0 +1,75 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PollingJobMonitorTest {
+	
+	@Test
+	public void testCompletion() throws Exception {
+		
+		final List<Long> inFlight = new CopyOnWriteArrayList<Long>();
+		final List<Long> stopped = new CopyOnWriteArrayList<Long>();
+		
+		PollingUpdateHandler handler = new PollingUpdateHandler() {
+			@Override
+			public void updateStatus(PollingEvent event) {
+				if (event.pollingStatus().isStopped()) {
+					stopped.add(System.nanoTime() - event.pollingStatus().stopped);
+				} else {
+					inFlight.add(System.nanoTime() - event.pollingStatus().started);
+				}
+			}
+		};
+		
+		ProbeEngine engine = ProbeEngine.createPlatformEngine(2, 10);
+		PollingStrategy strategy = new PollingStrategy(new PollingUpdateHandler[]{handler}, engine) {
+			@Override
+			PollingJob createPollingJob(InetAddress host) {
+				return new PollingJob(host) {
+					@Override
+					public void run() {
+						this.started();
+						try {
+							Thread.sleep(350);
+						} catch (InterruptedException e) {
+							// ignore
+						}
+						this.finished();
+					}
+				};
+			}
+		};
+		
+		try {
+			
+			strategy.poll(InetAddress.getByAddress("host", new byte[]{10, 0, 0, 1}));
+			
+			long deadline = System.currentTimeMillis() + 5000;
+			while (stopped.isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+			// give a late in-flight update a chance to show up
+			Thread.sleep(200);
+			
+			// every 100 milli sec while in flight
+			assertTrue(inFlight.toString(), inFlight.size() >= 2 && inFlight.size() <= 3);
+			// handlers are called once, right after the job stopped
+			assertEquals(1, stopped.size());
+			assertTrue(stopped.toString(), stopped.get(0) < TimeUnit.MILLISECONDS.toNanos(50));
+			assertTrue(strategy.getInFlight() == 0);
+			
+		} finally {
+			engine.shutdown();
+		}
+		
+	}
+
+}
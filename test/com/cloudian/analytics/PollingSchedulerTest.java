@@ -0,0 +1,89 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PollingSchedulerTest {
+	
+	private static final long INTERVAL_IN_MILLIS = 100;
+	private static final long TOLERANCE_IN_NANO = TimeUnit.MILLISECONDS.toNanos(10);
+	
+	@Test
+	public void testPhaseAndDrift() throws Exception {
+		
+		final Map<InetAddress, List<Long>> polls = new ConcurrentHashMap<InetAddress, List<Long>>();
+		
+		// every poll takes a while, which would add up with relative sleeps
+		PollingStrategy strategy = new PollingStrategy(null, ProbeEngine.getDefault()) {
+			@Override
+			void poll(int hostId) {
+				polls.get(HostRegistry.getDefault().address(hostId)).add(System.nanoTime());
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			@Override
+			PollingJob createPollingJob(InetAddress host) {
+				return null;
+			}
+		};
+		
+		PollingScheduler scheduler = new PollingScheduler(strategy);
+		InetAddress[] hosts = ProbeEngineScaleTest.hosts(8);
+		for (InetAddress host : hosts) {
+			polls.put(host, new CopyOnWriteArrayList<Long>());
+			scheduler.schedule(host, INTERVAL_IN_MILLIS);
+		}
+		
+		Thread.sleep(INTERVAL_IN_MILLIS * 20 + 50);
+		scheduler.stop();
+		
+		long interval = TimeUnit.MILLISECONDS.toNanos(INTERVAL_IN_MILLIS);
+		List<Long> phases = new ArrayList<Long>();
+		
+		for (InetAddress host : hosts) {
+			
+			List<Long> times = polls.get(host);
+			assertTrue(times.size() >= 19);
+			
+			// the n-th poll is n intervals after the first one, however long polls take.
+			// relative sleeps would be behind by 2 milli sec per poll, 20 milli sec at the median
+			long first = times.get(0);
+			long[] errors = new long[times.size() - 1];
+			for (int n = 1; n < times.size(); n++) {
+				errors[n - 1] = Math.abs(times.get(n) - first - n * interval);
+			}
+			Arrays.sort(errors);
+			long median = errors[errors.length / 2];
+			assertTrue(host + " drifted by " + median, median < TOLERANCE_IN_NANO);
+			
+			phases.add(first % interval);
+			
+		}
+		
+		// the hosts are spread over an interval, not polled all at once
+		int[] quarters = new int[4];
+		for (long phase : phases) {
+			quarters[(int) (phase * 4 / interval)]++;
+		}
+		for (int quarter : quarters) {
+			assertTrue(quarter > 0 && quarter <= 3);
+		}
+		assertEquals(0, scheduler.getSkipped());
+		
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ProbeEngineScaleTest {
+
+	private static final int[] HOSTS = {10, 100, 1000, 10000};
+	private static final int TICKS = 5;
+
+	@Test
+	public void testPlatformEngine() throws Exception {
+
+		ProbeEngine engine = ProbeEngine.createPlatformEngine(16, ProbeEngine.DEFAULT_QUEUE_SIZE);
+		try {
+			this.checkFlatOverhead(engine);
+		} finally {
+			engine.shutdown();
+		}
+
+	}
+
+	@Test
+	public void testVirtualEngine() throws Exception {
+
+		ProbeEngine engine = ProbeEngine.createVirtualEngine(ProbeEngine.DEFAULT_MAX_CONCURRENCY);
+		try {
+			this.checkFlatOverhead(engine);
+		} finally {
+			engine.shutdown();
+		}
+
+	}
+
+	private void checkFlatOverhead(ProbeEngine engine) throws Exception {
+
+		// warm up
+		this.tick(engine, hosts(1000));
+
+		int baseline = Thread.activeCount();
+		double[] perHost = new double[HOSTS.length];
+
+		for (int i = 0; i < HOSTS.length; i++) {
+
+			InetAddress[] hosts = hosts(HOSTS[i]);
+			long[] ticks = new long[TICKS];
+			for (int t = 0; t < TICKS; t++) {
+				ticks[t] = this.tick(engine, hosts);
+			}
+			Arrays.sort(ticks);
+
+			perHost[i] = (double) ticks[TICKS / 2] / HOSTS[i];
+
+			if (!engine.isVirtual()) {
+				// the number of threads does not grow with the number of hosts
+				assertTrue(Thread.activeCount() <= baseline + engine.getSize());
+			}
+
+		}
+
+		// the overhead per host stays flat from 10 to 10,000 hosts
+		assertTrue((engine.isVirtual() ? "virtual" : "platform") + " nano sec per host grew: " + Arrays.toString(perHost), perHost[HOSTS.length - 1] < perHost[0] * 5);
+
+	}
+
+	/**
+	 * @return nano seconds spent on polling all the hosts
+	 */
+	private long tick(ProbeEngine engine, InetAddress[] hosts) throws InterruptedException {
+
+		final AtomicInteger completed = new AtomicInteger();
+		NoopPollingStrategy strategy = new NoopPollingStrategy(engine, completed);
+
+		long started = System.nanoTime();
+		for (InetAddress host : hosts) {
+			strategy.poll(host);
+		}
+		long elapsed = System.nanoTime() - started;
+
+		long deadline = System.currentTimeMillis() + 30000;
+		while (strategy.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(hosts.length, completed.get());
+		assertTrue(strategy.getInFlight() == 0);
+
+		return elapsed;
+
+	}
+
+	static InetAddress[] hosts(int size) throws UnknownHostException {
+
+		InetAddress[] hosts = new InetAddress[size];
+		for (int i = 0; i < size; i++) {
+			// a host name is given to avoid a reverse lookup
+			hosts[i] = InetAddress.getByAddress("host" + i, new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+		}
+		return hosts;
+
+	}
+
+	static class NoopPollingStrategy extends PollingStrategy {
+
+		private final AtomicInteger completed;
+
+		NoopPollingStrategy(ProbeEngine engine, AtomicInteger completed) {
+			super(null, engine);
+			this.completed = completed;
+		}
+
+		@Override
+		PollingJob createPollingJob(InetAddress host) {
+			return new PollingJob(host) {
+				@Override
+				public void run() {
+					this.started();
+					completed.incrementAndGet();
+					this.finished();
+				}
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.cloudian.analytics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A handler for tests that records every job when it stops.
+ */
+class RecordingUpdateHandler implements PollingUpdateHandler {
+	
+	final List<PollingEvent> stopped = new CopyOnWriteArrayList<PollingEvent>();
+
+	@Override
+	public void updateStatus(PollingEvent event) {
+		
+		if (event.pollingStatus().isStopped()) {
+			this.stopped.add(event);
+		}
+		
+	}
+	
+	void await(int count, long timeoutInMillis) throws InterruptedException {
+		
+		long deadline = System.currentTimeMillis() + timeoutInMillis;
+		while (this.stopped.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplayEngineTest {
+
+	private static final int RECORDS = 180;
+	private static final int WINDOW = 10;
+
+	private File directory;
+	private long start;
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = Files.createTempDirectory("sonar-replay").toFile();
+		this.start = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse("2015-11-03 22:00:00").getTime();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.walk(this.directory.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+	}
+
+	@Test
+	public void testParallelSameAsSequential() throws Exception {
+
+		List<File> files = new ArrayList<File>();
+		files.add(this.writeSonar("sonar-11-03-2015-1.csv.gz", "replay-a", "replay-b"));
+		files.add(this.writeSample("replay-c.csv"));
+
+		File sequential = new File(this.directory, "sequential");
+		File parallel = new File(this.directory, "parallel");
+		assertEquals(RECORDS * 3, this.replay(files, sequential, 1));
+		assertEquals(RECORDS * 3, this.replay(files, parallel, 3));
+
+		List<String> fd = lines(new File(sequential, "fd.csv"));
+		List<String> htm = lines(new File(sequential, "htm.csv"));
+		// the first response of a host is not written
+		assertEquals(RECORDS * 3 - 3, fd.size());
+		assertEquals(RECORDS / WINDOW * 3, htm.size());
+
+		// in the virtual time
+		assertTrue(fd.get(0), fd.get(0).startsWith("2015-11-03T22:00:01,000, replay-"));
+		assertTrue(htm.get(htm.size() - 1), htm.get(htm.size() - 1).startsWith("2015-11-03T22:02:59,000, replay-"));
+
+		assertEquals(sorted(fd), sorted(lines(new File(parallel, "fd.csv"))));
+		assertEquals(sorted(htm), sorted(lines(new File(parallel, "htm.csv"))));
+
+	}
+
+	private long replay(List<File> files, File output, int threads) throws IOException {
+
+		HTMModelManager models = new HTMModelManager(new File(output, HTMModelManager.DEFAULT_DIRECTORY), Long.MAX_VALUE);
+		ReplayEngine engine = new ReplayEngine(output, threads, models,
+				clock -> new WindowedAggregator(WindowedAggregator.Unit.COUNT, WINDOW, WINDOW, Reducer.of("max"), clock));
+		try {
+			return engine.replay(files);
+		} finally {
+			engine.close();
+		}
+
+	}
+
+	/**
+	 * A response of each host every second, with an error in between.
+	 */
+	private File writeSonar(String name, String... hosts) throws IOException {
+
+		File file = new File(this.directory, name);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss,SSS");
+
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+		try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII))) {
+			for (int i = 0; i < RECORDS; i++) {
+				String time = format.format(new Date(this.start + i * 1000L));
+				for (int h = 0; h < hosts.length; h++) {
+					writer.println(time + ", " + hosts[h] + ", " + (200000 + (i % 7) * 30000 + h * 1000) + ", 1000");
+				}
+				writer.println(time + ", " + hosts[0] + ", Timeout");
+			}
+		}
+
+		return file;
+
+	}
+
+	/**
+	 * Responses in micro seconds like resources/sample/sample.csv.
+	 */
+	private File writeSample(String name) throws IOException {
+
+		File file = new File(this.directory, name);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+		try (PrintWriter writer = new PrintWriter(file, "US-ASCII")) {
+			writer.println("timestamp,duration,log10_resp");
+			writer.println("datetime, int, float");
+			writer.println("T,,");
+			for (int i = 0; i < RECORDS; i++) {
+				int micro = 290 + (i % 5) * 50;
+				writer.println(format.format(new Date(this.start + i * 1000L)) + "," + micro + "," + Math.log10(micro));
+			}
+		}
+
+		return file;
+
+	}
+
+	private static List<String> lines(File file) throws IOException {
+		return Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+	}
+
+	private static List<String> sorted(List<String> lines) {
+		List<String> sorted = new ArrayList<String>(lines);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+}
@@ -0,0 +1,269 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ShardCoordinatorTest {
+
+	@Test
+	public void testRing() {
+
+		List<String> agents = new ArrayList<String>();
+		for (int i = 0; i < 10; i++) {
+			agents.add("agent-" + i + ":7946");
+		}
+		HashRing ring = new HashRing(agents, HashRing.DEFAULT_VIRTUAL_NODES);
+
+		// the same owners whatever the order of agents is
+		List<String> reversed = new ArrayList<String>(agents);
+		Collections.reverse(reversed);
+		HashRing reversedRing = new HashRing(reversed, HashRing.DEFAULT_VIRTUAL_NODES);
+
+		// without the last agent, and with a new one
+		HashRing left = new HashRing(agents.subList(0, 9), HashRing.DEFAULT_VIRTUAL_NODES);
+		List<String> joined = new ArrayList<String>(agents);
+		joined.add("agent-10:7946");
+		HashRing joinedRing = new HashRing(joined, HashRing.DEFAULT_VIRTUAL_NODES);
+
+		int keys = 10000;
+		int[] load = new int[agents.size()];
+		int movedOnLeave = 0, movedOnJoin = 0;
+		for (int key = 0; key < keys; key++) {
+
+			int[] owners = ring.owners("host-" + key, 2);
+			assertEquals(2, owners.length);
+			assertTrue(owners[0] != owners[1]);
+			load[owners[0]]++;
+			load[owners[1]]++;
+
+			int[] reversedOwners = reversedRing.owners("host-" + key, 2);
+			for (int i = 0; i < 2; i++) {
+				assertEquals(agents.get(owners[i]), reversed.get(reversedOwners[i]));
+			}
+
+			// only the keys of the agent left move
+			int[] leftOwners = left.owners("host-" + key, 2);
+			if (owners[0] != 9 && owners[1] != 9) {
+				assertArrayEquals(owners, leftOwners);
+			} else {
+				movedOnLeave++;
+			}
+
+			// only the keys taken by the agent joined move
+			int[] joinedOwners = joinedRing.owners("host-" + key, 2);
+			if (joinedOwners[0] != 10 && joinedOwners[1] != 10) {
+				assertArrayEquals(owners, joinedOwners);
+			} else {
+				movedOnJoin++;
+			}
+
+		}
+
+		// about 2 / 10 of the keys, and spread evenly
+		assertTrue(String.valueOf(movedOnLeave), movedOnLeave < keys * 2 / 10 * 1.3);
+		assertTrue(String.valueOf(movedOnJoin), movedOnJoin < keys * 2 / 11 * 1.3);
+		for (int count : load) {
+			assertTrue(Arrays.toString(load), Math.abs(count - keys * 2 / 10) < keys * 2 / 10 * 0.3);
+		}
+
+		assertEquals(1, new HashRing(agents.subList(0, 1), 10).owners("host-0", 2).length);
+
+	}
+
+	@Test
+	public void testHandover() throws Exception {
+
+		File directory = Files.createTempDirectory("sonar-shard").toFile();
+		int size = 3;
+		int replicas = 2;
+		InetAddress[] targets = new InetAddress[20];
+		long[] intervals = new long[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = HostRegistry.localAddress("shard-" + i);
+			intervals[i] = 1000;
+		}
+
+		List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+		List<InetSocketAddress> members = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < size; i++) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			channels.add(channel);
+			members.add((InetSocketAddress) channel.getLocalAddress());
+		}
+
+		HostRegistry registry = HostRegistry.getDefault();
+		CSVSink sink = new CSVSink(directory, "shard", CSVSink.MAX_FILE_SIZE);
+		HTMComputePool pool = new HTMComputePool(1, HTMComputePool.DEFAULT_QUEUE_SIZE);
+		ProbeEngine engine = ProbeEngine.createPlatformEngine(2, 1000);
+		SimulatedPollingStrategy strategy = new SimulatedPollingStrategy(new PollingUpdateHandler[0], engine,
+				SimulatedPollingStrategy.Latency.constant(TimeUnit.MILLISECONDS.toNanos(1)), 100);
+
+		List<MeshAgent> meshes = new ArrayList<MeshAgent>();
+		List<ShardCoordinator> shards = new ArrayList<ShardCoordinator>();
+		List<PollingScheduler> schedulers = new ArrayList<PollingScheduler>();
+		List<FailureDetectorUpdateHandler> failureDetectors = new ArrayList<FailureDetectorUpdateHandler>();
+		List<HTMAnomalyDetector> anomalyDetectors = new ArrayList<HTMAnomalyDetector>();
+
+		try {
+
+			for (int i = 0; i < size; i++) {
+				// members are not polled here
+				int[] hostIds = new int[size];
+				Arrays.fill(hostIds, -1);
+				MeshAgent mesh = new MeshAgent(channels.get(i), members, i, new HealthTable(8, 0.5, 0), hostIds, 20, 3, MeshAgent.DEFAULT_MAX_BYTES);
+				PollingScheduler scheduler = new PollingScheduler(strategy);
+				FailureDetectorUpdateHandler failureDetector = new FailureDetectorUpdateHandler(sink);
+				HTMAnomalyDetector anomalyDetector = new HTMAnomalyDetector(sink, 100, new HTMModelManager(directory, Long.MAX_VALUE), pool);
+				ShardCoordinator shard = new ShardCoordinator(new ServerSocket(members.get(i).getPort(), 50, InetAddress.getLoopbackAddress()), mesh,
+						targets, intervals, replicas, 20, 300, scheduler, registry, failureDetector, anomalyDetector);
+				meshes.add(mesh);
+				schedulers.add(scheduler);
+				failureDetectors.add(failureDetector);
+				anomalyDetectors.add(anomalyDetector);
+				shards.add(shard);
+				mesh.start();
+				shard.start();
+			}
+
+			// each target is polled by the replicas
+			assertTrue(awaitOwned(shards.subList(0, size), targets, replicas, 5000));
+			for (int i = 0; i < size; i++) {
+				for (InetAddress target : targets) {
+					assertEquals(shards.get(i).isOwned(target), schedulers.get(i).getInterval(target) == 1000);
+				}
+			}
+
+			// as learned by the owners
+			HTMHistory history = new HTMHistory(100);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < 40; i++) {
+				history.add(now - (40 - i) * 30000L, 2.0f + (i % 4) * 0.1f);
+			}
+			boolean[][] ownedBefore = new boolean[size][targets.length];
+			for (int i = 0; i < size; i++) {
+				for (int t = 0; t < targets.length; t++) {
+					ownedBefore[i][t] = shards.get(i).isOwned(targets[t]);
+					if (ownedBefore[i][t]) {
+						int hostId = registry.register(targets[t]);
+						failureDetectors.get(i).restore(hostId, samples(t));
+						if (t == 0) {
+							anomalyDetectors.get(i).restore(hostId, targets[t], history);
+						}
+					}
+				}
+			}
+
+			// the last member leaves
+			shards.get(size - 1).shutdown();
+			meshes.get(size - 1).shutdown();
+			assertTrue(awaitOwned(shards.subList(0, size - 1), targets, replicas, 5000));
+
+			int moved = 0;
+			for (int i = 0; i < size - 1; i++) {
+				for (int t = 0; t < targets.length; t++) {
+
+					assertEquals(shards.get(i).isOwned(targets[t]), schedulers.get(i).getInterval(targets[t]) == 1000);
+					if (ownedBefore[i][t] || !shards.get(i).isOwned(targets[t])) {
+						continue;
+					}
+
+					// handed over by the other, which owned it with the one left
+					moved++;
+					int hostId = registry.register(targets[t]);
+					assertTrue(awaitSamples(failureDetectors.get(i), hostId, 5000));
+					assertArrayEquals(samples(t), failureDetectors.get(i).getSamples(hostId));
+					if (t == 0) {
+						// replayed into a new network after the window is restored
+						long deadline = System.currentTimeMillis() + 5000;
+						while (anomalyDetectors.get(i).getHistory(hostId) == null && System.currentTimeMillis() < deadline) {
+							Thread.sleep(20);
+						}
+						HTMHistory restored = anomalyDetectors.get(i).getHistory(hostId);
+						assertNotNull(restored);
+						assertEquals(history.size(), restored.size());
+					}
+
+				}
+			}
+			assertTrue(moved > 0);
+			assertFalse(shards.get(0).toText().length == 0);
+
+		} finally {
+			for (ShardCoordinator shard : shards) {
+				shard.shutdown();
+			}
+			for (MeshAgent mesh : meshes) {
+				mesh.shutdown();
+			}
+			for (PollingScheduler scheduler : schedulers) {
+				scheduler.stop();
+			}
+			strategy.shutdown();
+			engine.shutdown();
+			pool.shutdown();
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+
+	}
+
+	private static long[] samples(int target) {
+		return new long[]{1000000 + target, 2000000 + target, 3000000 + target};
+	}
+
+	private static boolean awaitOwned(List<ShardCoordinator> shards, InetAddress[] targets, int replicas, long timeoutInMillis) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutInMillis;
+		while (System.currentTimeMillis() < deadline) {
+
+			boolean owned = true;
+			for (InetAddress target : targets) {
+				int owners = 0;
+				for (ShardCoordinator shard : shards) {
+					owners += shard.isOwned(target) ? 1 : 0;
+				}
+				owned &= owners == Math.min(replicas, shards.size());
+			}
+			if (owned) {
+				return true;
+			}
+			Thread.sleep(20);
+
+		}
+
+		return false;
+
+	}
+
+	private static boolean awaitSamples(FailureDetectorUpdateHandler failureDetector, int hostId, long timeoutInMillis) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutInMillis;
+		while (failureDetector.getSamples(hostId) == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+
+		return failureDetector.getSamples(hostId) != null;
+
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class SimulatedPollingStrategyTest {
+
+	private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(2);
+
+	private ProbeEngine engine;
+	private RecordingUpdateHandler handler;
+	private FailureDetectorUpdateHandler failureDetector;
+	private SimulatedPollingStrategy strategy;
+
+	@Before
+	public void setUp() {
+		// room for all the targets polled at once, however slowly the threads start
+		this.engine = ProbeEngine.createPlatformEngine(2, 10000);
+		this.handler = new RecordingUpdateHandler();
+		this.failureDetector = new FailureDetectorUpdateHandler(CSVSink.get("fd"));
+		this.strategy = new SimulatedPollingStrategy(new PollingUpdateHandler[]{this.failureDetector, this.handler}, this.engine,
+				SimulatedPollingStrategy.Latency.constant(LATENCY), 100);
+	}
+
+	@After
+	public void tearDown() {
+		this.strategy.shutdown();
+		this.engine.shutdown();
+	}
+
+	@Test
+	public void testManyTargets() throws Exception {
+
+		int targets = 5000;
+		for (int i = 0; i < targets; i++) {
+			this.strategy.poll(HostRegistry.localAddress("simulated-" + i));
+		}
+		this.handler.await(targets, 5000);
+
+		assertEquals(targets, this.handler.stopped.size());
+		for (PollingEvent job : this.handler.stopped) {
+			assertEquals(job.toString(), Status.FINISHED, job.pollingStatus().status);
+			// as drawn, however late the timer ran
+			assertEquals(LATENCY, job.pollingStatus().duration());
+		}
+		assertEquals(0, this.strategy.getInFlight());
+
+	}
+
+	@Test
+	public void testFaults() throws Exception {
+
+		InetAddress host = HostRegistry.localAddress("simulated-faults");
+		int hostId = HostRegistry.getDefault().register(host);
+		for (int i = 0; i < 10; i++) {
+			this.pollAndWait(host);
+		}
+		assertEquals(1, this.failureDetector.getPhi(hostId, LATENCY) / ArrivalWindow.PHI_FACTOR, 0.001);
+
+		long now = System.currentTimeMillis();
+		this.strategy.slowdown(host, 20, now, now + 60000);
+		// far beyond a phi of 8 for the current responses
+		assertTrue(this.failureDetector.getPhi(hostId, LATENCY * 20) > 8);
+		PollingEvent slow = this.pollAndWait(host);
+		assertEquals(Status.FINISHED, slow.pollingStatus().status);
+		assertEquals(LATENCY * 20, slow.pollingStatus().duration());
+		// the failure detector learns it, 2 ms * 10 + 40 ms over 11
+		assertEquals(5, this.failureDetector.getMean(hostId));
+
+		this.strategy.outage(host, now, now + 60000);
+		PollingEvent down = this.pollAndWait(host);
+		assertEquals(Status.ERROR, down.pollingStatus().status);
+		assertEquals("timeout", down.pollingStatus().error);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(100), down.pollingStatus().duration());
+
+		// another host is not affected
+		InetAddress other = HostRegistry.localAddress("simulated-others");
+		assertEquals(Status.FINISHED, this.pollAndWait(other).pollingStatus().status);
+
+	}
+
+	private PollingEvent pollAndWait(InetAddress host) throws InterruptedException {
+
+		int count = this.handler.stopped.size();
+		this.strategy.poll(host);
+		this.handler.await(count + 1, 5000);
+
+		return this.handler.stopped.get(count);
+
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class StatsRingBufferTest {
+	
+	@Test
+	public void testSameAsBoundedStatsDeque() {
+		
+		StatsRingBuffer buffer = new StatsRingBuffer(10);
+		BoundedStatsDeque deque = new BoundedStatsDeque(10);
+		
+		for (long i = 1; i <= 25; i++) {
+			
+			buffer.add(i * 1000);
+			deque.add(i * 1000);
+			
+			assertEquals(deque.size(), buffer.size());
+			assertEquals(deque.sum(), buffer.sum());
+			assertEquals(deque.mean(), buffer.mean(), 0.0);
+			
+			Iterator<Long> expected = deque.iterator();
+			for (Long value : buffer) {
+				assertEquals(expected.next(), value);
+			}
+			
+		}
+		
+	}
+	
+	@Test
+	public void testVariance() {
+		
+		StatsRingBuffer buffer = new StatsRingBuffer(4);
+		assertEquals(0.0, buffer.variance(), 0.0);
+		
+		// only the last 4 are kept
+		for (long value : new long[]{100, 100, 2, 4, 4, 6}) {
+			buffer.add(value);
+		}
+		
+		// mean 4, squares 4 + 0 + 0 + 4
+		assertEquals(4.0, buffer.mean(), 0.0);
+		assertEquals(2.0, buffer.variance(), 1e-9);
+		
+	}
+	
+	@Test
+	public void testLargeValues() {
+		
+		// 10 sec in nano does not overflow the sum of squares
+		StatsRingBuffer buffer = new StatsRingBuffer(1000);
+		for (int i = 0; i < 5000; i++) {
+			buffer.add(i % 2 == 0 ? 10000000000L : 0);
+		}
+		
+		assertEquals(5000000000.0, buffer.mean(), 0.0);
+		assertEquals(2.5e19, buffer.variance(), 2.5e19 * 1e-9);
+		
+	}
+
+}
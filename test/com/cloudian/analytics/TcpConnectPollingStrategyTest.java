@@ -0,0 +1,172 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class TcpConnectPollingStrategyTest {
+	
+	private static final int LISTENERS = 3;
+	private static final int BATCH = 500;
+	
+	private final List<ServerSocketChannel> listeners = new ArrayList<ServerSocketChannel>();
+	private final List<InetAddress> hosts = new ArrayList<InetAddress>();
+	private int port;
+	private ProbeEngine engine;
+	
+	@Before
+	public void setUp() throws IOException {
+		
+		// the same port on 127.0.0.1, 127.0.0.2, ...
+		for (int i = 1; i <= LISTENERS; i++) {
+			InetAddress host = InetAddress.getByAddress("loopback" + i, new byte[]{127, 0, 0, (byte) i});
+			ServerSocketChannel listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(host, this.port), 1024);
+			this.port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+			this.listeners.add(listener);
+			this.hosts.add(host);
+		}
+		
+		this.engine = ProbeEngine.createPlatformEngine(2, 1000);
+		
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		
+		for (ServerSocketChannel listener : this.listeners) {
+			listener.close();
+		}
+		this.engine.shutdown();
+		
+	}
+
+	@Test
+	public void testConnect() throws Exception {
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		TcpConnectPollingStrategy strategy = new TcpConnectPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine, this.port, 1000);
+		
+		try {
+			
+			for (InetAddress host : this.hosts) {
+				strategy.poll(host);
+			}
+			handler.await(LISTENERS, 5000);
+			
+			assertEquals(LISTENERS, handler.stopped.size());
+			for (PollingEvent job : handler.stopped) {
+				assertEquals(job.toString(), Status.FINISHED, job.pollingStatus().status);
+				assertTrue(job.pollingStatus().duration() > 0);
+			}
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testRefused() throws Exception {
+		
+		// nobody listens on this port any more
+		ServerSocketChannel closed = ServerSocketChannel.open();
+		closed.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		int closedPort = ((InetSocketAddress) closed.getLocalAddress()).getPort();
+		closed.close();
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		TcpConnectPollingStrategy strategy = new TcpConnectPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine, closedPort, 1000);
+		
+		try {
+			
+			strategy.poll(this.hosts.get(0));
+			handler.await(1, 5000);
+			
+			assertEquals(1, handler.stopped.size());
+			assertEquals(Status.ERROR, handler.stopped.get(0).pollingStatus().status);
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testThroughput() throws Exception {
+		
+		final int probes = 20000;
+		final ServerSocketChannel listener = this.listeners.get(0);
+		
+		// keep the backlog empty
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						SocketChannel accepted = listener.accept();
+						accepted.close();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		
+		TcpConnectProbeLoop loop = new TcpConnectProbeLoop(5000);
+		loop.start();
+		
+		try {
+			
+			// a single listener can not take all of them at once, so probe in batches within its backlog
+			int finished = 0;
+			long started = System.nanoTime();
+			for (int i = 0; i < probes; i += BATCH) {
+				
+				List<TcpConnectPollingJob> jobs = new ArrayList<TcpConnectPollingJob>(BATCH);
+				for (int j = 0; j < BATCH; j++) {
+					TcpConnectPollingJob job = new TcpConnectPollingJob(this.hosts.get(0), this.port, loop);
+					jobs.add(job);
+					job.run();
+				}
+				
+				// a probe times out in 5 seconds
+				long deadline = System.currentTimeMillis() + 30000;
+				for (TcpConnectPollingJob job : jobs) {
+					while (!job.pollingStatus.isStopped()) {
+						assertTrue("a probe never stopped", System.currentTimeMillis() < deadline);
+						Thread.yield();
+					}
+					if (job.pollingStatus.status == Status.FINISHED) {
+						finished++;
+					}
+				}
+				
+			}
+			long elapsed = System.nanoTime() - started;
+			
+			double rate = probes / (elapsed / 1000000000.0);
+			assertTrue(finished + " of " + probes + " connects finished, " + (long) rate + " probes per second", finished > probes * 0.9);
+			
+		} finally {
+			loop.shutdown();
+		}
+		
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class TimeSeriesStoreTest {
+	
+	// 2026/01/01 00:00:00 UTC
+	private static final long DAY = 1767225600000L;
+	private static final long SECOND = 1000;
+	
+	private File directory;
+	private InetAddress[] hosts;
+	
+	@Before
+	public void setUp() throws Exception {
+		this.directory = Files.createTempDirectory("sonar-store").toFile();
+		this.hosts = ProbeEngineScaleTest.hosts(3);
+	}
+	
+	@After
+	public void tearDown() {
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+	
+	@Test
+	public void testQueryAcrossDaysAndParts() throws Exception {
+		
+		// a small capacity to roll over to a next part within a day
+		TimeSeriesStore store = new TimeSeriesStore(this.directory, 16, 64);
+		
+		// two hours before and after midnight, a sample of each host every 10 seconds
+		long start = DAY - 2 * 3600 * SECOND;
+		long end = DAY + 2 * 3600 * SECOND;
+		for (long t = start; t < end; t += 10 * SECOND) {
+			for (int h = 0; h < this.hosts.length; h++) {
+				store.append(t, this.hosts[h], h == 2 ? Status.ERROR : Status.FINISHED, t - start + h, h, Double.NaN);
+			}
+		}
+		store.close();
+		
+		assertTrue(TimeSeriesStore.segmentFiles(this.directory, start, end).size() > 2);
+		
+		TimeSeriesReader reader = new TimeSeriesReader(this.directory);
+		
+		// across midnight
+		long from = DAY - 90 * SECOND;
+		long to = DAY + 90 * SECOND;
+		List<TimeSeriesRecord> records = reader.query("host1", from, to);
+		assertEquals(19, records.size());
+		long expected = from;
+		for (TimeSeriesRecord record : records) {
+			assertEquals(expected, record.timestamp);
+			assertEquals(1, record.hostId);
+			assertEquals(Status.FINISHED, record.status);
+			assertEquals(expected - start + 1, record.duration);
+			assertEquals(1.0f, record.phi, 0.0f);
+			assertTrue(Float.isNaN(record.anomaly));
+			expected += 10 * SECOND;
+		}
+		
+		// by an address, within a minute
+		records = reader.query(this.hosts[2].getHostAddress(), DAY + 3600 * SECOND + 5 * SECOND, DAY + 3600 * SECOND + 35 * SECOND);
+		assertEquals(3, records.size());
+		assertEquals(Status.ERROR, records.get(0).status);
+		assertEquals(DAY + 3600 * SECOND + 10 * SECOND, records.get(0).timestamp);
+		
+		// out of range
+		assertEquals(0, reader.query("host0", end, end + 3600 * SECOND).size());
+		assertEquals(0, reader.query("unknown", start, end).size());
+		
+	}
+	
+	@Test
+	public void testReopen() throws Exception {
+		
+		TimeSeriesStore store = new TimeSeriesStore(this.directory);
+		store.append(DAY, this.hosts[0], Status.FINISHED, 100, 0.5, 0.1);
+		store.append(DAY + SECOND, this.hosts[1], Status.FINISHED, 200, 0.5, 0.1);
+		store.close();
+		
+		// the same ids, and appended to the same segment
+		store = new TimeSeriesStore(this.directory);
+		store.append(DAY + 2 * SECOND, this.hosts[1], Status.FINISHED, 300, 0.5, 0.1);
+		store.append(DAY + 3 * SECOND, this.hosts[2], Status.FINISHED, 400, 0.5, 0.1);
+		assertEquals(1, store.hostId(this.hosts[1]));
+		assertEquals(2, store.hostId(this.hosts[2]));
+		store.close();
+		
+		assertEquals(1, TimeSeriesStore.segmentFiles(this.directory, DAY, DAY).size());
+		
+		TimeSeriesReader reader = new TimeSeriesReader(this.directory);
+		List<TimeSeriesRecord> records = reader.query("host1", DAY, DAY + SECOND * 10);
+		assertEquals(2, records.size());
+		assertEquals(200, records.get(0).duration);
+		assertEquals(300, records.get(1).duration);
+		
+		StringWriter csv = new StringWriter();
+		reader.export("host2", DAY, DAY + SECOND * 10, csv);
+		assertTrue(csv.toString(), csv.toString().endsWith("host2, FINISHED, 400, 0.5, 0.1\n"));
+		
+	}
+
+}
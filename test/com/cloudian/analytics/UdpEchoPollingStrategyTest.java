@@ -0,0 +1,133 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class UdpEchoPollingStrategyTest {
+	
+	private static final int HOSTS = 10;
+	
+	private final List<UdpEchoResponder> responders = new ArrayList<UdpEchoResponder>();
+	private UdpEchoResponder responder;
+	private ProbeEngine engine;
+	private InetAddress[] hosts;
+	
+	@Before
+	public void setUp() throws Exception {
+		
+		// a responder on the same port of 127.0.0.1, 127.0.0.2, ...
+		this.hosts = new InetAddress[HOSTS];
+		int port = 0;
+		for (int i = 0; i < HOSTS; i++) {
+			this.hosts[i] = InetAddress.getByAddress("loopback" + i, new byte[]{127, 0, 0, (byte) (i + 1)});
+			UdpEchoResponder responder = new UdpEchoResponder(new InetSocketAddress(this.hosts[i], port));
+			responder.start();
+			port = responder.getPort();
+			this.responders.add(responder);
+		}
+		this.responder = this.responders.get(0);
+		
+		this.engine = ProbeEngine.createPlatformEngine(2, 1000);
+		
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		
+		for (UdpEchoResponder responder : this.responders) {
+			responder.close();
+		}
+		this.engine.shutdown();
+		
+	}
+
+	@Test
+	public void testEcho() throws Exception {
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		UdpEchoPollingStrategy strategy = new UdpEchoPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine, this.responder.getPort(), 1000);
+		
+		try {
+			
+			for (int tick = 0; tick < 3; tick++) {
+				
+				int expected = handler.stopped.size() + 1;
+				strategy.poll(this.hosts[tick]);
+				handler.await(expected, 5000);
+				
+			}
+			
+			assertEquals(3, handler.stopped.size());
+			for (PollingEvent job : handler.stopped) {
+				assertEquals(job.toString(), Status.FINISHED, job.pollingStatus().status);
+				assertTrue(job.pollingStatus().duration() > 0);
+			}
+			assertEquals(3, strategy.getSent());
+			assertEquals(3, strategy.getReceived());
+			assertEquals(0, strategy.getLost());
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testBatch() throws Exception {
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		UdpEchoPollingStrategy strategy = new UdpEchoPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine, this.responder.getPort(), 1000);
+		
+		try {
+			
+			for (InetAddress host : this.hosts) {
+				strategy.poll(host);
+			}
+			handler.await(this.hosts.length, 5000);
+			
+			assertEquals(this.hosts.length, handler.stopped.size());
+			assertEquals(this.hosts.length, strategy.getReceived() + strategy.getLost());
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+	
+	@Test
+	public void testLoss() throws Exception {
+		
+		this.responder.setDropping(true);
+		
+		RecordingUpdateHandler handler = new RecordingUpdateHandler();
+		UdpEchoPollingStrategy strategy = new UdpEchoPollingStrategy(new PollingUpdateHandler[]{handler}, this.engine, this.responder.getPort(), 100);
+		
+		try {
+			
+			strategy.poll(this.hosts[0]);
+			handler.await(1, 5000);
+			
+			assertEquals(1, handler.stopped.size());
+			PollingEvent job = handler.stopped.get(0);
+			assertEquals(Status.ERROR, job.pollingStatus().status);
+			assertEquals("timeout", job.pollingStatus().error);
+			assertEquals(1, strategy.getLost());
+			
+		} finally {
+			strategy.shutdown();
+		}
+		
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.cloudian.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloudian.analytics.PollingStatus.Status;
+
+public class WindowedAggregatorTest {
+
+	@Test
+	public void testTumblingMax() throws Exception {
+
+		WindowedAggregator aggregator = new WindowedAggregator(WindowedAggregator.Unit.COUNT, 3, 3, Reducer.of("max"));
+		Recorder recorder = new Recorder();
+		aggregator.subscribe(recorder);
+
+		InetAddress host = InetAddress.getByAddress("window-test", new byte[]{10, 0, 2, 1});
+		long[] durations = {5, 9, 7, 3, 2, 1, 8};
+		for (long duration : durations) {
+			aggregator.updateStatus(job(host, duration));
+		}
+
+		assertEquals(2, recorder.values.size());
+		assertEquals(9, recorder.values.get(0), 0);
+		assertEquals(3, recorder.values.get(1), 0);
+		assertEquals(HostRegistry.getDefault().register(host), recorder.hostId);
+
+	}
+
+	@Test
+	public void testSlidingMean() throws Exception {
+
+		// the last 4 jobs every 2 jobs
+		WindowedAggregator aggregator = new WindowedAggregator(WindowedAggregator.Unit.COUNT, 4, 2, Reducer.of("mean"));
+		Recorder recorder = new Recorder();
+		aggregator.subscribe(recorder);
+
+		InetAddress host = InetAddress.getByAddress("window-test", new byte[]{10, 0, 2, 2});
+		for (long duration = 1; duration <= 8; duration++) {
+			aggregator.updateStatus(job(host, duration));
+		}
+
+		// a window is not full until the second slide
+		assertEquals(4, recorder.values.size());
+		assertEquals(1.5, recorder.values.get(0), 0);
+		assertEquals(2.5, recorder.values.get(1), 0);
+		assertEquals(4.5, recorder.values.get(2), 0);
+		assertEquals(6.5, recorder.values.get(3), 0);
+
+	}
+
+	@Test
+	public void testTumblingTime() throws Exception {
+
+		WindowedAggregator aggregator = new WindowedAggregator(WindowedAggregator.Unit.MILLIS, 1000, 1000, Reducer.of("p50"));
+		Recorder recorder = new Recorder();
+		aggregator.subscribe(recorder);
+
+		// all in a window from its beginning
+		Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 10);
+		InetAddress host = InetAddress.getByAddress("window-test", new byte[]{10, 0, 2, 3});
+		for (long duration = 1; duration <= 3; duration++) {
+			aggregator.updateStatus(job(host, duration));
+		}
+		assertTrue(recorder.values.isEmpty());
+
+		// ended by the first job after the window
+		Thread.sleep(1000);
+		aggregator.updateStatus(job(host, 100));
+
+		assertEquals(1, recorder.values.size());
+		assertEquals(2, recorder.values.get(0), 0);
+		assertEquals(0, recorder.ends.get(0) % 1000);
+		assertTrue(recorder.ends.get(0) <= System.currentTimeMillis());
+
+	}
+
+	@Test
+	public void testIgnoreUnfinished() throws Exception {
+
+		WindowedAggregator aggregator = new WindowedAggregator(WindowedAggregator.Unit.COUNT, 1, 1, Reducer.of("max"));
+		Recorder recorder = new Recorder();
+		aggregator.subscribe(recorder);
+
+		PollingJob job = job(InetAddress.getByAddress("window-test", new byte[]{10, 0, 2, 4}), 1);
+		job.pollingStatus.status = Status.ERROR;
+		aggregator.updateStatus(job);
+
+		assertTrue(recorder.values.isEmpty());
+
+	}
+
+	private static PollingJob job(InetAddress host, long duration) {
+
+		PollingJob job = new PollingJob(host) {
+			@Override
+			public void run() {
+			}
+		};
+		job.pollingStatus.started = 1;
+		job.pollingStatus.status = Status.FINISHED;
+		job.pollingStatus.stopped = 1 + duration;
+
+		return job;
+
+	}
+
+	static class Recorder implements WindowedAggregator.WindowListener {
+
+		final List<Double> values = new ArrayList<Double>();
+		final List<Long> ends = new ArrayList<Long>();
+		int hostId = -1;
+
+		@Override
+		public void onWindow(int hostId, InetAddress host, long end, double value) {
+			this.hostId = hostId;
+			this.ends.add(end);
+			this.values.add(value);
+		}
+
+	}
+
+}